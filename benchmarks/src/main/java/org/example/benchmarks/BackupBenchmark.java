@@ -0,0 +1,53 @@
+package org.example.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Backup and restore of a pre-filled store. Both reuse one backup timestamp so the set of retained snapshots
+ * stays constant, and write a field in between so each call has a record to copy on its next write.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackupBenchmark
+{
+    private static final int BACKUP_TIMESTAMP = StoreState.NOW;
+
+    @State(Scope.Benchmark)
+    public static class BackedUp
+    {
+        @Setup(Level.Trial)
+        public void backup(StoreState state)
+        {
+            state.db.backup(BACKUP_TIMESTAMP);
+        }
+    }
+
+    @Benchmark
+    public int backup(StoreState state)
+    {
+        state.db.setAt(state.randomKey(), state.randomField(), state.value, StoreState.NOW);
+        return state.db.backup(BACKUP_TIMESTAMP);
+    }
+
+    @Benchmark
+    public void restore(StoreState state, BackedUp backedUp)
+    {
+        state.db.setAt(state.randomKey(), state.randomField(), state.value, StoreState.NOW);
+        state.db.restore(StoreState.NOW, BACKUP_TIMESTAMP);
+    }
+}
@@ -0,0 +1,88 @@
+package org.example.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A request's worth of lookups and writes, issued one call per item or as one batch. Scores are per item.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(BatchBenchmark.BATCH)
+public class BatchBenchmark
+{
+    static final int BATCH = 100;
+
+    @State(Scope.Thread)
+    public static class Batch
+    {
+        // Distinct keys per batch; their fields are given together, the way a caller assembles a request
+        @Param({"1", "10", "100"})
+        public int keysPerBatch;
+
+        String[] keys = new String[BATCH];
+        String[] fields = new String[BATCH];
+        String[] values = new String[BATCH];
+        String[] results = new String[BATCH];
+
+        @Setup(Level.Iteration)
+        public void pick(StoreState state)
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < BATCH; i++)
+            {
+                if (i % (BATCH / keysPerBatch) == 0)
+                    keys[i] = state.randomKey();
+                else
+                    keys[i] = keys[i - 1];
+                fields[i] = state.fields[random.nextInt(state.fields.length)];
+                values[i] = state.value;
+            }
+        }
+    }
+
+    @Benchmark
+    public void getAtEach(StoreState state, Batch batch, Blackhole blackhole)
+    {
+        for (int i = 0; i < BATCH; i++)
+            blackhole.consume(state.db.getAt(batch.keys[i], batch.fields[i], StoreState.NOW));
+    }
+
+    @Benchmark
+    public String[] getManyAt(StoreState state, Batch batch)
+    {
+        state.db.getManyAt(batch.keys, batch.fields, StoreState.NOW, batch.results);
+        return batch.results;
+    }
+
+    @Benchmark
+    public void setAtEach(StoreState state, Batch batch)
+    {
+        for (int i = 0; i < BATCH; i++)
+            state.db.setAt(batch.keys[i], batch.fields[i], batch.values[i], StoreState.NOW);
+    }
+
+    @Benchmark
+    public void setManyAt(StoreState state, Batch batch)
+    {
+        state.db.setManyAt(batch.keys, batch.fields, batch.values, StoreState.NOW);
+    }
+}
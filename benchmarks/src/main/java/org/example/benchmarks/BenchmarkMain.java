@@ -0,0 +1,37 @@
+package org.example.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected benchmarks once per thread count and writes one JSON result file per run, so results can be
+ * diffed in review. Thread counts come from -Dthreads=1,2,4,8 and results go to -Dresults=target/jmh; every other
+ * argument is passed through to JMH, e.g. a benchmark regex or -p fieldsPerRecord=16.
+ */
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException
+    {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String[] threadCounts = System.getProperty("threads", "1,2,4,8").split(",");
+        File results = new File(System.getProperty("results", "target/jmh"));
+        results.mkdirs();
+
+        for (String threads: threadCounts)
+        {
+            int count = Integer.parseInt(threads.trim());
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(results, "results-" + count + "t.json").getPath())
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.example.FieldIndex;
+import org.example.InMemoryDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookups and prefix scans in one large record with hierarchical field names, driver:&lt;id&gt;:&lt;attribute&gt;,
+ * under each field index. A prefix scan selects one driver's attributes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FieldIndexBenchmark
+{
+    private static final String KEY = "fleet";
+    private static final String[] ATTRIBUTES = {"location:lat", "location:lng", "location:heading", "status", "vehicle",
+            "rating"};
+
+    @Param({"SORTED", "RADIX"})
+    public FieldIndex fieldIndex;
+
+    @Param({"1000", "100000"})
+    public int drivers;
+
+    private InMemoryDB db;
+    private String[] prefixes;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException
+    {
+        db = InMemoryDB.builder().fieldIndex(fieldIndex).build();
+        prefixes = new String[drivers];
+        for (int d = 0; d < drivers; d++)
+        {
+            prefixes[d] = "driver:" + d + ":";
+            for (String attribute: ATTRIBUTES)
+                db.setAt(KEY, prefixes[d] + attribute, "value", StoreState.NOW);
+        }
+    }
+
+    @Benchmark
+    public String getValueAt()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String field = prefixes[random.nextInt(drivers)] + ATTRIBUTES[random.nextInt(ATTRIBUTES.length)];
+        return db.getValueAt(KEY, field, StoreState.NOW);
+    }
+
+    @Benchmark
+    public void scanByPrefixAt(Blackhole blackhole)
+    {
+        String prefix = prefixes[ThreadLocalRandom.current().nextInt(drivers)];
+        db.scanByPrefixAt(KEY, prefix, StoreState.NOW, (field, value) -> {
+            blackhole.consume(field);
+            blackhole.consume(value);
+        });
+    }
+}
@@ -0,0 +1,136 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.List;
+
+import org.example.FieldIndex;
+import org.example.InMemoryDB;
+import org.example.StorageEngine;
+
+/**
+ * Compares the footprint and full-collection pauses of the storage engines, with and without field name interning.
+ * Loads --records records of --fields-per-record fields with --value-size character values, then forces
+ * --collections full collections and prints the live heap, the direct memory held by the store and the longest and
+ * mean pause. Every record uses a different mix of --schema-fields names, and every write passes a fresh copy of
+ * the name, as a server parsing requests would.
+ *
+ * Options: --engine HEAP|OFF_HEAP|both (default both), --intern-field-names true|false|both (default both),
+ * --field-index SORTED|RADIX (default SORTED), --records (default 1000000), --fields-per-record (default 16),
+ * --schema-fields (default 200), --value-size (default 32), --collections (default 5). Numbers are cleanest with
+ * one configuration per JVM and a heap big enough for the heap engine, e.g.
+ * java -Xmx16g -cp target/benchmarks.jar org.example.benchmarks.FootprintTest --engine OFF_HEAP
+ * --intern-field-names true --records 3000000.
+ */
+public class FootprintTest
+{
+    public static void main(String[] args) throws IOException
+    {
+        String engine = "both";
+        String intern = "both";
+        FieldIndex fieldIndex = FieldIndex.SORTED;
+        int records = 1_000_000;
+        int fieldsPerRecord = 16;
+        int schemaFields = 200;
+        int valueSize = 32;
+        int collections = 5;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--engine" -> engine = args[i + 1];
+                case "--intern-field-names" -> intern = args[i + 1];
+                case "--field-index" -> fieldIndex = FieldIndex.valueOf(args[i + 1]);
+                case "--records" -> records = Integer.parseInt(args[i + 1]);
+                case "--fields-per-record" -> fieldsPerRecord = Integer.parseInt(args[i + 1]);
+                case "--schema-fields" -> schemaFields = Integer.parseInt(args[i + 1]);
+                case "--value-size" -> valueSize = Integer.parseInt(args[i + 1]);
+                case "--collections" -> collections = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<StorageEngine> engines = engine.equals("both")
+                ? List.of(StorageEngine.HEAP, StorageEngine.OFF_HEAP)
+                : List.of(StorageEngine.valueOf(engine));
+        List<Boolean> interning = intern.equals("both") ? List.of(false, true) : List.of(Boolean.parseBoolean(intern));
+        if (fieldsPerRecord > schemaFields)
+            throw new IllegalArgumentException("A record cannot use more fields than the schema has");
+        for (StorageEngine storageEngine: engines)
+        {
+            for (boolean internFieldNames: interning)
+                run(storageEngine, internFieldNames, fieldIndex, records, fieldsPerRecord, schemaFields, valueSize,
+                        collections);
+        }
+    }
+
+    private static void run(StorageEngine engine, boolean internFieldNames, FieldIndex fieldIndex, int records,
+            int fieldsPerRecord, int schemaFields, int valueSize, int collections) throws IOException
+    {
+        fullCollection();
+        long heapBefore = usedHeap();
+
+        InMemoryDB.Builder builder = InMemoryDB.builder().storageEngine(engine).fieldIndex(fieldIndex);
+        if (internFieldNames)
+            builder.internFieldNames(schemaFields);
+        InMemoryDB db = builder.build();
+
+        String[] groups = {"profile", "settings", "billing", "stats", "flags"};
+        String[] schema = new String[schemaFields];
+        for (int f = 0; f < schemaFields; f++)
+            schema[f] = groups[f % groups.length] + ".attribute_" + f;
+        char[] value = new char[valueSize];
+        for (int r = 0; r < records; r++)
+        {
+            String key = "key:" + r;
+            for (int f = 0; f < fieldsPerRecord; f++)
+            {
+                value[(r + f) % valueSize] = (char) ('a' + (r + f) % 26);
+                // copy the characters too: new String(String) would share the schema name's array
+                String name = schema[(r + f * (schemaFields / fieldsPerRecord)) % schemaFields];
+                String field = new String(name.toCharArray());
+                db.setAt(key, field, new String(value), 1);
+            }
+        }
+
+        long maxPause = 0;
+        long totalPause = 0;
+        for (int i = 0; i < collections; i++)
+        {
+            long pause = fullCollection();
+            maxPause = Math.max(maxPause, pause);
+            totalPause += pause;
+        }
+        long heap = usedHeap() - heapBefore;
+        long fieldCount = (long) records * fieldsPerRecord;
+
+        System.out.printf("%-8s %-6s interned=%-5b fields=%d heap=%dMB (%d B/field) direct=%dMB"
+                + " full-gc max=%dms mean=%dms%n",
+                engine, fieldIndex, internFieldNames, fieldCount, heap >> 20, heap / fieldCount,
+                db.offHeapBytes() >> 20, maxPause, totalPause / collections);
+        Reference.reachabilityFence(db);
+    }
+
+    // Returns the collectors' reported time for one System.gc(), in milliseconds
+    private static long fullCollection()
+    {
+        long before = collectionMillis();
+        System.gc();
+        return collectionMillis() - before;
+    }
+
+    private static long collectionMillis()
+    {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(collector.getCollectionTime(), 0);
+        return millis;
+    }
+
+    private static long usedHeap()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
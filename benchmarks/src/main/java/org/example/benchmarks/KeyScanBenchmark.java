@@ -0,0 +1,69 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.example.InMemoryDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cross-record prefix scans over keys city:&lt;id&gt;:driver:&lt;id&gt;, with and without the key index. A scan
+ * selects one city's drivers, so it returns a small slice of a large key space.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyScanBenchmark
+{
+    private static final int DRIVERS_PER_CITY = 20;
+
+    @Param({"false", "true"})
+    public boolean indexKeys;
+
+    @Param({"10000", "1000000"})
+    public int records;
+
+    private InMemoryDB db;
+    private int cities;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException
+    {
+        InMemoryDB.Builder builder = InMemoryDB.builder();
+        if (indexKeys)
+            builder.indexKeys();
+        db = builder.build();
+        cities = records / DRIVERS_PER_CITY;
+        for (int i = 0; i < records; i++)
+            db.setAt("city:" + i % cities + ":driver:" + i, "status", "online", StoreState.NOW);
+    }
+
+    @Benchmark
+    public void scanKeysByPrefixAt(Blackhole blackhole)
+    {
+        String prefix = "city:" + ThreadLocalRandom.current().nextInt(cities) + ":";
+        db.scanKeysByPrefixAt(prefix, StoreState.NOW).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public void firstTenByPrefix(Blackhole blackhole)
+    {
+        db.scanKeysByPrefixAt("city:", StoreState.NOW).limit(10).forEach(blackhole::consume);
+    }
+}
@@ -0,0 +1,78 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.example.InMemoryDB;
+import org.example.LatencyMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of instrumentation on the hottest paths: compare metrics=none against a store built without metrics before
+ * they existed to check the disabled path is free, and metrics=latency to see what recording costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark
+{
+    private static final int RECORDS = 100_000;
+    private static final int FIELDS = 16;
+
+    @Param({"none", "latency"})
+    public String metrics;
+
+    private InMemoryDB db;
+    private String[] keys;
+    private String[] fields;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException
+    {
+        InMemoryDB.Builder builder = InMemoryDB.builder();
+        if (metrics.equals("latency"))
+            builder.metrics(new LatencyMetrics());
+        db = builder.build();
+
+        keys = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++)
+            keys[i] = "key:" + i;
+        fields = new String[FIELDS];
+        for (int i = 0; i < FIELDS; i++)
+            fields[i] = "f" + i;
+        for (String key: keys)
+        {
+            for (String field: fields)
+                db.setAt(key, field, "value", StoreState.NOW);
+        }
+    }
+
+    @Benchmark
+    public String getValueAt()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return db.getValueAt(keys[random.nextInt(RECORDS)], fields[random.nextInt(FIELDS)], StoreState.NOW);
+    }
+
+    @Benchmark
+    public void setAt()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        db.setAt(keys[random.nextInt(RECORDS)], fields[random.nextInt(FIELDS)], "value", StoreState.NOW);
+    }
+}
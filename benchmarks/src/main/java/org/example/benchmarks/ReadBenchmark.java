@@ -0,0 +1,83 @@
+package org.example.benchmarks;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookups and scans against a pre-filled store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark
+{
+    @Benchmark
+    public Optional<String> getAt(StoreState state)
+    {
+        return state.db.getAt(state.randomKey(), state.randomField(), StoreState.NOW);
+    }
+
+    // Run with -prof gc to check the fast path allocates nothing: gc.alloc.rate.norm should be ~0 B/op
+    @Benchmark
+    public String getValueAt(StoreState state)
+    {
+        return state.db.getValueAt(state.randomKey(), state.randomField(), StoreState.NOW);
+    }
+
+    @Benchmark
+    public Optional<String> getAtMissing(StoreState state)
+    {
+        return state.db.getAt(state.randomKey(), "missing", StoreState.NOW);
+    }
+
+    @Benchmark
+    public List<String> scanAt(StoreState state)
+    {
+        return state.db.scanAt(state.randomKey(), StoreState.NOW);
+    }
+
+    // f00 matches every field below f0100, i.e. up to 100 fields of the record
+    @Benchmark
+    public List<String> scanByPrefixAt(StoreState state)
+    {
+        return state.db.scanByPrefixAt(state.randomKey(), "f00", StoreState.NOW);
+    }
+
+    // The scans below hand out fields and values without building "field : value" strings; compare them with
+    // scanAt and scanByPrefixAt under -prof gc to see the allocations saved
+    @Benchmark
+    public void scanAtConsumer(StoreState state, Blackhole blackhole)
+    {
+        state.db.scanAt(state.randomKey(), StoreState.NOW, (field, value) -> {
+            blackhole.consume(field);
+            blackhole.consume(value);
+        });
+    }
+
+    @Benchmark
+    public void scanByPrefixAtConsumer(StoreState state, Blackhole blackhole)
+    {
+        state.db.scanByPrefixAt(state.randomKey(), "f00", StoreState.NOW, (field, value) -> {
+            blackhole.consume(field);
+            blackhole.consume(value);
+        });
+    }
+
+    @Benchmark
+    public void streamAt(StoreState state, Blackhole blackhole)
+    {
+        state.db.streamAt(state.randomKey(), StoreState.NOW).forEach(blackhole::consume);
+    }
+}
@@ -0,0 +1,213 @@
+package org.example.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+import org.example.InMemoryDB;
+import org.example.server.RespServer;
+import org.example.server.VirtualThreadServer;
+
+/**
+ * Closed-loop load test comparing the event-loop and virtual-thread servers under many concurrent connections.
+ * Each connection runs on a client virtual thread that sends one HSET or HGET at a time and waits for the reply,
+ * so latency is measured per request, not per pipeline.
+ *
+ * Options: --mode nio|virtual|both (default both), --connections (default 10000), --seconds (default 30),
+ * --read-percent (default 90), --keys (default 100000). 10k connections need about 20k file descriptors in one
+ * process, e.g. ulimit -n 65536.
+ */
+public class ServerLoadTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        String mode = "both";
+        int connections = 10_000;
+        int seconds = 30;
+        int readPercent = 90;
+        int keys = 100_000;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--mode" -> mode = args[i + 1];
+                case "--connections" -> connections = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Integer.parseInt(args[i + 1]);
+                case "--read-percent" -> readPercent = Integer.parseInt(args[i + 1]);
+                case "--keys" -> keys = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        for (String server: mode.equals("both") ? List.of("nio", "virtual") : List.of(mode))
+            run(server, connections, seconds, readPercent, keys);
+    }
+
+    private static void run(String mode, int connections, int seconds, int readPercent, int keys) throws Exception
+    {
+        InMemoryDB db = new InMemoryDB();
+        IntSupplier clock = () -> (int) (System.currentTimeMillis() / 1000);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        int port;
+        Closeable server;
+        if (mode.equals("nio"))
+        {
+            RespServer resp = new RespServer(db, address, Runtime.getRuntime().availableProcessors(), clock);
+            port = resp.port();
+            server = resp;
+        }
+        else
+        {
+            VirtualThreadServer virtual = new VirtualThreadServer(db, address, clock);
+            port = virtual.port();
+            server = virtual;
+        }
+
+        Histogram latencies = new Histogram();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+        {
+            clients.add(Thread.ofVirtual().start(() -> {
+                try (Socket socket = new Socket("127.0.0.1", port))
+                {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline)
+                    {
+                        String key = "key:" + random.nextInt(keys);
+                        byte[] request = random.nextInt(100) < readPercent
+                                ? encode("HGET", key, "field")
+                                : encode("HSET", key, "field", "value");
+                        long start = System.nanoTime();
+                        out.write(request);
+                        out.flush();
+                        readReply(in);
+                        latencies.record(System.nanoTime() - start);
+                    }
+                }
+                catch (IOException e)
+                {
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread client: clients)
+            client.join();
+        server.close();
+
+        System.out.printf("%-8s connections=%d requests=%d throughput=%.0f/s"
+                + " p50=%dus p99=%dus p99.9=%dus max=%dus errors=%d%n",
+                mode, connections, latencies.count(), latencies.count() / (double) seconds,
+                latencies.percentile(50) / 1000, latencies.percentile(99) / 1000,
+                latencies.percentile(99.9) / 1000, latencies.percentile(100) / 1000, errors.get());
+    }
+
+    private static byte[] encode(String... arguments)
+    {
+        StringBuilder request = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (String argument: arguments)
+            request.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        return request.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Reads one reply of the kinds HGET and HSET produce: an integer, a bulk string or an error
+    private static void readReply(InputStream in) throws IOException
+    {
+        int type = in.read();
+        String line = readLine(in);
+        if (type == '$' && !line.equals("-1"))
+        {
+            int length = Integer.parseInt(line) + 2;
+            while (length > 0)
+            {
+                long skipped = in.skip(length);
+                if (skipped <= 0)
+                    throw new IOException("Connection closed mid-reply");
+                length -= (int) skipped;
+            }
+        }
+        else if (type == '-' || type < 0)
+            throw new IOException("Server replied " + line);
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\r'; c = in.read())
+        {
+            if (c < 0)
+                throw new IOException("Connection closed mid-reply");
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    /**
+     * Concurrent log-linear latency histogram: 16 sub-buckets per power of two, so percentiles are within ~6%.
+     */
+    private static final class Histogram
+    {
+        private static final int SUB_BUCKET_BITS = 4;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+        private final AtomicLong count = new AtomicLong();
+
+        void record(long nanos)
+        {
+            buckets.incrementAndGet(index(Math.max(nanos, 1)));
+            count.incrementAndGet();
+        }
+
+        long count()
+        {
+            return count.get();
+        }
+
+        long percentile(double percentile)
+        {
+            long target = (long) Math.ceil(count.get() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++)
+            {
+                seen += buckets.get(i);
+                if (seen >= Math.max(target, 1))
+                    return upperBound(i);
+            }
+            return 0;
+        }
+
+        private static int index(long value)
+        {
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            if (magnitude < SUB_BUCKET_BITS)
+                return (int) value;
+            int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        private static long upperBound(int index)
+        {
+            int group = index >>> SUB_BUCKET_BITS;
+            int subBucket = index & ((1 << SUB_BUCKET_BITS) - 1);
+            if (group == 0)
+                return subBucket;
+            int magnitude = group + SUB_BUCKET_BITS - 1;
+            return ((long) ((1 << SUB_BUCKET_BITS) + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
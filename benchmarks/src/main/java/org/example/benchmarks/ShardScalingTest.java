@@ -0,0 +1,131 @@
+package org.example.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.InMemoryDB;
+import org.example.ShardedInMemoryDB;
+
+/**
+ * Measures how throughput scales with client threads, doubling them from 1 up to --max-threads, for the striped
+ * InMemoryDB shared by every thread and for ShardedInMemoryDB. Each client thread picks a random key and does an
+ * HGET or an HSET. The sharded store is driven both blocking, waiting for every operation, and pipelined, keeping
+ * up to --window operations in flight per thread.
+ *
+ * Options: --max-threads (default 64), --shards (default one per core), --seconds per run (default 5),
+ * --read-percent (default 90), --keys (default 1000000), --window (default 32).
+ */
+public class ShardScalingTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = 64;
+        int shards = Runtime.getRuntime().availableProcessors();
+        int seconds = 5;
+        int readPercent = 90;
+        int keys = 1_000_000;
+        int window = 32;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--max-threads" -> maxThreads = Integer.parseInt(args[i + 1]);
+                case "--shards" -> shards = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Integer.parseInt(args[i + 1]);
+                case "--read-percent" -> readPercent = Integer.parseInt(args[i + 1]);
+                case "--keys" -> keys = Integer.parseInt(args[i + 1]);
+                case "--window" -> window = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        scale(maxThreads, shards, seconds, readPercent, keys, window);
+    }
+
+    private static void scale(int maxThreads, int shards, int seconds, int readPercent, int keys, int window)
+            throws InterruptedException
+    {
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++)
+            names[i] = "key:" + i;
+
+        InMemoryDB striped = new InMemoryDB();
+        for (String key: names)
+            striped.setAt(key, "field", "value", StoreState.NOW);
+        try (ShardedInMemoryDB sharded = new ShardedInMemoryDB(shards))
+        {
+            for (String key: names)
+                sharded.setAt(key, "field", "value", StoreState.NOW);
+
+            System.out.printf("cores=%d shards=%d keys=%d read-percent=%d%n",
+                    Runtime.getRuntime().availableProcessors(), shards, keys, readPercent);
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                double direct = run(threads, seconds, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    String key = names[random.nextInt(names.length)];
+                    if (random.nextInt(100) < readPercent)
+                        striped.getValueAt(key, "field", StoreState.NOW);
+                    else
+                        striped.setAt(key, "field", "value", StoreState.NOW);
+                });
+                double blocking = run(threads, seconds, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    String key = names[random.nextInt(names.length)];
+                    if (random.nextInt(100) < readPercent)
+                        sharded.getValueAt(key, "field", StoreState.NOW);
+                    else
+                        sharded.setAt(key, "field", "value", StoreState.NOW);
+                });
+                double pipelined = runPipelined(threads, seconds, window, sharded, names, readPercent);
+                System.out.printf("threads=%-3d striped=%.0f/s sharded=%.0f/s sharded-pipelined=%.0f/s%n",
+                        threads, direct, blocking, pipelined);
+            }
+        }
+    }
+
+    // Runs operation in a loop on threads threads for the given time and returns operations per second
+    private static double run(int threads, int seconds, Runnable operation) throws InterruptedException
+    {
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            clients.add(Thread.ofPlatform().start(() -> {
+                long done = 0;
+                while (System.nanoTime() < deadline)
+                {
+                    operation.run();
+                    done++;
+                }
+                operations.add(done);
+            }));
+        }
+        for (Thread client: clients)
+            client.join();
+        return operations.sum() / (double) seconds;
+    }
+
+    private static double runPipelined(int threads, int seconds, int window, ShardedInMemoryDB sharded,
+            String[] names, int readPercent) throws InterruptedException
+    {
+        return run(threads, seconds, () -> {
+            // one call issues a whole window and waits for it, so in-flight work never outlives the run
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            CompletableFuture<?>[] inFlight = new CompletableFuture<?>[window];
+            for (int i = 0; i < window; i++)
+            {
+                String key = names[random.nextInt(names.length)];
+                inFlight[i] = random.nextInt(100) < readPercent
+                        ? sharded.getValueAtAsync(key, "field", StoreState.NOW)
+                        : sharded.setAtAsync(key, "field", "value", StoreState.NOW);
+            }
+            for (CompletableFuture<?> operation: inFlight)
+                operation.join();
+        }) * window;
+    }
+}
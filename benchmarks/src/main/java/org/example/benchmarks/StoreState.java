@@ -0,0 +1,75 @@
+package org.example.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.example.InMemoryDB;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A store shared by every benchmark thread, filled before each trial. Fields are named f0000, f0001, ... so the
+ * prefix benchmarks can select a fixed fraction of a record.
+ */
+@State(Scope.Benchmark)
+public class StoreState
+{
+    // Expiration far past any timestamp the benchmarks use, so TTL fields stay live for the whole run
+    static final int TTL = 1_000_000_000;
+    static final int NOW = 1_000;
+
+    @Param({"10000", "1000000"})
+    public int records;
+
+    @Param({"1", "16", "256"})
+    public int fieldsPerRecord;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    // Percentage of fields written with setWithTTL instead of setAt
+    @Param({"0", "50"})
+    public int ttlPercent;
+
+    InMemoryDB db;
+    String[] keys;
+    String[] fields;
+    String value;
+
+    @Setup(Level.Trial)
+    public void fill()
+    {
+        db = new InMemoryDB();
+        keys = new String[records];
+        for (int i = 0; i < records; i++)
+            keys[i] = "key:" + i;
+        fields = new String[fieldsPerRecord];
+        for (int i = 0; i < fieldsPerRecord; i++)
+            fields[i] = String.format("f%04d", i);
+        value = "v".repeat(valueSize);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (String key: keys)
+        {
+            for (String field: fields)
+            {
+                if (random.nextInt(100) < ttlPercent)
+                    db.setWithTTL(key, field, value, NOW, TTL);
+                else
+                    db.setAt(key, field, value, NOW);
+            }
+        }
+    }
+
+    String randomKey()
+    {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    String randomField()
+    {
+        return fields[ThreadLocalRandom.current().nextInt(fields.length)];
+    }
+}
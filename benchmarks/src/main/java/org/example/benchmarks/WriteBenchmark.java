@@ -0,0 +1,46 @@
+package org.example.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes against a pre-filled store. Every write targets an existing field, so the store keeps its size
+ * across iterations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark
+{
+    @Benchmark
+    public void setAt(StoreState state)
+    {
+        state.db.setAt(state.randomKey(), state.randomField(), state.value, StoreState.NOW);
+    }
+
+    @Benchmark
+    public void setWithTTL(StoreState state)
+    {
+        state.db.setWithTTL(state.randomKey(), state.randomField(), state.value, StoreState.NOW, StoreState.TTL);
+    }
+
+    // Puts the field back afterwards so the store does not drain; subtract setAt to get the cost of the delete
+    @Benchmark
+    public boolean deleteAt(StoreState state)
+    {
+        String key = state.randomKey();
+        String field = state.randomField();
+        boolean deleted = state.db.deleteAt(key, field, StoreState.NOW);
+        state.db.setAt(key, field, state.value, StoreState.NOW);
+        return deleted;
+    }
+}
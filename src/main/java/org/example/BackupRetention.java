@@ -0,0 +1,103 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which backups an InMemoryDB keeps once it compacts its backup store. A backup survives if any rule keeps it:
+ * it is among the newest keepLast backups, or it is the newest backup in its bucket for a tier whose window it
+ * falls in. Ages and buckets are measured in the caller's timestamps, relative to the newest backup, so for
+ * example keepOnePer(60, 3600) followed by keepOnePer(3600, 86400) keeps one backup a minute for the last hour
+ * and one an hour for the last day when timestamps are in seconds.
+ */
+public final class BackupRetention
+{
+    private final int keepLast;
+    private final int[] bucketWidths;
+    private final int[] windows;
+
+    private BackupRetention(Builder builder)
+    {
+        this.keepLast = builder.keepLast;
+        this.bucketWidths = builder.bucketWidths.stream().mapToInt(Integer::intValue).toArray();
+        this.windows = builder.windows.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static final class Builder
+    {
+        private int keepLast;
+        private final List<Integer> bucketWidths = new ArrayList<>();
+        private final List<Integer> windows = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Always keeps the newest count backups.
+         */
+        public Builder keepLast(int count)
+        {
+            if (count < 0)
+                throw new IllegalArgumentException("Backup count cannot be negative");
+            this.keepLast = count;
+            return this;
+        }
+
+        /**
+         * Keeps the newest backup of every bucketWidth-aligned bucket among the backups less than window older
+         * than the newest one. Tiers can be added in any order and overlap freely.
+         */
+        public Builder keepOnePer(int bucketWidth, int window)
+        {
+            if (bucketWidth <= 0 || window <= 0)
+                throw new IllegalArgumentException("Bucket width and window must be positive");
+            bucketWidths.add(bucketWidth);
+            windows.add(window);
+            return this;
+        }
+
+        public BackupRetention build()
+        {
+            if (keepLast == 0 && bucketWidths.isEmpty())
+                throw new IllegalArgumentException("Retention must keep at least one backup");
+            return new BackupRetention(this);
+        }
+    }
+
+    /**
+     * Marks which of timestamps, which must be in ascending order, to keep. The newest is always kept.
+     */
+    boolean[] select(int[] timestamps)
+    {
+        int count = timestamps.length;
+        boolean[] keep = new boolean[count];
+        if (count == 0)
+            return keep;
+
+        for (int i = Math.max(0, count - Math.max(keepLast, 1)); i < count; i++)
+            keep[i] = true;
+
+        long newest = timestamps[count - 1];
+        for (int tier = 0; tier < bucketWidths.length; tier++)
+        {
+            // walk newest first, keeping the first backup seen in each bucket
+            long previousBucket = Long.MAX_VALUE;
+            for (int i = count - 1; i >= 0 && newest - timestamps[i] < windows[tier]; i--)
+            {
+                long bucket = Math.floorDiv(timestamps[i], bucketWidths[tier]);
+                if (bucket != previousBucket)
+                {
+                    keep[i] = true;
+                    previousBucket = bucket;
+                }
+            }
+        }
+        return keep;
+    }
+}
@@ -0,0 +1,22 @@
+package org.example;
+
+/**
+ * How a memory-bounded InMemoryDB picks what to drop once its estimated footprint exceeds the configured limit.
+ * Every policy works from a handful of random samples or the head of the expiry wheel, so each eviction costs
+ * O(1) amortized on the write path that triggered it.
+ */
+public enum EvictionPolicy
+{
+    /** Evicts the least recently used of a few sampled records, approximating LRU the way Redis does. */
+    LRU,
+
+    /**
+     * Evicts the least frequently used of a few sampled records, using a TinyLFU frequency sketch. A newly
+     * created record is only admitted if it is at least as frequent as the victim, so one-off keys cannot
+     * flush out popular ones.
+     */
+    LFU,
+
+    /** Evicts the TTL fields closest to expiring first, falling back to LRU when no field has a TTL. */
+    VOLATILE_TTL
+}
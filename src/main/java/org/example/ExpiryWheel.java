@@ -0,0 +1,231 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hierarchical timing wheel driven by the logical timestamps callers pass to InMemoryDB.
+ * Each level has 64 slots; level n slots span 64^n ticks, so six levels cover the whole int range.
+ * Scheduling is a lock-free push, and advancing touches only the slots the clock moved across,
+ * so each deadline costs amortized O(1) no matter how far the clock jumps.
+ */
+final class ExpiryWheel<T>
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final int BACKLOG_BATCH = 256;
+
+    private static final class Node<T>
+    {
+        final T item;
+        final long deadline;
+        Node<T> next;
+
+        Node(T item, long deadline)
+        {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Node<T>[][] wheel;
+    private final AtomicReference<Node<T>> pending = new AtomicReference<>();
+    private final ReentrantLock advanceLock = new ReentrantLock();
+    private final Consumer<? super T> onExpired;
+    private volatile long currentTime = Integer.MIN_VALUE;
+
+    // Items handed over in bulk by reset; drained a batch per advance so reset itself stays O(1)
+    private volatile Iterator<? extends T> backlog;
+    private ToLongFunction<? super T> backlogDeadline;
+
+    @SuppressWarnings("unchecked")
+    ExpiryWheel(Consumer<? super T> onExpired)
+    {
+        this.wheel = (Node<T>[][]) new Node<?>[LEVELS][SLOTS];
+        this.onExpired = onExpired;
+    }
+
+    /**
+     * Registers item to be handed to the expiry callback once the clock reaches deadline.
+     */
+    void schedule(T item, long deadline)
+    {
+        Node<T> node = new Node<>(item, deadline);
+        Node<T> head;
+        do
+        {
+            head = pending.get();
+            node.next = head;
+        } while (!pending.compareAndSet(head, node));
+    }
+
+    /**
+     * Moves the clock forward to now and fires every deadline at or before it. Calls that would not
+     * move the clock and have no backlog to drain, or that race with another advancing thread, return
+     * immediately.
+     */
+    void advance(long now)
+    {
+        if ((now <= currentTime && backlog == null) || !advanceLock.tryLock())
+            return;
+        try
+        {
+            long previous = currentTime;
+            drainBacklog(Math.max(now, previous));
+            if (now <= previous)
+                return;
+            currentTime = now;
+
+            for (Node<T> node = pending.getAndSet(null); node != null; )
+            {
+                Node<T> next = node.next;
+                place(node, now);
+                node = next;
+            }
+
+            for (int level = 0; level < LEVELS; level++)
+            {
+                int shift = level * SLOT_BITS;
+                long from = previous >> shift;
+                long to = now >> shift;
+                if (from == to)
+                    break;
+
+                for (long tick = Math.max(from + 1, to - MASK); tick <= to; tick++)
+                {
+                    int slot = (int) (tick & MASK);
+                    Node<T> node = wheel[level][slot];
+                    wheel[level][slot] = null;
+                    while (node != null)
+                    {
+                        Node<T> next = node.next;
+                        place(node, now);
+                        node = next;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            advanceLock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything placed on the wheel and restarts the clock at now, which may be behind the current time.
+     * install runs while no deadline can fire; backlog items are scheduled lazily over the following advances.
+     * Pushes still pending are kept: their deadlines are in the same time base, so at worst they fire as no-ops.
+     */
+    void reset(long now, Runnable install, Iterator<? extends T> backlog, ToLongFunction<? super T> deadline)
+    {
+        advanceLock.lock();
+        try
+        {
+            install.run();
+            for (Node<T>[] level: wheel)
+                Arrays.fill(level, null);
+            currentTime = now;
+            this.backlog = backlog;
+            this.backlogDeadline = deadline;
+        }
+        finally
+        {
+            advanceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns an item from the earliest non-empty slot, or null if nothing is scheduled. Order is
+     * exact within the first 64 ticks and approximate beyond, which is enough to pick eviction victims. A backlog
+     * left by reset is drained a batch per call, and until something lands on the wheel when it is empty, so its
+     * items are candidates too.
+     */
+    T pollSoonest()
+    {
+        advanceLock.lock();
+        try
+        {
+            long now = currentTime;
+            for (Node<T> node = pending.getAndSet(null); node != null; )
+            {
+                Node<T> next = node.next;
+                place(node, now);
+                node = next;
+            }
+
+            drainBacklog(now);
+            T soonest = takeSoonest(now);
+            while (soonest == null && backlog != null)
+            {
+                drainBacklog(now);
+                soonest = takeSoonest(now);
+            }
+            return soonest;
+        }
+        finally
+        {
+            advanceLock.unlock();
+        }
+    }
+
+    private T takeSoonest(long now)
+    {
+        for (int level = 0; level < LEVELS; level++)
+        {
+            long tick = now >> (level * SLOT_BITS);
+            for (int i = 1; i <= SLOTS; i++)
+            {
+                int slot = (int) ((tick + i) & MASK);
+                Node<T> head = wheel[level][slot];
+                if (head != null)
+                {
+                    wheel[level][slot] = head.next;
+                    return head.item;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void drainBacklog(long now)
+    {
+        Iterator<? extends T> items = backlog;
+        if (items == null)
+            return;
+
+        for (int i = 0; i < BACKLOG_BATCH; i++)
+        {
+            if (!items.hasNext())
+            {
+                backlog = null;
+                return;
+            }
+            T item = items.next();
+            place(new Node<>(item, backlogDeadline.applyAsLong(item)), now);
+        }
+    }
+
+    private void place(Node<T> node, long now)
+    {
+        long delta = node.deadline - now;
+        if (delta <= 0)
+        {
+            onExpired.accept(node.item);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+
+        int slot = (int) ((node.deadline >> (level * SLOT_BITS)) & MASK);
+        node.next = wheel[level][slot];
+        wheel[level][slot] = node;
+    }
+}
@@ -0,0 +1,21 @@
+package org.example;
+
+/**
+ * How an InMemoryDB indexes the fields of each record. Both answer every operation the same way, snapshots and
+ * version history included; they differ in what lookups, prefix scans and field names cost.
+ */
+public enum FieldIndex
+{
+    /**
+     * A sorted array for records of up to 16 fields and a balanced tree above that. Lookups and seeks cost
+     * O(log n) comparisons, and scans hand out the field names the store already holds.
+     */
+    SORTED,
+
+    /**
+     * A path-compressed radix tree, for hierarchical field names such as driver:123:location:lat. Shared prefixes
+     * are stored once per record, and lookups and prefix seeks cost O(name length) however large the record is,
+     * but scans build each field name they visit and field name interning no longer applies.
+     */
+    RADIX
+}
@@ -0,0 +1,36 @@
+package org.example;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of field names, so records sharing a schema point at one String per name instead of each
+ * keeping the copy its caller parsed. Unlike String.intern, the dictionary belongs to one store and is bounded:
+ * once it holds maxNames names, names it has not seen are stored as given, so a workload with unbounded field names
+ * cannot grow it without limit.
+ */
+final class FieldNameDictionary
+{
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private final int maxNames;
+
+    FieldNameDictionary(int maxNames)
+    {
+        this.maxNames = maxNames;
+    }
+
+    String intern(String name)
+    {
+        String canonical = names.get(name);
+        if (canonical != null)
+            return canonical;
+        if (names.size() >= maxNames)
+            return name;
+        canonical = names.putIfAbsent(name, name);
+        return canonical == null ? name : canonical;
+    }
+
+    int size()
+    {
+        return names.size();
+    }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+/**
+ * Count-min sketch of 4-bit counters used for TinyLFU admission. Counters are packed sixteen to a long and
+ * all halved once the number of increments reaches ten times the table size, so old popularity fades.
+ * Updates are not atomic; a lost increment under contention only makes the estimate slightly lower.
+ */
+final class FrequencySketch
+{
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedKeys)
+    {
+        int size = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++)
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xF));
+        return frequency;
+    }
+
+    void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+        {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            long counter = (table[index] >>> offset) & 0xF;
+            if (counter < 15)
+            {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) ((h + (h >>> 32)) & tableMask);
+    }
+
+    private static int offsetOf(int hash, int row)
+    {
+        // each row uses its own nibble of the long, picked from a different part of the hash
+        return (((hash >>> (row << 3)) & 3) << 2) + (row << 4);
+    }
+
+    private static int spread(int h)
+    {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
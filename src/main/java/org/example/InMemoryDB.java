@@ -1,169 +1,1926 @@
 package org.example;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class InMemoryDB {
+public class InMemoryDB implements AutoCloseable {
 
-    private final Map<String, Map<String, ValueWithTTL>> dataStore;
-    private final TreeMap<Integer, Map<String, Map<String, ValueWithTTL>>> backupStore;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
 
-    private static class ValueWithTTL{
+    private static final int EVICTION_SAMPLES = 5;
+    private static final int MAX_EVICTIONS_PER_WRITE = 16;
+    // Request index getManyAt and setManyAt set once a request is handled; never a real index
+    private static final int DONE = -1;
 
-        final String value;
+    // Keys are spread over lock stripes, each holding an immutable hash trie of records. Readers only do a
+    // volatile read of the trie root; writers to a stripe serialize on its lock, which also makes dropping an
+    // emptied record atomic with respect to a concurrent insert into it.
+    private final Stripe[] dataStore;
+    private final ConcurrentSkipListMap<Integer, Snapshot> backupStore;
+    private final ExpiryWheel<ExpiringField> expiryWheel;
+
+    // Bumped by backup and restore while every stripe lock is held; records stamped with an older generation may be
+    // shared with a snapshot and are copied before their first write. Only read with a stripe lock held.
+    private int generation;
+
+    // Expiration times are stored in the time base of the snapshot the live state descends from. Callers'
+    // timestamps are shifted by this offset, which restore moves instead of rewriting every ValueWithTTL.
+    private volatile int timeOffset;
+
+    // Null when the store is not durable, and while a log is being replayed into it
+    private WriteAheadLog wal;
+    private boolean replaying;
+
+    // Estimated footprint and field count of the live records, only changed with the owning stripe lock held
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong fieldCount = new AtomicLong();
+    private final long maxMemoryBytes;
+    private final EvictionPolicy evictionPolicy;
+    private final FrequencySketch frequencySketch;
+
+    // Version history kept per field: -1 when the store keeps none, otherwise how far back reads can go
+    private final int versionRetention;
+    private final int maxVersions;
+
+    // Where values live: ValueWithTTL.ON_HEAP, or the slabs of an OffHeapValues
+    private final ValueWithTTL.Factory values;
+    // Null unless field names are interned
+    private final FieldNameDictionary fieldNames;
+    // Null when the store is not instrumented, which skips even reading the clock
+    private final MetricsRecorder metrics;
+    // Every new record starts from this, which fixes the layout of its fields
+    private final PersistentNavigableMap<String, ValueWithTTL> emptyFields;
+    // Whether each stripe keeps its keys in order too
+    private final boolean indexKeys;
+
+    // Held while backups are added, dropped or restored from, so the log records them in the order they happened
+    private final ReentrantLock backupLock = new ReentrantLock();
+    private final BackupRetention backupRetention;
+    private ScheduledExecutorService compactor;
+    private final AtomicLong droppedBackups = new AtomicLong();
+    private final AtomicLong reclaimedBackupBytes = new AtomicLong();
+
+    static class ValueWithTTL{
+
+        // Version of fields in a store that keeps no history; every read sees it
+        static final int NO_VERSION = Integer.MIN_VALUE;
+        // Expiration time of a field without a TTL. Store time goes negative after restoring an older backup, so
+        // this must lie beyond any time a TTL can reach, which expiration() keeps below it
+        static final int NEVER_EXPIRES = Integer.MAX_VALUE;
+        static final ValueWithTTL[] NO_HISTORY = new ValueWithTTL[0];
+
+        /** Creates the values a store holds, on the heap or in an off-heap slab depending on its engine. */
+        interface Factory
+        {
+            ValueWithTTL create(String value, int expirationTime, int version, boolean deleted, ValueWithTTL[] history);
+        }
+
+        static final Factory ON_HEAP = ValueWithTTL::new;
+
+        // Read through value(); null when a subclass keeps the value elsewhere
+        private final String value;
         final int expirationTime;
+        // Store time the value was written at
+        final int version;
+        // A tombstone: the field was deleted at version
+        final boolean deleted;
+        // Older versions of the field, oldest first, without histories of their own. Never modified once published.
+        final ValueWithTTL[] history;
+
+        ValueWithTTL(String value, int expirationTime, int version, boolean deleted, ValueWithTTL[] history)
+        {
+            this.value=value;
+            this.expirationTime=expirationTime;
+            this.version=version;
+            this.deleted=deleted;
+            this.history=history;
+        }
+
+        String value()
+        {
+            return value;
+        }
+
+        // Estimated bytes the value itself takes
+        int valueBytes()
+        {
+            return value == null ? 0 : value.length();
+        }
+
+        boolean sameValue(ValueWithTTL other)
+        {
+            return value == other.value && getClass() == other.getClass();
+        }
+
+        boolean isExpired(int currentTime)
+        {
+            return expirationTime < currentTime;
+        }
+
+        /**
+         * Returns the version a read at currentTime sees: the newest written at or before it, or null if there is
+         * none or it was deleted or had expired by then. O(1) for reads at or after the newest version, otherwise a
+         * binary search of the history.
+         */
+        ValueWithTTL at(int currentTime)
+        {
+            ValueWithTTL visible = this;
+            if (version > currentTime)
+            {
+                visible = null;
+                int low = 0;
+                int high = history.length - 1;
+                while (low <= high)
+                {
+                    int middle = (low + high) >>> 1;
+                    if (history[middle].version <= currentTime)
+                    {
+                        visible = history[middle];
+                        low = middle + 1;
+                    }
+                    else
+                        high = middle - 1;
+                }
+            }
+            return visible == null || visible.deleted || visible.isExpired(currentTime) ? null : visible;
+        }
+
+        // Whether other is this version, possibly republished with a different history
+        boolean isSameVersion(ValueWithTTL other)
+        {
+            return other != null && sameValue(other) && expirationTime == other.expirationTime
+                    && version == other.version && deleted == other.deleted;
+        }
+
+        ValueWithTTL withHistory(ValueWithTTL[] history)
+        {
+            return new ValueWithTTL(value, expirationTime, version, deleted, history);
+        }
+
+    }
+
+    private static class ExpiringField{
+
+        final String key;
+        final String field;
+        final ValueWithTTL value;
+
+        ExpiringField(String key, String field, ValueWithTTL value)
+        {
+            this.key=key;
+            this.field=field;
+            this.value=value;
+        }
+
+    }
+
+    // Lazily yields the fields of one version of a record that are visible at now, in field order: those starting
+    // with prefix, after the field named after, or from the first such field when after is null
+    private static class VisibleFields implements Iterator<Map.Entry<String, String>>{
+
+        private final Iterator<Map.Entry<String, ValueWithTTL>> fields;
+        private final String prefix;
+        private final String after;
+        private final int now;
+        private Map.Entry<String, String> next;
+
+        VisibleFields(PersistentNavigableMap<String, ValueWithTTL> fields, String prefix, String after, int now)
+        {
+            this.fields=fields.tailIterator(after != null && after.compareTo(prefix) > 0 ? after : prefix);
+            this.prefix=prefix;
+            this.after=after;
+            this.now=now;
+            advance();
+        }
+
+        private void advance()
+        {
+            next = null;
+            while (fields.hasNext())
+            {
+                Map.Entry<String, ValueWithTTL> entry = fields.next();
+                String field = entry.getKey();
+                if (!field.startsWith(prefix))
+                    return;
+                ValueWithTTL visible = field.equals(after) ? null : entry.getValue().at(now);
+                if (visible != null)
+                {
+                    next = new AbstractMap.SimpleImmutableEntry<>(field, visible.value());
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+            Map.Entry<String, String> entry = next;
+            advance();
+            return entry;
+        }
+
+    }
+
+    // Merges the stripes' key indexes in key order, yielding the keys under prefix whose records are visible at now
+    private static class KeyScan implements Iterator<String>{
+
+        private final PriorityQueue<StripeKeys> stripes = new PriorityQueue<>(STRIPES);
+        private final String prefix;
+        private final int now;
+        private String next;
+
+        KeyScan(Stripe[] dataStore, String prefix, String after, int now)
+        {
+            this.prefix=prefix;
+            this.now=now;
+            String from = after != null && after.compareTo(prefix) > 0 ? after : prefix;
+            for (Stripe stripe: dataStore)
+            {
+                // keys before records: a key added since is then always found with its record
+                StripeKeys keys = new StripeKeys(stripe.keys.tailIterator(from), stripe.records);
+                boolean more = keys.advance(prefix);
+                if (more && keys.key.equals(after))
+                    more = keys.advance(prefix);
+                if (more)
+                    stripes.add(keys);
+            }
+            advance();
+        }
+
+        private void advance()
+        {
+            next = null;
+            while (next == null && !stripes.isEmpty())
+            {
+                StripeKeys head = stripes.poll();
+                // a key whose record is gone was removed while the stripe was being read
+                Record record = head.records.get(head.key);
+                if (record != null && hasVisibleField(record, now))
+                    next = head.key;
+                if (head.advance(prefix))
+                    stripes.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public String next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+            String key = next;
+            advance();
+            return key;
+        }
+
+    }
+
+    private static class StripeKeys implements Comparable<StripeKeys>{
+
+        final Iterator<Map.Entry<String, Boolean>> keys;
+        final PersistentHashMap<String, Record> records;
+        String key;
+
+        StripeKeys(Iterator<Map.Entry<String, Boolean>> keys, PersistentHashMap<String, Record> records)
+        {
+            this.keys=keys;
+            this.records=records;
+        }
+
+        // Moves to the next key and returns whether it is still under prefix
+        boolean advance(String prefix)
+        {
+            key = keys.hasNext() ? keys.next().getKey() : null;
+            return key != null && key.startsWith(prefix);
+        }
+
+        @Override
+        public int compareTo(StripeKeys other)
+        {
+            return key.compareTo(other.key);
+        }
+
+    }
+
+    static class Record{
+
+        // Rough per-object costs of a record's trie slot and skip list, and of a field's node, entry and strings
+        private static final long RECORD_OVERHEAD = 128;
+        private static final long FIELD_OVERHEAD = 96;
+        private static final long VERSION_OVERHEAD = 40;
+        private static final int MAX_SKETCHED_RECORDS = 1 << 26;
+
+        final int generation;
+        // Replaced with the stripe lock held, never modified, so a reader works on one consistent version of it
+        volatile PersistentNavigableMap<String, ValueWithTTL> fields;
+        // Only changed with the stripe lock held
+        long bytes;
+        // Timestamp of the last operation on the record, for LRU eviction; racy updates are fine
+        int lastAccess;
+
+        Record(int generation, PersistentNavigableMap<String, ValueWithTTL> fields, long bytes)
+        {
+            this.generation=generation;
+            this.fields=fields;
+            this.bytes=bytes;
+        }
+
+        static long estimate(String key)
+        {
+            return RECORD_OVERHEAD + key.length();
+        }
+
+        // Most records that fit in maxBytes, each with one field and nothing else, capped so a huge limit does not
+        // make a huge frequency sketch
+        static int maxRecords(long maxBytes)
+        {
+            return (int) Math.min(maxBytes / (RECORD_OVERHEAD + FIELD_OVERHEAD), MAX_SKETCHED_RECORDS);
+        }
+
+        static long estimate(String field, ValueWithTTL value)
+        {
+            long bytes = FIELD_OVERHEAD + field.length() + value.valueBytes();
+            for (ValueWithTTL older: value.history)
+                bytes += VERSION_OVERHEAD + older.valueBytes();
+            return bytes;
+        }
+
+        void put(String field, ValueWithTTL value)
+        {
+            ValueWithTTL previous = fields.get(field);
+            fields = fields.put(field, value);
+            bytes += estimate(field, value) - (previous == null ? 0 : estimate(field, previous));
+        }
+
+        void remove(String field)
+        {
+            ValueWithTTL previous = fields.get(field);
+            if (previous == null)
+                return;
+            fields = fields.remove(field);
+            bytes -= estimate(field, previous);
+        }
+
+    }
+
+    private static class Stripe{
+
+        final ReentrantLock lock = new ReentrantLock();
+        volatile PersistentHashMap<String, Record> records = PersistentHashMap.empty();
+        // The keys of records in order, when the store indexes keys. Changed with the lock held, right after records.
+        volatile PersistentSortedMap<String, Boolean> keys = PersistentSortedMap.empty();
+
+    }
+
+    static class Snapshot{
+
+        final PersistentHashMap<String, Record>[] roots;
+        // Each stripe's key index, or null when the snapshot was taken without one
+        final PersistentSortedMap<String, Boolean>[] keys;
+        final int storeTime;
+        final int recordCount;
+        final long usedBytes;
+        final long fieldCount;
+        // Write-ahead log offset just past the backup entry, or 0 when the store is not logged
+        final long logOffset;
+
+        Snapshot(PersistentHashMap<String, Record>[] roots, PersistentSortedMap<String, Boolean>[] keys, int storeTime,
+                int recordCount, long usedBytes, long fieldCount, long logOffset)
+        {
+            this.roots=roots;
+            this.keys=keys;
+            this.storeTime=storeTime;
+            this.recordCount=recordCount;
+            this.usedBytes=usedBytes;
+            this.fieldCount=fieldCount;
+            this.logOffset=logOffset;
+        }
+
+    }
+
+    /**
+     * Options for creating an InMemoryDB beyond the plain in-memory default.
+     */
+    public static class Builder{
+
+        private WriteAheadLog writeAheadLog;
+        private Path snapshotFile;
+        private long maxMemoryBytes;
+        private EvictionPolicy evictionPolicy;
+        private int versionRetention = -1;
+        private int maxVersions = 1;
+        private BackupRetention backupRetention;
+        private long compactionIntervalMillis;
+        private StorageEngine storageEngine = StorageEngine.HEAP;
+        private int maxFieldNames;
+        private MetricsRecorder metrics;
+        private FieldIndex fieldIndex = FieldIndex.SORTED;
+        private boolean indexKeys;
+
+        /**
+         * Replays wal into the new store and logs every later setAt, setWithTTL, deleteAt, backup and restore to it.
+         */
+        public Builder writeAheadLog(WriteAheadLog wal)
+        {
+            this.writeAheadLog=wal;
+            return this;
+        }
+
+        /**
+         * Starts from a snapshot file written by {@link InMemoryDB#backup(int, Path)}. Combined with a write-ahead
+         * log, only the part of the log written after the snapshot is replayed, unless that part restores a backup
+         * taken before the snapshot; then the whole log is.
+         */
+        public Builder snapshotFile(Path snapshotFile)
+        {
+            this.snapshotFile=snapshotFile;
+            return this;
+        }
+
+        /**
+         * Caps the estimated bytes held by keys, fields and values of the live records; writes that push the store
+         * over the cap evict according to policy. Snapshots kept for restore are not counted.
+         */
+        public Builder maxMemory(long bytes, EvictionPolicy policy)
+        {
+            if (bytes <= 0 || policy == null)
+                throw new IllegalArgumentException("Memory limit must be positive and have an eviction policy");
+            this.maxMemoryBytes=bytes;
+            this.evictionPolicy=policy;
+            return this;
+        }
+
+        /**
+         * Keeps a history of every field so getAt and the scans answer as of their timestamp rather than with the
+         * latest write. Versions are kept while they can still be read at a timestamp within retention of the
+         * field's latest write, and at most maxVersions per field. Without this, writes replace the field outright
+         * and reads ignore when it was written.
+         */
+        public Builder versionHistory(int retention, int maxVersions)
+        {
+            if (retention < 0 || maxVersions < 1)
+                throw new IllegalArgumentException(
+                        "Retention cannot be negative and at least one version must be kept");
+            this.versionRetention=retention;
+            this.maxVersions=maxVersions;
+            return this;
+        }
+
+        /**
+         * Limits which backups are kept for restore. Every compactionIntervalMillis a background thread drops the
+         * backups retention no longer keeps; with an interval of 0 that only happens when
+         * {@link InMemoryDB#compactBackups()} is called.
+         */
+        public Builder backupRetention(BackupRetention retention, long compactionIntervalMillis)
+        {
+            if (retention == null || compactionIntervalMillis < 0)
+                throw new IllegalArgumentException("Retention cannot be null and the interval cannot be negative");
+            this.backupRetention=retention;
+            this.compactionIntervalMillis=compactionIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Chooses where field values are stored; {@link StorageEngine#HEAP} by default.
+         */
+        public Builder storageEngine(StorageEngine engine)
+        {
+            if (engine == null)
+                throw new IllegalArgumentException("Storage engine cannot be null");
+            this.storageEngine=engine;
+            return this;
+        }
+
+        /**
+         * Chooses how each record's fields are indexed; {@link FieldIndex#SORTED} by default.
+         */
+        public Builder fieldIndex(FieldIndex index)
+        {
+            if (index == null)
+                throw new IllegalArgumentException("Field index cannot be null");
+            this.fieldIndex=index;
+            return this;
+        }
+
+        /**
+         * Keeps the keys in sorted order as well, so {@link #scanKeysByPrefixAt(String, int)} seeks to its prefix
+         * instead of going through every record. Costs a tree node per record, and creating or dropping a record
+         * updates the tree.
+         */
+        public Builder indexKeys()
+        {
+            this.indexKeys=true;
+            return this;
+        }
+
+        /**
+         * Stores one shared instance of each field name, up to maxNames distinct names, instead of the String every
+         * write was given. Worth it when many records share a schema and callers parse fresh names per request.
+         */
+        public Builder internFieldNames(int maxNames)
+        {
+            if (maxNames <= 0)
+                throw new IllegalArgumentException("Field name limit must be positive");
+            this.maxFieldNames=maxNames;
+            return this;
+        }
+
+        /**
+         * Reports every operation's latency and every lookup's outcome to recorder, e.g. a {@link LatencyMetrics}.
+         */
+        public Builder metrics(MetricsRecorder recorder)
+        {
+            if (recorder == null)
+                throw new IllegalArgumentException("Metrics recorder cannot be null");
+            this.metrics=recorder;
+            return this;
+        }
+
+        public InMemoryDB build() throws IOException
+        {
+            InMemoryDB db = new InMemoryDB(this);
+            long logOffset = 0;
+            if (snapshotFile != null)
+                logOffset = db.installFile(snapshotFile).logOffset;
+            if (writeAheadLog != null)
+            {
+                try
+                {
+                    db.attach(writeAheadLog, logOffset);
+                }
+                catch (IllegalStateException e)
+                {
+                    if (logOffset == 0)
+                        throw e;
+                    // The tail restores a backup taken before the snapshot, which the file does not hold. Every
+                    // restore in the log once succeeded, and the log goes back to the start, so replaying all of it
+                    // rebuilds the same state with every backup it had.
+                    db = new InMemoryDB(this);
+                    db.attach(writeAheadLog, 0);
+                }
+            }
+            if (backupRetention != null && compactionIntervalMillis > 0)
+                db.startCompactor(compactionIntervalMillis);
+            return db;
+        }
+
+    }
+
+    public InMemoryDB()
+    {
+        this(new Builder());
+    }
+
+    /**
+     * Creates a store that first replays wal and then logs every setAt, setWithTTL, deleteAt, backup and restore
+     * to it before applying them.
+     */
+    // Replay goes through the public write methods before a subclass's constructor has run, which is what a
+    // subclass gets for overriding them
+    @SuppressWarnings("this-escape")
+    public InMemoryDB(WriteAheadLog wal) throws IOException
+    {
+        this();
+        attach(wal, 0);
+    }
+
+    private InMemoryDB(Builder builder)
+    {
+        this.dataStore= new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            dataStore[i] = new Stripe();
+        this.backupStore=new ConcurrentSkipListMap<>();
+        this.expiryWheel=new ExpiryWheel<>(this::reclaim);
+        this.maxMemoryBytes=builder.maxMemoryBytes;
+        this.evictionPolicy=builder.evictionPolicy;
+        this.frequencySketch=evictionPolicy == EvictionPolicy.LFU
+                ? new FrequencySketch(Record.maxRecords(maxMemoryBytes))
+                : null;
+        this.versionRetention=builder.versionRetention;
+        this.maxVersions=builder.maxVersions;
+        this.backupRetention=builder.backupRetention;
+        this.values=builder.storageEngine == StorageEngine.OFF_HEAP ? new OffHeapValues() : ValueWithTTL.ON_HEAP;
+        // a radix index keeps names as characters along its paths, so there are no Strings left to share
+        this.fieldNames=builder.maxFieldNames > 0 && builder.fieldIndex == FieldIndex.SORTED
+                ? new FieldNameDictionary(builder.maxFieldNames)
+                : null;
+        this.emptyFields=builder.fieldIndex == FieldIndex.RADIX
+                ? PersistentRadixMap.empty()
+                : PersistentSortedMap.empty();
+        this.indexKeys=builder.indexKeys;
+        this.metrics=builder.metrics;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Creates a store from a snapshot file written by {@link #backup(int, Path)}, with the file's state both live
+     * and available to restore.
+     */
+    public static InMemoryDB load(Path snapshotFile) throws IOException
+    {
+        return builder().snapshotFile(snapshotFile).build();
+    }
+
+    /**
+     * Like {@link #load(Path)}, then replays only the part of wal written after the snapshot was taken and keeps
+     * logging to it. Should that part restore a backup taken before the snapshot, which the file does not hold, the
+     * whole of wal is replayed instead, so startup is slower but the state is the same.
+     */
+    public static InMemoryDB load(Path snapshotFile, WriteAheadLog wal) throws IOException
+    {
+        return builder().snapshotFile(snapshotFile).writeAheadLog(wal).build();
+    }
+
+    private Snapshot installFile(Path snapshotFile) throws IOException
+    {
+        SnapshotFile.Contents contents = SnapshotFile.read(snapshotFile, STRIPES, this::stripeIndex, values,
+                fieldNames == null ? UnaryOperator.identity() : fieldNames::intern, emptyFields);
+        Snapshot snapshot = indexKeys ? withKeyIndex(contents.snapshot) : contents.snapshot;
+        install(snapshot, contents.timestamp - snapshot.storeTime, null);
+        backupStore.put(contents.timestamp, snapshot);
+        return snapshot;
+    }
+
+    // Snapshot files hold no key index, so one is built from the loaded records
+    @SuppressWarnings("unchecked")
+    private static Snapshot withKeyIndex(Snapshot snapshot)
+    {
+        PersistentSortedMap<String, Boolean>[] keys =
+                (PersistentSortedMap<String, Boolean>[]) new PersistentSortedMap<?, ?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+        {
+            String[] sorted = new String[snapshot.roots[i].size()];
+            int count = 0;
+            for (Map.Entry<String, Record> entry: snapshot.roots[i])
+                sorted[count++] = entry.getKey();
+            Arrays.sort(sorted);
+            Boolean[] present = new Boolean[count];
+            Arrays.fill(present, Boolean.TRUE);
+            keys[i] = PersistentSortedMap.ofSorted(sorted, present, count);
+        }
+        return new Snapshot(snapshot.roots, keys, snapshot.storeTime, snapshot.recordCount, snapshot.usedBytes,
+                snapshot.fieldCount, snapshot.logOffset);
+    }
+
+    private void attach(WriteAheadLog wal, long fromOffset) throws IOException
+    {
+        // evictions are in the log, so replaying must not make its own random choices
+        replaying = true;
+        try
+        {
+            wal.replay(this, fromOffset);
+        }
+        finally
+        {
+            replaying = false;
+        }
+        this.wal=wal;
+    }
+
+    public void setAt(String key, String field, String value, int timestamp)
+    {
+        if(key == null || field == null)
+            throw new IllegalArgumentException("Key and Field cannot be null");
+
+        long started = startTimer();
+        expiryWheel.advance(timestamp - timeOffset);
+        byte[] logEntry = wal == null ? null : WriteAheadLog.encodeSet(key, field, value, timestamp);
+        long logSequence = put(key, field, value, false, 0, timestamp, logEntry);
+        awaitDurable(logSequence);
+        stopTimer(MetricsRecorder.Operation.SET, started);
+    }
+
+    public void setWithTTL(String key,String field, String value, int timestamp, int ttl)
+    {
+        if(key == null || field == null)
+            throw new IllegalArgumentException("Invalid Parameter");
+
+        long started = startTimer();
+        expiryWheel.advance(timestamp - timeOffset);
+        byte[] logEntry = wal == null ? null : WriteAheadLog.encodeSetWithTTL(key, field, value, timestamp, ttl);
+        long logSequence = put(key, field, value, true, ttl, timestamp, logEntry);
+        awaitDurable(logSequence);
+        stopTimer(MetricsRecorder.Operation.SET_WITH_TTL, started);
+    }
+
+    private Stripe stripeFor(String key)
+    {
+        return dataStore[stripeIndex(key)];
+    }
+
+    private int stripeIndex(String key)
+    {
+        // take the stripe from the high bits so the trie inside it still sees well-distributed low bits
+        return (key.hashCode() * 0x9E3779B9) >>> (32 - STRIPE_BITS);
+    }
+
+    // Appends logEntry under the stripe lock so the log orders writes to a key the same way they were applied.
+    // The store time, expiration and version come from the time offset read under the lock too, which restore
+    // cannot move until it is released, so the write matches what replaying its log entry does.
+    // Returns the log sequence to wait on, or 0 when nothing was logged.
+    private long put(String key, String field, String value, boolean expires, int ttl, int timestamp,
+            byte[] logEntry)
+    {
+        Stripe stripe = stripeFor(key);
+        long logSequence;
+        boolean created;
+        stripe.lock.lock();
+        try
+        {
+            logSequence = logEntry == null ? 0 : wal.append(logEntry);
+            int now = timestamp - timeOffset;
+            int expirationTime = expires ? expiration(now, ttl) : ValueWithTTL.NEVER_EXPIRES;
+            ValueWithTTL written = version(value, expirationTime, false, now);
+            Record record = stripe.records.get(key);
+            long bytesBefore = record == null ? 0 : record.bytes;
+            int fieldsBefore = record == null ? 0 : record.fields.size();
+            Record writable = writable(key, record);
+            write(writable, field, written, now);
+            touch(key, writable, timestamp);
+            publish(stripe, key, record, writable, bytesBefore, fieldsBefore);
+            created = record == null;
+            if (expires)
+                scheduleExpiry(key, field, written);
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+
+        evictIfOverLimit(key, created);
+        return logSequence;
+    }
+
+    private ValueWithTTL version(String value, int expirationTime, boolean deleted, int now)
+    {
+        int version = versionRetention < 0 ? ValueWithTTL.NO_VERSION : now;
+        return values.create(value, expirationTime, version, deleted, ValueWithTTL.NO_HISTORY);
+    }
+
+    // A TTL far enough out to pass NEVER_EXPIRES just keeps the field for as long as store time can run
+    private static int expiration(int now, int ttl)
+    {
+        return (int) Math.clamp((long) now + ttl, Integer.MIN_VALUE, ValueWithTTL.NEVER_EXPIRES - 1L);
+    }
+
+    // Caller holds the stripe lock and writable is unpublished or owned by the current generation
+    private void write(Record writable, String field, ValueWithTTL written, int now)
+    {
+        ValueWithTTL current = writable.fields.get(field);
+        ValueWithTTL merged = merge(current, written, now);
+        if (merged == null)
+            writable.remove(field);
+        else
+            writable.put(current == null && fieldNames != null ? fieldNames.intern(field) : field, merged);
+    }
+
+    // Returns what the field holds once written is applied to current, or null if nothing needs to be kept
+    private ValueWithTTL merge(ValueWithTTL current, ValueWithTTL written, int now)
+    {
+        if (versionRetention < 0 || current == null)
+            return written.deleted ? null : written;
+
+        // every version, oldest first; a write at an existing version replaces it
+        ValueWithTTL[] versions = Arrays.copyOf(current.history, current.history.length + 2);
+        int count = current.history.length;
+        versions[count++] = current.history.length == 0 ? current : current.withHistory(ValueWithTTL.NO_HISTORY);
+        int position = count;
+        while (position > 0 && versions[position - 1].version > written.version)
+            position--;
+        if (position > 0 && versions[position - 1].version == written.version)
+            versions[position - 1] = written;
+        else
+        {
+            System.arraycopy(versions, position, versions, position + 1, count - position);
+            versions[position] = written;
+            count++;
+        }
+
+        // Reads at or after the horizon only need the newest version at or before it and what came later
+        int horizon = Math.max(now, versions[count - 1].version) - versionRetention;
+        int first = Math.max(0, count - maxVersions);
+        for (int i = count - 1; i > first; i--)
+        {
+            if (versions[i].version <= horizon)
+            {
+                first = i;
+                break;
+            }
+        }
+        // A tombstone at or before the horizon reads the same as no version at all. Later ones are kept even when
+        // leading, so a late write at an older timestamp is still shadowed by the delete that came after it.
+        if (versions[first].deleted && versions[first].version <= horizon)
+        {
+            if (first == count - 1)
+                return null;
+            first++;
+        }
+
+        ValueWithTTL newest = versions[count - 1];
+        if (first == count - 1 && newest.history.length == 0)
+            return newest;
+        return newest.withHistory(first == count - 1
+                ? ValueWithTTL.NO_HISTORY
+                : Arrays.copyOfRange(versions, first, count - 1));
+    }
+
+    // Caller holds the stripe lock. Returns record itself if no snapshot can see it, otherwise an unpublished copy.
+    private Record writable(String key, Record record)
+    {
+        if (record == null)
+            return new Record(generation, emptyFields, Record.estimate(key));
+        if (record.generation == generation)
+            return record;
+
+        // the fields are shared as they are; writes to the copy path-copy only what they touch
+        Record copy = new Record(generation, record.fields, record.bytes);
+        copy.lastAccess = record.lastAccess;
+        return copy;
+    }
+
+    // Caller holds the stripe lock. bytesBefore and fieldsBefore are what previous was accounted at before this change.
+    private void publish(Stripe stripe, String key, Record previous, Record updated, long bytesBefore, int fieldsBefore)
+    {
+        fieldCount.addAndGet(updated.fields.size() - fieldsBefore);
+        if (updated.fields.isEmpty())
+        {
+            if (previous != null)
+            {
+                stripe.records = stripe.records.remove(key);
+                if (indexKeys)
+                    stripe.keys = stripe.keys.remove(key);
+            }
+            usedBytes.addAndGet(-bytesBefore);
+            return;
+        }
+
+        if (updated != previous)
+        {
+            stripe.records = stripe.records.put(key, updated);
+            if (indexKeys && previous == null)
+                stripe.keys = stripe.keys.put(key, Boolean.TRUE);
+        }
+        usedBytes.addAndGet(updated.bytes - bytesBefore);
+    }
+
+    private void awaitDurable(long logSequence)
+    {
+        if (logSequence != 0)
+            wal.awaitDurable(logSequence);
+    }
+
+    private long startTimer()
+    {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private void stopTimer(MetricsRecorder.Operation operation, long start)
+    {
+        if (metrics != null)
+            metrics.operation(operation, System.nanoTime() - start);
+    }
+
+    // value is what the field holds, visible what a read at now sees of it
+    private void countGet(ValueWithTTL value, ValueWithTTL visible, int now)
+    {
+        if (metrics == null)
+            return;
+        if (visible != null)
+            metrics.get(MetricsRecorder.GetOutcome.HIT);
+        else if (value != null && !value.deleted && value.isExpired(now))
+            metrics.get(MetricsRecorder.GetOutcome.EXPIRED);
+        else
+            metrics.get(MetricsRecorder.GetOutcome.MISS);
+    }
+
+    private void lockAll()
+    {
+        for (Stripe stripe: dataStore)
+            stripe.lock.lock();
+    }
+
+    private void unlockAll()
+    {
+        for (Stripe stripe: dataStore)
+            stripe.lock.unlock();
+    }
+
+    private void scheduleExpiry(String key, String field, ValueWithTTL value)
+    {
+        // a field stops being visible once timestamp > expirationTime, so that is when it can be reclaimed
+        expiryWheel.schedule(new ExpiringField(key, field, value), deadline(value));
+    }
+
+    private long deadline(ExpiringField expiring)
+    {
+        return deadline(expiring.value);
+    }
+
+    // With history kept, the field stays until reads within the retention can no longer see it; that includes a
+    // tombstone, which is reclaimed like a value expiring as it is written
+    private long deadline(ValueWithTTL value)
+    {
+        return (value.deleted ? value.version : value.expirationTime) + 1L + Math.max(versionRetention, 0);
+    }
 
-        ValueWithTTL(String value, int expirationTime)
+    private void reclaim(ExpiringField expiring)
+    {
+        removeField(expiring, false);
+    }
+
+    // Removes the field only if it still holds the scheduled value, so a field overwritten since is left alone
+    private boolean removeField(ExpiringField expiring, boolean logged)
+    {
+        Stripe stripe = stripeFor(expiring.key);
+        stripe.lock.lock();
+        try
         {
-            this.value=value;
-            this.expirationTime=expirationTime;
+            Record record = stripe.records.get(expiring.key);
+            if (record == null || !expiring.value.isSameVersion(record.fields.get(expiring.field)))
+                return false;
+
+            if (logged && wal != null)
+                wal.append(WriteAheadLog.encodeEvict(expiring.key, expiring.field));
+            long bytesBefore = record.bytes;
+            int fieldsBefore = record.fields.size();
+            Record writable = writable(expiring.key, record);
+            writable.remove(expiring.field);
+            publish(stripe, expiring.key, record, writable, bytesBefore, fieldsBefore);
+            return true;
+        }
+        finally
+        {
+            stripe.lock.unlock();
         }
+    }
 
-        boolean isExpired(int currentTime)
+    private void touch(String key, Record record, int timestamp)
+    {
+        if (evictionPolicy == EvictionPolicy.LFU)
+            frequencySketch.increment(key);
+        else if (evictionPolicy != null && record != null && record.lastAccess != timestamp)
+            record.lastAccess = timestamp;
+    }
+
+    private void evictIfOverLimit(String writtenKey, boolean createdRecord)
+    {
+        if (evictionPolicy == null || replaying)
+            return;
+
+        // bounded per write so one caller never pays for a large backlog; later writes keep evicting
+        for (int i = 0; i < MAX_EVICTIONS_PER_WRITE && usedBytes.get() > maxMemoryBytes; i++)
         {
-            return expirationTime != -1 && expirationTime < currentTime;
+            if (!evictOne(writtenKey, createdRecord && i == 0))
+                return;
         }
+    }
+
+    private boolean evictOne(String writtenKey, boolean admitting)
+    {
+        if (evictionPolicy == EvictionPolicy.VOLATILE_TTL)
+        {
+            for (int attempt = 0; attempt < EVICTION_SAMPLES; attempt++)
+            {
+                ExpiringField soonest = expiryWheel.pollSoonest();
+                if (soonest == null)
+                    break;
+                if (removeField(soonest, true))
+                    return true;
+            }
+        }
+
+        boolean byFrequency = evictionPolicy == EvictionPolicy.LFU;
+        Map.Entry<String, Record> victim = sampleVictim(byFrequency);
+        if (victim == null)
+            return false;
+
+        // TinyLFU admission: a new record that is rarer than the victim is the one that goes
+        if (admitting && byFrequency && !victim.getKey().equals(writtenKey)
+                && frequencySketch.frequency(writtenKey) < frequencySketch.frequency(victim.getKey()))
+            return removeRecord(writtenKey);
 
+        return removeRecord(victim.getKey());
     }
 
-    public InMemoryDB()
+    private Map.Entry<String, Record> sampleVictim(boolean byFrequency)
     {
-        this.dataStore= new HashMap<>();
-        this.backupStore=new TreeMap<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map.Entry<String, Record> victim = null;
+        long victimScore = Long.MAX_VALUE;
+        int sampled = 0;
+
+        for (int attempt = 0; attempt < 4 * EVICTION_SAMPLES && sampled < EVICTION_SAMPLES; attempt++)
+        {
+            Map.Entry<String, Record> candidate = dataStore[random.nextInt(STRIPES)].records.randomEntry(random);
+            if (candidate == null)
+                continue;
+
+            sampled++;
+            long score = byFrequency ? frequencySketch.frequency(candidate.getKey()) : candidate.getValue().lastAccess;
+            if (score < victimScore)
+            {
+                victim = candidate;
+                victimScore = score;
+            }
+        }
+        return victim;
     }
 
-    public void setAt(String key, String field, String value, int timestamp)
+    private boolean removeRecord(String key)
     {
-        if(key == null || field == null)
-            throw new IllegalArgumentException("Key and Field cannot be null");
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try
+        {
+            Record record = stripe.records.get(key);
+            if (record == null)
+                return true;
 
-        dataStore.computeIfAbsent(key, k -> new HashMap<>())
-                .put(field, new ValueWithTTL(value, -1));
+            if (wal != null)
+                wal.append(WriteAheadLog.encodeEvict(key, null));
+            stripe.records = stripe.records.remove(key);
+            if (indexKeys)
+                stripe.keys = stripe.keys.remove(key);
+            usedBytes.addAndGet(-record.bytes);
+            fieldCount.addAndGet(-record.fields.size());
+            return true;
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
     }
 
-    public void setWithTTL(String key,String field, String value, int timestamp, int ttl)
+    // Replays an eviction from the write-ahead log; a null field evicts the whole record
+    void evict(String key, String field)
     {
-        if(key == null || field == null)
-            throw new IllegalArgumentException("Invalid Parameter");
+        if (field == null)
+        {
+            removeRecord(key);
+            return;
+        }
+
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try
+        {
+            Record record = stripe.records.get(key);
+            if (record == null || !record.fields.containsKey(field))
+                return;
 
-        dataStore.computeIfAbsent(key, k -> new HashMap<>())
-                .put(field, new ValueWithTTL(value, timestamp+ttl));
+            long bytesBefore = record.bytes;
+            int fieldsBefore = record.fields.size();
+            Record writable = writable(key, record);
+            writable.remove(field);
+            publish(stripe, key, record, writable, bytesBefore, fieldsBefore);
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
     }
 
     public Optional<String> getAt(String key, String field, int timestamp)
     {
-        if(key ==null || field == null )
-            return Optional.empty();
+        return Optional.ofNullable(getValueAt(key, field, timestamp));
+    }
+
+    /**
+     * Same lookup as {@link #getAt(String, String, int)}, returning the value or null when the field is missing,
+     * expired or was set to null. Allocates nothing with the heap storage engine, for callers on the hot read path.
+     */
+    public String getValueAt(String key, String field, int timestamp)
+    {
+        long started = startTimer();
+        try
+        {
+            if(key ==null || field == null )
+                return null;
 
-        return Optional.ofNullable(dataStore.get(key))
-                .map(record -> record.get(field))
-                .filter(value -> !value.isExpired(timestamp))
-                .map(value -> value.value);
+            int now = timestamp - timeOffset;
+            expiryWheel.advance(now);
+            Record record = stripeFor(key).records.get(key);
+            if (record == null)
+            {
+                countGet(null, null, now);
+                return null;
+            }
 
+            touch(key, record, timestamp);
+            ValueWithTTL value = record.fields.get(field);
+            ValueWithTTL visible = value == null ? null : value.at(now);
+            countGet(value, visible, now);
+            return visible == null ? null : visible.value();
+        }
+        finally
+        {
+            stopTimer(MetricsRecorder.Operation.GET, started);
+        }
     }
 
-    public boolean deleteAt(String key, String field, int timestamp)
+    /**
+     * Looks up fields[i] of keys[i] for every i and stores the value, or null as {@link #getValueAt} would return,
+     * in results[i]. The requests are grouped by key first, so all requests for a key are answered from one record
+     * lookup, and from the same version of the record, wherever they are in the batch.
+     */
+    public void getManyAt(String[] keys, String[] fields, int timestamp, String[] results)
     {
-        if(key ==null || field == null )
-            return false;
+        if (keys.length != fields.length || results.length < keys.length)
+            throw new IllegalArgumentException("Keys and fields must have the same length and fit in results");
 
-        Map<String, ValueWithTTL> record= dataStore.get(key);
-        if(record == null)
-            return false;
+        long started = startTimer();
+        int now = timestamp - timeOffset;
+        expiryWheel.advance(now);
+        // key hash in the high half, request index in the low half: sorted, each key's requests are one run
+        long[] order = new long[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] == null || fields[i] == null)
+                results[i] = null;
+            else
+                order[count++] = (long) keys[i].hashCode() << 32 | i;
+        }
+        Arrays.sort(order, 0, count);
 
-        ValueWithTTL valueWithTTL=record.get(field);
-        if(valueWithTTL == null || valueWithTTL.isExpired(timestamp))
-            return false;
+        for (int run = 0; run < count; )
+        {
+            int end = run + 1;
+            while (end < count && order[end] >>> 32 == order[run] >>> 32)
+                end++;
+            // distinct keys that share a hash are taken one at a time, marking their requests done as they go
+            for (int first = run; first < end; first++)
+            {
+                if ((int) order[first] == DONE)
+                    continue;
+                String key = keys[(int) order[first]];
+                Record record = stripeFor(key).records.get(key);
+                touch(key, record, timestamp);
+                // one read of the fields, as a write to the record swaps them
+                PersistentNavigableMap<String, ValueWithTTL> recordFields = record == null ? null : record.fields;
+                for (int next = first; next < end; next++)
+                {
+                    int i = (int) order[next];
+                    if (i == DONE || !keys[i].equals(key))
+                        continue;
+                    ValueWithTTL value = recordFields == null ? null : recordFields.get(fields[i]);
+                    ValueWithTTL visible = value == null ? null : value.at(now);
+                    countGet(value, visible, now);
+                    results[i] = visible == null ? null : visible.value();
+                    order[next] |= 0xFFFFFFFFL;
+                }
+            }
+            run = end;
+        }
+        stopTimer(MetricsRecorder.Operation.GET_MANY, started);
+    }
+
+    public String[] getManyAt(String[] keys, String[] fields, int timestamp)
+    {
+        String[] results = new String[keys.length];
+        getManyAt(keys, fields, timestamp, results);
+        return results;
+    }
+
+    /**
+     * Sets fields[i] of keys[i] to values[i] for every i, as setAt would. Writes are grouped by stripe, so each
+     * stripe lock is taken once per batch, and by key within a stripe, so each key's record is looked up, copied and
+     * published once wherever its writes are in the batch. Writes to the same field apply in the order given.
+     * Durable stores wait for the log once, for the whole batch.
+     *
+     * @return how many distinct fields had no visible value before the batch set them, counted under the stripe
+     *         locks, so concurrent writers never count the same new field twice
+     */
+    public int setManyAt(String[] keys, String[] fields, String[] values, int timestamp)
+    {
+        if (keys.length != fields.length || keys.length != values.length)
+            throw new IllegalArgumentException("Keys, fields and values must have the same length");
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] == null || fields[i] == null)
+                throw new IllegalArgumentException("Key and Field cannot be null");
+        }
+
+        long started = startTimer();
+        expiryWheel.advance(timestamp - timeOffset);
+        int[] stripeOf = new int[keys.length];
+        int[] byStripe = groupByStripe(keys, stripeOf);
+        // key hash in the high half, item index in the low half: sorted within a stripe, each key's writes are one
+        // run in the order given
+        long[] order = new long[keys.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = (long) keys[byStripe[i]].hashCode() << 32 | byStripe[i];
+        long logSequence = 0;
+        int created = 0;
 
-        record.remove(field);
+        for (int start = 0; start < order.length; )
+        {
+            int index = stripeOf[(int) order[start]];
+            Stripe stripe = dataStore[index];
+            int end = start;
+            while (end < order.length && stripeOf[(int) order[end]] == index)
+                end++;
+            Arrays.sort(order, start, end);
+
+            stripe.lock.lock();
+            try
+            {
+                int now = timestamp - timeOffset;
+                for (int run = start; run < end; )
+                {
+                    int runEnd = run + 1;
+                    while (runEnd < end && order[runEnd] >>> 32 == order[run] >>> 32)
+                        runEnd++;
+                    // distinct keys that share a hash are taken one at a time, marking their writes done as they go
+                    for (int first = run; first < runEnd; first++)
+                    {
+                        if ((int) order[first] == DONE)
+                            continue;
+                        String key = keys[(int) order[first]];
+                        Record record = stripe.records.get(key);
+                        long bytesBefore = record == null ? 0 : record.bytes;
+                        int fieldsBefore = record == null ? 0 : record.fields.size();
+                        Record writable = writable(key, record);
+                        for (int next = first; next < runEnd; next++)
+                        {
+                            int item = (int) order[next];
+                            if (item == DONE || !keys[item].equals(key))
+                                continue;
+                            if (wal != null)
+                                logSequence = wal.append(
+                                        WriteAheadLog.encodeSet(key, fields[item], values[item], timestamp));
+                            ValueWithTTL current = writable.fields.get(fields[item]);
+                            if (current == null || current.at(now) == null)
+                                created++;
+                            ValueWithTTL written = version(values[item], ValueWithTTL.NEVER_EXPIRES, false, now);
+                            write(writable, fields[item], written, now);
+                            order[next] |= 0xFFFFFFFFL;
+                        }
+                        touch(key, writable, timestamp);
+                        publish(stripe, key, record, writable, bytesBefore, fieldsBefore);
+                    }
+                    run = runEnd;
+                }
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+            start = end;
+        }
 
-        if (record.isEmpty())
-            dataStore.remove(key);
+        evictIfOverLimit(null, false);
+        awaitDurable(logSequence);
+        stopTimer(MetricsRecorder.Operation.SET_MANY, started);
+        return created;
+    }
 
-        return true;
+    // Counting sort of the item indices by stripe, keeping the given order within each stripe
+    private int[] groupByStripe(String[] keys, int[] stripeOf)
+    {
+        int[] bucketStart = new int[STRIPES + 1];
+        for (int i = 0; i < keys.length; i++)
+        {
+            stripeOf[i] = stripeIndex(keys[i]);
+            bucketStart[stripeOf[i] + 1]++;
+        }
+        for (int i = 0; i < STRIPES; i++)
+            bucketStart[i + 1] += bucketStart[i];
 
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            order[bucketStart[stripeOf[i]]++] = i;
+        return order;
     }
 
-    public List<String> scanAt(String key, int timestamp)
+    public boolean deleteAt(String key, String field, int timestamp)
     {
-        if (key== null || !dataStore.containsKey(key))
-            return Collections.emptyList();
+        long started = startTimer();
+        try
+        {
+            if(key ==null || field == null )
+                return false;
 
-        return dataStore.get(key).entrySet().stream()
-                .filter(entry -> !entry.getValue().isExpired(timestamp))
-                .sorted(Map.Entry.comparingByKey())
-                .map(entry -> entry.getKey() + " : " + entry.getValue().value)
-                .collect(Collectors.toList());
+            expiryWheel.advance(timestamp - timeOffset);
+            Stripe stripe = stripeFor(key);
+            long logSequence;
+            ValueWithTTL tombstone;
+            stripe.lock.lock();
+            try
+            {
+                int now = timestamp - timeOffset;
+                Record record = stripe.records.get(key);
+                if(record == null)
+                    return false;
+
+                ValueWithTTL valueWithTTL=record.fields.get(field);
+                if(valueWithTTL == null || valueWithTTL.at(now) == null)
+                    return false;
+
+                logSequence = wal == null ? 0 : wal.append(WriteAheadLog.encodeDelete(key, field, timestamp));
+                long bytesBefore = record.bytes;
+                int fieldsBefore = record.fields.size();
+                Record writable = writable(key, record);
+                tombstone = version(null, ValueWithTTL.NEVER_EXPIRES, true, now);
+                write(writable, field, tombstone, now);
+                publish(stripe, key, record, writable, bytesBefore, fieldsBefore);
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+
+            if (versionRetention >= 0)
+                scheduleExpiry(key, field, tombstone);
+            awaitDurable(logSequence);
+            return true;
+        }
+        finally
+        {
+            stopTimer(MetricsRecorder.Operation.DELETE, started);
+        }
+    }
+
+    /**
+     * Returns key's fields visible at timestamp as "field : value" strings, in field order. Prefer the overload
+     * taking an action, or {@link #streamAt(String, int)}, which hand out fields and values as they are.
+     */
+    public List<String> scanAt(String key, int timestamp)
+    {
+        List<String> entries = new ArrayList<>();
+        scanAt(key, timestamp, (field, value) -> entries.add(field + " : " + value));
+        return entries;
     }
 
+    /**
+     * Returns the fields of key that start with prefix as {@link #scanAt(String, int)} does.
+     */
     public List<String> scanByPrefixAt(String key, String prefix, int timestamp)
     {
-        if (key == null || prefix == null || !dataStore.containsKey(key))
-            return Collections.emptyList();
+        List<String> entries = new ArrayList<>();
+        scanByPrefixAt(key, prefix, timestamp, (field, value) -> entries.add(field + " : " + value));
+        return entries;
+    }
+
+    /**
+     * Calls action with the name and value of each of key's fields visible at timestamp, in field order, while
+     * reading the record as of this call. Nothing is allocated per field with the heap storage engine. action must
+     * not write to this store.
+     */
+    public void scanAt(String key, int timestamp, BiConsumer<? super String, ? super String> action)
+    {
+        visit(key, "", timestamp, action, MetricsRecorder.Operation.SCAN);
+    }
+
+    /**
+     * Calls action on the fields of key that start with prefix as {@link #scanAt(String, int, BiConsumer)} does.
+     */
+    public void scanByPrefixAt(String key, String prefix, int timestamp,
+            BiConsumer<? super String, ? super String> action)
+    {
+        visit(key, prefix, timestamp, action, MetricsRecorder.Operation.SCAN_BY_PREFIX);
+    }
+
+    private void visit(String key, String prefix, int timestamp, BiConsumer<? super String, ? super String> action,
+            MetricsRecorder.Operation operation)
+    {
+        long started = startTimer();
+        try
+        {
+            int now = timestamp - timeOffset;
+            expiryWheel.advance(now);
+            Record record = key == null ? null : stripeFor(key).records.get(key);
+            if (prefix == null || record == null)
+                return;
 
-        return dataStore.get(key).entrySet().stream()
-                .filter(entry -> entry.getKey().startsWith(prefix))
-                .filter(entry -> !entry.getValue().isExpired(timestamp))
-                .sorted(Map.Entry.comparingByKey())
-                .map(entry -> entry.getKey() + " : " + entry.getValue().value)
-                .collect(Collectors.toList());
+            touch(key, record, timestamp);
+            // Seek to the first field >= prefix and stop at the first one past the prefix range: O(log n + k)
+            record.fields.forEachFrom(prefix, (field, value) -> {
+                if (!field.startsWith(prefix))
+                    return false;
+                ValueWithTTL visible = value.at(now);
+                if (visible != null)
+                    action.accept(field, visible.value());
+                return true;
+            });
+        }
+        finally
+        {
+            stopTimer(operation, started);
+        }
+    }
 
+    /**
+     * Returns up to count of key's fields visible at timestamp, with their values, in field order, starting after
+     * the field cursor names or from the first field when cursor is null. Only the page is materialized, so paging
+     * through a record of any size holds O(count) memory; pass the page's nextCursor to continue. Each page reads
+     * the record as of its own call.
+     */
+    public ScanPage scanAt(String key, String cursor, int count, int timestamp)
+    {
+        return page(key, "", cursor, count, timestamp, MetricsRecorder.Operation.SCAN);
     }
 
-    private int backup(int timestamp)
+    /**
+     * Paginated {@link #scanByPrefixAt(String, String, int)}, paging as {@link #scanAt(String, String, int, int)}
+     * does. The first page seeks to the prefix and a resumed one to its cursor, so every page costs O(log n + count).
+     */
+    public ScanPage scanByPrefixAt(String key, String prefix, String cursor, int count, int timestamp)
     {
-        Map<String, Map<String, ValueWithTTL>> backup= new HashMap<>(); //Create a deep copy of current state, filtering expired entries
+        return page(key, prefix, cursor, count, timestamp, MetricsRecorder.Operation.SCAN_BY_PREFIX);
+    }
 
-        int recordCount=0;
-        for (Map.Entry<String,Map<String, ValueWithTTL>> recordEntry: dataStore.entrySet())
+    /**
+     * Streams key's fields visible at timestamp with their values, in field order. The stream reads the record as
+     * it was when this was called and looks each field up only as it is consumed, so it holds O(1) memory and
+     * stopping early skips the rest of the record; its iterator() is just as lazy. Streams are not timed by the
+     * metrics recorder, since their cost falls on whoever consumes them.
+     */
+    public Stream<Map.Entry<String, String>> streamAt(String key, int timestamp)
+    {
+        return stream(visibleFields(key, "", null, timestamp));
+    }
+
+    /**
+     * Streams the fields of key that start with prefix as {@link #streamAt(String, int)} does.
+     */
+    public Stream<Map.Entry<String, String>> streamByPrefixAt(String key, String prefix, int timestamp)
+    {
+        return stream(visibleFields(key, prefix, null, timestamp));
+    }
+
+    private ScanPage page(String key, String prefix, String cursor, int count, int timestamp,
+            MetricsRecorder.Operation operation)
+    {
+        if (count <= 0)
+            throw new IllegalArgumentException("Count must be positive");
+
+        long started = startTimer();
+        try
+        {
+            Iterator<Map.Entry<String, String>> fields = visibleFields(key, prefix, cursor, timestamp);
+            List<Map.Entry<String, String>> entries = new ArrayList<>(Math.min(count, 64));
+            while (entries.size() < count && fields.hasNext())
+                entries.add(fields.next());
+            // a page that used up the record ends the scan, so callers never fetch an empty last page
+            return new ScanPage(entries, fields.hasNext() ? entries.get(entries.size() - 1).getKey() : null);
+        }
+        finally
+        {
+            stopTimer(operation, started);
+        }
+    }
+
+    /**
+     * Streams, in key order, the keys starting with prefix whose records have a field visible at timestamp, skipping
+     * records whose fields have all expired or been deleted. With {@link Builder#indexKeys()} every stripe's key
+     * index is seeked to the prefix and the stripes are merged as the stream is consumed, which costs O(log n + k);
+     * without it every key is checked and the matches sorted up front. The stream reads each stripe as it was when
+     * this was called.
+     */
+    public Stream<String> scanKeysByPrefixAt(String prefix, int timestamp)
+    {
+        return scanKeysByPrefixAt(prefix, null, timestamp);
+    }
+
+    /**
+     * Like {@link #scanKeysByPrefixAt(String, int)}, but only streams the keys that sort after the key cursor names,
+     * or from the first key when cursor is null. Passing the last key consumed resumes a scan where it stopped, even
+     * if keys were added or removed in between; with the key index each resumed scan seeks straight to its cursor.
+     */
+    public Stream<String> scanKeysByPrefixAt(String prefix, String cursor, int timestamp)
+    {
+        if (prefix == null)
+            return Stream.empty();
+
+        int now = timestamp - timeOffset;
+        expiryWheel.advance(now);
+        if (indexKeys)
+        {
+            KeyScan keys = new KeyScan(dataStore, prefix, cursor, now);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys,
+                    Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SORTED), false);
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (Stripe stripe: dataStore)
+        {
+            for (Map.Entry<String, Record> entry: stripe.records)
+            {
+                String key = entry.getKey();
+                if (key.startsWith(prefix) && (cursor == null || key.compareTo(cursor) > 0)
+                        && hasVisibleField(entry.getValue(), now))
+                    keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+        return keys.stream();
+    }
+
+    private static boolean hasVisibleField(Record record, int now)
+    {
+        for (Map.Entry<String, ValueWithTTL> field: record.fields)
         {
-            Map<String, ValueWithTTL> recordCopy=new HashMap<>();
+            if (field.getValue().at(now) != null)
+                return true;
+        }
+        return false;
+    }
+
+    // Empty when key or prefix is null or the record does not exist
+    private Iterator<Map.Entry<String, String>> visibleFields(String key, String prefix, String after, int timestamp)
+    {
+        int now = timestamp - timeOffset;
+        expiryWheel.advance(now);
+        Record record = key == null ? null : stripeFor(key).records.get(key);
+        if (prefix == null || record == null)
+            return Collections.emptyIterator();
 
-            for (Map.Entry<String, ValueWithTTL> fieldEntry: recordEntry.getValue().entrySet())
+        touch(key, record, timestamp);
+        return new VisibleFields(record.fields, prefix, after, now);
+    }
+
+    private static Stream<Map.Entry<String, String>> stream(Iterator<Map.Entry<String, String>> fields)
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(fields,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    /**
+     * Takes a point-in-time snapshot that restore can later roll back to. This only captures the current root of
+     * every stripe, so it costs O(stripes) regardless of data size. Later writes copy only the trie and field tree
+     * nodes on their path, so a retained backup holds memory in proportion to what changed after it, not to the
+     * size of the data. Returns the number of records in the snapshot, which may include records whose
+     * fields have all expired but have not been reclaimed yet.
+     */
+    public int backup(int timestamp)
+    {
+        return snapshot(timestamp).recordCount;
+    }
+
+    /**
+     * Takes the same snapshot as {@link #backup(int)} and also writes it to snapshotFile, which {@link #load(Path)}
+     * can start a new store from. The snapshot is immutable, so the file is written without holding any locks.
+     */
+    public int backup(int timestamp, Path snapshotFile) throws IOException
+    {
+        Snapshot snapshot = snapshot(timestamp);
+        SnapshotFile.write(snapshotFile, timestamp, snapshot);
+        return snapshot.recordCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot snapshot(int timestamp)
+    {
+        long started = startTimer();
+        expiryWheel.advance(timestamp - timeOffset);
+        PersistentHashMap<String, Record>[] roots =
+                (PersistentHashMap<String, Record>[]) new PersistentHashMap<?, ?>[STRIPES];
+        PersistentSortedMap<String, Boolean>[] keys = indexKeys
+                ? (PersistentSortedMap<String, Boolean>[]) new PersistentSortedMap<?, ?>[STRIPES]
+                : null;
+        int recordCount=0;
+        Snapshot snapshot;
+
+        backupLock.lock();
+        try
+        {
+            lockAll();
+            try
             {
-                if(!fieldEntry.getValue().isExpired(timestamp))
+                long logOffset = wal == null ? 0 : wal.append(WriteAheadLog.encodeBackup(timestamp));
+                for (int i = 0; i < STRIPES; i++)
                 {
-                    recordCopy.put(fieldEntry.getKey(), fieldEntry.getValue());
+                    roots[i] = dataStore[i].records;
+                    recordCount += roots[i].size();
+                    if (keys != null)
+                        keys[i] = dataStore[i].keys;
                 }
+                snapshot = new Snapshot(roots, keys, timestamp - timeOffset, recordCount, usedBytes.get(),
+                        fieldCount.get(), logOffset);
+                generation++;
             }
-            if (!recordCopy.isEmpty())
+            finally
             {
-                backup.put(recordEntry.getKey(), recordCopy);
-                recordCount++;
+                unlockAll();
             }
+            backupStore.put(timestamp, snapshot);
+        }
+        finally
+        {
+            backupLock.unlock();
         }
-        backupStore.put(timestamp, backup);
-        return recordCount;
+
+        awaitDurable(snapshot.logOffset);
+        stopTimer(MetricsRecorder.Operation.BACKUP, started);
+        return snapshot;
     }
 
+    /**
+     * Rolls the live state back to the most recent backup taken at or before timestampToRestore, with every TTL
+     * keeping the time it had left when the backup was taken. The snapshot's roots are installed as they are and
+     * the time offset moves so that currentTimestamp maps to the backup's time, which makes this O(stripes);
+     * records are materialized again only when they are next written.
+     */
     public void restore(int currentTimestamp, int timestampToRestore)
     {
-        // Find the most recent backup not newer than timestampToRestore
-        Map.Entry<Integer, Map<String, Map<String,ValueWithTTL>>> backupEntry=backupStore.floorEntry(timestampToRestore);
+        long started = startTimer();
+        try
+        {
+            long logOffset;
+            backupLock.lock();
+            try
+            {
+                // Find the most recent backup not newer than timestampToRestore
+                Map.Entry<Integer, Snapshot> backupEntry=backupStore.floorEntry(timestampToRestore);
 
-        if (backupEntry==null)
-            throw new IllegalStateException("No Backup Available for restoration");
+                if (backupEntry==null)
+                    throw new IllegalStateException("No Backup Available for restoration");
 
-        int backupTimestamp= backupEntry.getKey();
-        Map<String, Map<String, ValueWithTTL>> backup=backupEntry.getValue();
+                Snapshot backup=backupEntry.getValue();
+                byte[] logEntry = wal == null
+                        ? null
+                        : WriteAheadLog.encodeRestore(currentTimestamp, timestampToRestore);
+                logOffset = install(backup, currentTimestamp - backup.storeTime, logEntry);
+            }
+            finally
+            {
+                backupLock.unlock();
+            }
+            awaitDurable(logOffset);
+        }
+        finally
+        {
+            stopTimer(MetricsRecorder.Operation.RESTORE, started);
+        }
+    }
 
-        dataStore.clear();
+    /**
+     * Drops every backup the configured {@link BackupRetention} no longer keeps and returns how many were dropped.
+     * Backups share whatever did not change between them, so nothing is merged: dropping one frees only the trie
+     * and field tree nodes that neither its neighbours nor the live state still reference, and the garbage
+     * collector takes it from there. Only the backup store's own lock is taken, so reads and writes carry on.
+     */
+    public int compactBackups()
+    {
+        if (backupRetention == null)
+            throw new IllegalStateException("No backup retention configured");
 
-        for (Map.Entry<String, Map<String, ValueWithTTL>> recordEntry: backup.entrySet())
+        backupLock.lock();
+        try
         {
-            Map<String, ValueWithTTL> newRecord= new HashMap<>();
-            for (Map.Entry<String, ValueWithTTL> fieldEntry: recordEntry.getValue().entrySet())
-            {
-                ValueWithTTL original=fieldEntry.getValue();
-                int newExpiration = original.expirationTime == -1 ?
-                        -1 : original.expirationTime - backupTimestamp +currentTimestamp;
+            List<Map.Entry<Integer, Snapshot>> backups = new ArrayList<>(backupStore.entrySet());
+            int[] timestamps = new int[backups.size()];
+            for (int i = 0; i < timestamps.length; i++)
+                timestamps[i] = backups.get(i).getKey();
+            boolean[] keep = backupRetention.select(timestamps);
 
-                newRecord.put(fieldEntry.getKey(), new ValueWithTTL(original.value, newExpiration));
+            int dropped = 0;
+            long reclaimed = 0;
+            Snapshot newerKept = null;
+            for (int i = backups.size() - 1; i >= 0; i--)
+            {
+                Snapshot backup = backups.get(i).getValue();
+                if (keep[i])
+                {
+                    newerKept = backup;
+                    continue;
+                }
 
+                reclaimed += uniqueBytes(backup, i == 0 ? null : backups.get(i - 1).getValue(), newerKept);
+                if (wal != null)
+                    wal.append(WriteAheadLog.encodeDropBackup(timestamps[i]));
+                backupStore.remove(timestamps[i]);
+                dropped++;
             }
-            dataStore.put(recordEntry.getKey(), newRecord);
 
+            droppedBackups.addAndGet(dropped);
+            reclaimedBackupBytes.addAndGet(reclaimed);
+            return dropped;
         }
+        finally
+        {
+            backupLock.unlock();
+        }
+    }
+
+    // Replays a compaction from the write-ahead log
+    void dropBackup(int timestamp)
+    {
+        backupLock.lock();
+        try
+        {
+            backupStore.remove(timestamp);
+        }
+        finally
+        {
+            backupLock.unlock();
+        }
+    }
+
+    /**
+     * Estimates the bytes only backup holds: records and field values that neither the backup taken just before it
+     * nor newer, the next backup being kept or the live state when null, refers to. Between restores a value lives in
+     * a contiguous run of backups, so comparing against the immediate neighbours counts each dropped value once.
+     */
+    private long uniqueBytes(Snapshot backup, Snapshot older, Snapshot newer)
+    {
+        long[] bytes = new long[1];
+        for (int i = 0; i < STRIPES; i++)
+        {
+            PersistentHashMap<String, Record> olderRoot = older == null ? PersistentHashMap.empty() : older.roots[i];
+            PersistentHashMap<String, Record> newerRoot = newer == null ? dataStore[i].records : newer.roots[i];
+            backup.roots[i].forEachNotIn(newerRoot, (key, record) -> {
+                Record olderRecord = olderRoot.get(key);
+                if (record == olderRecord)
+                    return;
+
+                bytes[0] += Record.estimate(key);
+                Record newerRecord = newerRoot.get(key);
+                if ((olderRecord != null && olderRecord.fields == record.fields)
+                        || (newerRecord != null && newerRecord.fields == record.fields))
+                    return;
+                for (Map.Entry<String, ValueWithTTL> fieldEntry: record.fields)
+                {
+                    ValueWithTTL value = fieldEntry.getValue();
+                    if ((olderRecord == null || olderRecord.fields.get(fieldEntry.getKey()) != value)
+                            && (newerRecord == null || newerRecord.fields.get(fieldEntry.getKey()) != value))
+                        bytes[0] += Record.estimate(fieldEntry.getKey(), value);
+                }
+            });
+        }
+        return bytes[0];
+    }
+
+    /**
+     * Whether writes block until the log has forced them to disk, which a durable store under
+     * {@link WriteAheadLog.FsyncPolicy#ALWAYS} does.
+     */
+    public boolean waitsForDisk()
+    {
+        return wal != null && wal.policy() == WriteAheadLog.FsyncPolicy.ALWAYS;
+    }
+
+    /**
+     * Number of live records, which may include records whose fields have all expired but have not been reclaimed
+     * yet. O(stripes).
+     */
+    public long recordCount()
+    {
+        long count = 0;
+        for (Stripe stripe: dataStore)
+            count += stripe.records.size();
+        return count;
+    }
+
+    /**
+     * Number of fields across the live records, counting expired fields until they are reclaimed.
+     */
+    public long fieldCount()
+    {
+        return fieldCount.get();
+    }
+
+    /**
+     * Estimated bytes held by the live records' keys, fields and values, the figure maxMemory limits.
+     */
+    public long usedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    public int backupCount()
+    {
+        return backupStore.size();
+    }
+
+    /**
+     * Total number of backups dropped by {@link #compactBackups()}, including the background compactor's runs.
+     */
+    public long droppedBackups()
+    {
+        return droppedBackups.get();
+    }
+
+    /**
+     * Estimated bytes freed by dropping backups so far, counting only what no remaining backup or the live state
+     * still shares.
+     */
+    public long reclaimedBackupBytes()
+    {
+        return reclaimedBackupBytes.get();
+    }
+
+    /**
+     * Direct memory held by the off-heap storage engine's slabs, including space left by values that were since
+     * replaced but share a slab with values still in use; 0 with the heap engine.
+     */
+    public long offHeapBytes()
+    {
+        return values instanceof OffHeapValues offHeap ? offHeap.reservedBytes() : 0;
+    }
+
+    private void startCompactor(long intervalMillis)
+    {
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "backup-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactBackups, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background backup compactor, waiting for a run in progress to finish. The store stays usable; a
+     * write-ahead log it was built with belongs to the caller and should be closed after this.
+     */
+    @Override
+    public void close()
+    {
+        if (compactor == null)
+            return;
+        compactor.shutdown();
+        try
+        {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long install(Snapshot snapshot, int newTimeOffset, byte[] logEntry)
+    {
+        long[] logOffset = new long[1];
+
+        // The wheel restarts from the snapshot's time; its TTL fields are put back on it a batch at a time as the
+        // clock advances, and the swap runs under the wheel's lock so nothing fires against the wrong time base
+        expiryWheel.reset(snapshot.storeTime, () -> {
+            lockAll();
+            try
+            {
+                if (logEntry != null)
+                    logOffset[0] = wal.append(logEntry);
+                for (int i = 0; i < STRIPES; i++)
+                {
+                    dataStore[i].records = snapshot.roots[i];
+                    if (indexKeys)
+                        dataStore[i].keys = snapshot.keys[i];
+                }
+                timeOffset = newTimeOffset;
+                usedBytes.set(snapshot.usedBytes);
+                fieldCount.set(snapshot.fieldCount);
+                generation++;
+            }
+            finally
+            {
+                unlockAll();
+            }
+        }, expiringFields(snapshot), this::deadline);
+        return logOffset[0];
+    }
+
+    private static Iterator<ExpiringField> expiringFields(Snapshot snapshot)
+    {
+        return Arrays.stream(snapshot.roots)
+                .flatMap(root -> StreamSupport.stream(root.spliterator(), false))
+                .flatMap(recordEntry -> recordEntry.getValue().fields.stream()
+                        .filter(fieldEntry -> fieldEntry.getValue().expirationTime != ValueWithTTL.NEVER_EXPIRES
+                                || fieldEntry.getValue().deleted)
+                        .map(fieldEntry -> new ExpiringField(recordEntry.getKey(), fieldEntry.getKey(),
+                                fieldEntry.getValue())))
+                .iterator();
     }
 
 //    private final Map<String, Map<String, String>> dataStore;
@@ -0,0 +1,114 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default {@link MetricsRecorder}: a log-linear latency histogram per operation, in the style of HdrHistogram, and
+ * a counter per lookup outcome. Each power of two is split into 16 sub-buckets, so percentiles are within about 6%
+ * from 1 ns up to about 18 minutes; longer operations all land in the last bucket. Every histogram is striped by
+ * thread so concurrent operations rarely touch the same counter.
+ */
+public final class LatencyMetrics implements MetricsRecorder
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray[][] histograms = new AtomicLongArray[Operation.values().length][STRIPES];
+    private final LongAdder[] outcomes = new LongAdder[GetOutcome.values().length];
+
+    public LatencyMetrics()
+    {
+        for (AtomicLongArray[] stripes: histograms)
+        {
+            for (int i = 0; i < STRIPES; i++)
+                stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        for (int i = 0; i < outcomes.length; i++)
+            outcomes[i] = new LongAdder();
+    }
+
+    @Override
+    public void operation(Operation operation, long nanos)
+    {
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        histograms[operation.ordinal()][stripe].incrementAndGet(index(nanos));
+    }
+
+    @Override
+    public void get(GetOutcome outcome)
+    {
+        outcomes[outcome.ordinal()].increment();
+    }
+
+    public long count(Operation operation)
+    {
+        long count = 0;
+        for (AtomicLongArray stripe: histograms[operation.ordinal()])
+        {
+            for (int i = 0; i < BUCKETS; i++)
+                count += stripe.get(i);
+        }
+        return count;
+    }
+
+    public long count(GetOutcome outcome)
+    {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    /**
+     * Returns the latency in nanoseconds that percent of the operation's calls took at most, rounded up to its
+     * bucket's upper bound, or 0 if it has not run yet.
+     */
+    public long percentileNanos(Operation operation, double percent)
+    {
+        if (percent < 0 || percent > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray stripe: histograms[operation.ordinal()])
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                merged[i] += stripe.get(i);
+                count += stripe.get(i);
+            }
+        }
+
+        long target = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && count > 0; i++)
+        {
+            seen += merged[i];
+            if (seen >= target)
+                return upperBound(i);
+        }
+        return 0;
+    }
+
+    static int index(long nanos)
+    {
+        long value = Math.max(nanos, 1);
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKETS - 1;
+        if (magnitude < SUB_BUCKET_BITS)
+            return (int) value;
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long upperBound(int index)
+    {
+        int group = index >>> SUB_BUCKET_BITS;
+        int subBucket = index & ((1 << SUB_BUCKET_BITS) - 1);
+        if (group == 0)
+            return subBucket;
+        int magnitude = group + SUB_BUCKET_BITS - 1;
+        return ((long) ((1 << SUB_BUCKET_BITS) + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
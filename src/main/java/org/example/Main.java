@@ -1,17 +1,98 @@
 package org.example;
 
-//TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
-// click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+
+import org.example.server.RespServer;
+import org.example.server.VirtualThreadServer;
+
+/**
+ * Runs InMemoryDB as a standalone server speaking a Redis-compatible subset of RESP.
+ *
+ * Options: --port (default 6379), --event-loops (default one per core), --virtual-threads to serve each
+ * connection on its own virtual thread instead of event loops, --wal path to make the store durable, with
+ * --fsync ALWAYS|INTERVAL|OS (default INTERVAL) and --fsync-interval-ms (default 1000), --storage-engine
+ * HEAP|OFF_HEAP (default HEAP), --field-index SORTED|RADIX (default SORTED), --intern-field-names n to share up
+ * to n distinct field names between records, --index-keys to keep the sorted key index SCAN seeks in, and
+ * --metrics to record latencies and publish them over JMX as org.example:type=InMemoryDB,name="server".
+ * Commands run at the current Unix time in seconds.
+ */
 public class Main {
-    public static void main(String[] args) {
-        //TIP Press <shortcut actionId="ShowIntentionActions"/> with your caret at the highlighted text
-        // to see how IntelliJ IDEA suggests fixing it.
-        System.out.printf("Hello and welcome!");
+    public static void main(String[] args) throws IOException, JMException {
+        int port = 6379;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads = false;
+        boolean metrics = false;
+        boolean indexKeys = false;
+        Path walPath = null;
+        WriteAheadLog.FsyncPolicy fsync = WriteAheadLog.FsyncPolicy.INTERVAL;
+        long fsyncIntervalMillis = 1000;
+        StorageEngine storageEngine = StorageEngine.HEAP;
+        FieldIndex fieldIndex = FieldIndex.SORTED;
+        int maxFieldNames = 0;
 
-        for (int i = 1; i <= 5; i++) {
-            //TIP Press <shortcut actionId="Debug"/> to start debugging your code. We have set one <icon src="AllIcons.Debugger.Db_set_breakpoint"/> breakpoint
-            // for you, but you can always add more by pressing <shortcut actionId="ToggleLineBreakpoint"/>.
-            System.out.println("i = " + i);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--virtual-threads")) {
+                virtualThreads = true;
+                continue;
+            }
+            if (args[i].equals("--metrics")) {
+                metrics = true;
+                continue;
+            }
+            if (args[i].equals("--index-keys")) {
+                indexKeys = true;
+                continue;
+            }
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(value);
+                case "--event-loops" -> eventLoops = Integer.parseInt(value);
+                case "--wal" -> walPath = Path.of(value);
+                case "--fsync" -> fsync = WriteAheadLog.FsyncPolicy.valueOf(value);
+                case "--fsync-interval-ms" -> fsyncIntervalMillis = Long.parseLong(value);
+                case "--storage-engine" -> storageEngine = StorageEngine.valueOf(value);
+                case "--field-index" -> fieldIndex = FieldIndex.valueOf(value);
+                case "--intern-field-names" -> maxFieldNames = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            i++;
         }
+
+        InMemoryDB.Builder builder = InMemoryDB.builder().storageEngine(storageEngine).fieldIndex(fieldIndex);
+        if (maxFieldNames > 0)
+            builder.internFieldNames(maxFieldNames);
+        if (indexKeys)
+            builder.indexKeys();
+        WriteAheadLog wal = walPath == null ? null : WriteAheadLog.open(walPath, fsync, fsyncIntervalMillis);
+        if (wal != null)
+            builder.writeAheadLog(wal);
+        LatencyMetrics latencies = metrics ? new LatencyMetrics() : null;
+        if (latencies != null)
+            builder.metrics(latencies);
+        InMemoryDB db = builder.build();
+        if (latencies != null)
+            new StoreMetrics(db, latencies).register("server");
+
+        InetSocketAddress address = new InetSocketAddress(port);
+        IntSupplier clock = () -> (int) (System.currentTimeMillis() / 1000);
+        Closeable server = virtualThreads
+                ? new VirtualThreadServer(db, address, clock)
+                : new RespServer(db, address, eventLoops, clock);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                if (wal != null)
+                    wal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        System.out.println("Listening on port " + port);
     }
-}
\ No newline at end of file
+}
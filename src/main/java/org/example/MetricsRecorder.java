@@ -0,0 +1,43 @@
+package org.example;
+
+/**
+ * Receives an InMemoryDB's instrumentation: the latency of every public operation and the outcome of every field
+ * lookup. Calls come from the threads running the operations, so implementations must be thread-safe and cheap.
+ * {@link LatencyMetrics} is the built-in implementation; without one the store skips timing altogether.
+ */
+public interface MetricsRecorder
+{
+    enum Operation
+    {
+        SET,
+        SET_WITH_TTL,
+        SET_MANY,
+        GET,
+        GET_MANY,
+        DELETE,
+        SCAN,
+        SCAN_BY_PREFIX,
+        BACKUP,
+        RESTORE
+    }
+
+    enum GetOutcome
+    {
+        /** The field had a value at the read's timestamp. */
+        HIT,
+        /** The record or field did not exist, or the field was deleted. */
+        MISS,
+        /** The field exists but its value had expired by the read's timestamp. */
+        EXPIRED
+    }
+
+    /**
+     * Called once per operation, including failed ones, with its wall-clock duration.
+     */
+    void operation(Operation operation, long nanos);
+
+    /**
+     * Called once per field looked up by getAt, getValueAt and getManyAt.
+     */
+    void get(GetOutcome outcome);
+}
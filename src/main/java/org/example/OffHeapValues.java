@@ -0,0 +1,142 @@
+package org.example;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Value factory of the {@link StorageEngine#OFF_HEAP} engine. Each value is written once, as a length-prefixed
+ * UTF-8 string, into a slab carved out of direct memory by bumping an atomic position; writers on different threads
+ * fill different slabs, so allocation rarely contends. Values are never freed one by one: a slab is an ordinary
+ * object the values in it refer to, and its memory goes back to the OS when the collector finds none of them
+ * reachable, which keeps reads from snapshots and old versions safe without any reference counting.
+ */
+final class OffHeapValues implements InMemoryDB.ValueWithTTL.Factory
+{
+    static final int SLAB_BYTES = 1 << 20;
+    private static final int LANES = 16;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final AtomicReferenceArray<Slab> lanes = new AtomicReferenceArray<>(LANES);
+    // Direct memory held by slabs that are still reachable, for reporting
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    @Override
+    public InMemoryDB.ValueWithTTL create(String value, int expirationTime, int version, boolean deleted,
+            InMemoryDB.ValueWithTTL[] history)
+    {
+        if (value == null)
+            return new InMemoryDB.ValueWithTTL(null, expirationTime, version, deleted, history);
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + bytes.length;
+        Slab slab;
+        int offset;
+        if (size > SLAB_BYTES / 4)
+        {
+            // large values get a slab of their own instead of wasting the tail of a shared one
+            slab = newSlab(size);
+            offset = slab.reserve(size);
+        }
+        else
+        {
+            int lane = (int) Thread.currentThread().threadId() & (LANES - 1);
+            while (true)
+            {
+                slab = lanes.get(lane);
+                if (slab != null && (offset = slab.reserve(size)) >= 0)
+                    break;
+                lanes.compareAndSet(lane, slab, newSlab(SLAB_BYTES));
+            }
+        }
+
+        slab.buffer.putInt(offset, bytes.length);
+        slab.buffer.put(offset + 4, bytes);
+        return new Value(slab, offset, expirationTime, version, deleted, history);
+    }
+
+    long reservedBytes()
+    {
+        return reservedBytes.get();
+    }
+
+    private Slab newSlab(int capacity)
+    {
+        Slab slab = new Slab(ByteBuffer.allocateDirect(capacity));
+        reservedBytes.addAndGet(capacity);
+        AtomicLong reserved = reservedBytes;
+        CLEANER.register(slab, () -> reserved.addAndGet(-capacity));
+        return slab;
+    }
+
+    private static final class Slab
+    {
+        final ByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger();
+
+        Slab(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        // Returns the offset of bytes free bytes, or -1 if the slab is too full
+        int reserve(int bytes)
+        {
+            while (true)
+            {
+                int offset = position.get();
+                if (offset + bytes > buffer.capacity())
+                    return -1;
+                if (position.compareAndSet(offset, offset + bytes))
+                    return offset;
+            }
+        }
+    }
+
+    /**
+     * A value whose bytes live in a slab, length first. They are written before the value is published and never
+     * again, so reads need no synchronization of their own.
+     */
+    private static final class Value extends InMemoryDB.ValueWithTTL
+    {
+        private final Slab slab;
+        private final int offset;
+
+        Value(Slab slab, int offset, int expirationTime, int version, boolean deleted,
+                InMemoryDB.ValueWithTTL[] history)
+        {
+            super(null, expirationTime, version, deleted, history);
+            this.slab = slab;
+            this.offset = offset;
+        }
+
+        @Override
+        String value()
+        {
+            byte[] bytes = new byte[slab.buffer.getInt(offset)];
+            slab.buffer.get(offset + 4, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        int valueBytes()
+        {
+            return slab.buffer.getInt(offset);
+        }
+
+        @Override
+        boolean sameValue(InMemoryDB.ValueWithTTL other)
+        {
+            return other instanceof Value value && slab == value.slab && offset == value.offset;
+        }
+
+        @Override
+        InMemoryDB.ValueWithTTL withHistory(InMemoryDB.ValueWithTTL[] history)
+        {
+            return new Value(slab, offset, expirationTime, version, deleted, history);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package org.example;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash array mapped trie. put and remove copy only the O(log32 n) nodes on the path to the key
+ * and share everything else with the original, which is what lets InMemoryDB snapshot a stripe by keeping
+ * a reference to its current root.
+ */
+final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>>
+{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty()
+    {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key)
+    {
+        return root == null ? null : (V) root.find(0, hash(key), key);
+    }
+
+    PersistentHashMap<K, V> put(K key, V value)
+    {
+        int hash = hash(key);
+        if (root == null)
+            return new PersistentHashMap<>(BitmapNode.EMPTY.put(0, hash, key, value), 1);
+
+        boolean present = root.find(0, hash, key) != null;
+        Node updated = root.put(0, hash, key, value);
+        return updated == root ? this : new PersistentHashMap<>(updated, present ? size : size + 1);
+    }
+
+    PersistentHashMap<K, V> remove(Object key)
+    {
+        if (root == null)
+            return this;
+
+        Node updated = root.remove(0, hash(key), key);
+        if (updated == root)
+            return this;
+        return updated == null ? empty() : new PersistentHashMap<>(updated, size - 1);
+    }
+
+    /**
+     * Returns a random entry by descending through random slots, or null if the map is empty. Entries near the
+     * root are more likely to be picked, which is good enough for sampling eviction candidates.
+     */
+    @SuppressWarnings("unchecked")
+    Map.Entry<K, V> randomEntry(Random random)
+    {
+        Node node = root;
+        while (node != null)
+        {
+            Object[] array = node.array();
+            if (array.length == 0)
+                return null;
+
+            int index = 2 * random.nextInt(array.length / 2);
+            if (array[index] != null)
+                return new AbstractMap.SimpleImmutableEntry<>((K) array[index], (V) array[index + 1]);
+            node = (Node) array[index + 1];
+        }
+        return null;
+    }
+
+    /**
+     * Calls action for every entry of this map whose key is missing from other or maps to a different object there.
+     * Subtrees the two maps share are skipped without being visited, so for maps derived from one another this
+     * costs time in proportion to what changed between them rather than to their size.
+     */
+    void forEachNotIn(PersistentHashMap<K, V> other, BiConsumer<? super K, ? super V> action)
+    {
+        if (root != null)
+            forEachNotIn(root, other.root, other, action);
+    }
+
+    private void forEachNotIn(Node node, Node otherNode, PersistentHashMap<K, V> other,
+            BiConsumer<? super K, ? super V> action)
+    {
+        if (node == otherNode)
+            return;
+
+        Object[] array = node.array();
+        if (!(node instanceof BitmapNode bitmapNode) || !(otherNode instanceof BitmapNode otherBitmapNode))
+        {
+            for (int i = 0; i < array.length; i += 2)
+                forEachNotIn(array[i], array[i + 1], other, action);
+            return;
+        }
+
+        // Walk the slots in bit order; a child in the same slot of both maps is diffed in place
+        int remaining = bitmapNode.bitmap;
+        for (int i = 0; i < array.length; i += 2)
+        {
+            int bit = Integer.lowestOneBit(remaining);
+            remaining ^= bit;
+            if (array[i] == null && (otherBitmapNode.bitmap & bit) != 0)
+            {
+                int otherIndex = 2 * Integer.bitCount(otherBitmapNode.bitmap & (bit - 1));
+                if (otherBitmapNode.array[otherIndex] == null)
+                {
+                    forEachNotIn((Node) array[i + 1], (Node) otherBitmapNode.array[otherIndex + 1], other, action);
+                    continue;
+                }
+            }
+            forEachNotIn(array[i], array[i + 1], other, action);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void forEachNotIn(Object keyOrNull, Object valueOrNode, PersistentHashMap<K, V> other,
+            BiConsumer<? super K, ? super V> action)
+    {
+        if (keyOrNull != null)
+        {
+            if (other.get(keyOrNull) != valueOrNode)
+                action.accept((K) keyOrNull, (V) valueOrNode);
+            return;
+        }
+        for (Iterator<Map.Entry<K, V>> entries = new EntryIterator<>((Node) valueOrNode); entries.hasNext(); )
+        {
+            Map.Entry<K, V> entry = entries.next();
+            if (other.get(entry.getKey()) != entry.getValue())
+                action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator()
+    {
+        return new EntryIterator<>(root);
+    }
+
+    private static int hash(Object key)
+    {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private abstract static class Node
+    {
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(int shift, int hash, Object key, Object value);
+
+        abstract Node remove(int shift, int hash, Object key);
+
+        /** Entries are laid out as key/value pairs; a null key means the value slot holds a child Node. */
+        abstract Object[] array();
+    }
+
+    private static final class BitmapNode extends Node
+    {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array)
+        {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key)
+        {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return null;
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object keyOrNull = array[index];
+            if (keyOrNull == null)
+                return ((Node) array[index + 1]).find(shift + BITS, hash, key);
+            return key.equals(keyOrNull) ? array[index + 1] : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value)
+        {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+
+            if ((bitmap & bit) == 0)
+            {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, index);
+                copy[index] = key;
+                copy[index + 1] = value;
+                System.arraycopy(array, index, copy, index + 2, array.length - index);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+
+            Object keyOrNull = array[index];
+            Object valueOrNode = array[index + 1];
+            if (keyOrNull == null)
+            {
+                Node child = ((Node) valueOrNode).put(shift + BITS, hash, key, value);
+                return child == valueOrNode ? this : with(index + 1, child);
+            }
+            if (key.equals(keyOrNull))
+                return valueOrNode == value ? this : with(index + 1, value);
+
+            Object[] copy = array.clone();
+            copy[index] = null;
+            copy[index + 1] = split(shift + BITS, keyOrNull, valueOrNode, hash, key, value);
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key)
+        {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object keyOrNull = array[index];
+            if (keyOrNull == null)
+            {
+                Node child = (Node) array[index + 1];
+                Node updated = child.remove(shift + BITS, hash, key);
+                if (updated == child)
+                    return this;
+                if (updated != null)
+                    return with(index + 1, updated);
+            }
+            else if (!key.equals(keyOrNull))
+                return this;
+
+            if (bitmap == bit)
+                return null;
+
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, index);
+            System.arraycopy(array, index + 2, copy, index, array.length - index - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+        @Override
+        Object[] array()
+        {
+            return array;
+        }
+
+        private BitmapNode with(int index, Object value)
+        {
+            Object[] copy = array.clone();
+            copy[index] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private static Node split(int shift, Object key1, Object value1, int hash2, Object key2, Object value2)
+        {
+            int hash1 = hash(key1);
+            if (hash1 == hash2)
+                return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+            return EMPTY.put(shift, hash1, key1, value1).put(shift, hash2, key2, value2);
+        }
+    }
+
+    private static final class CollisionNode extends Node
+    {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array)
+        {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key)
+        {
+            int index = indexOf(key);
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value)
+        {
+            if (hash != this.hash)
+            {
+                Node nested = new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[] {null, this});
+                return nested.put(shift, hash, key, value);
+            }
+
+            int index = indexOf(key);
+            if (index >= 0)
+            {
+                if (array[index + 1] == value)
+                    return this;
+                Object[] copy = array.clone();
+                copy[index + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key)
+        {
+            int index = indexOf(key);
+            if (index < 0)
+                return this;
+            if (array.length == 2)
+                return null;
+
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, index);
+            System.arraycopy(array, index + 2, copy, index, array.length - index - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Object[] array()
+        {
+            return array;
+        }
+
+        private int indexOf(Object key)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>>
+    {
+        // 32-bit hashes consumed 5 bits per level, plus one collision level
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root)
+        {
+            if (root != null)
+            {
+                arrays[0] = root.array();
+                depth = 0;
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance()
+        {
+            next = null;
+            while (depth >= 0)
+            {
+                Object[] array = arrays[depth];
+                int position = positions[depth];
+                if (position >= array.length)
+                {
+                    arrays[depth] = null;
+                    positions[depth] = 0;
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+
+                Object keyOrNull = array[position];
+                if (keyOrNull == null)
+                {
+                    arrays[++depth] = ((Node) array[position + 1]).array();
+                    continue;
+                }
+                next = new AbstractMap.SimpleImmutableEntry<>((K) keyOrNull, (V) array[position + 1]);
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+            Map.Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
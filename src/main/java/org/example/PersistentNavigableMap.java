@@ -0,0 +1,57 @@
+package org.example;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Immutable sorted map whose put and remove return an updated copy sharing structure with the original. A record's
+ * fields are held in one, in the layout its store's {@link FieldIndex} picks: {@link PersistentSortedMap} or
+ * {@link PersistentRadixMap}. Values are never null.
+ */
+interface PersistentNavigableMap<K extends Comparable<? super K>, V> extends Iterable<Map.Entry<K, V>>
+{
+    int size();
+
+    default boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    V get(K key);
+
+    default boolean containsKey(K key)
+    {
+        return get(key) != null;
+    }
+
+    PersistentNavigableMap<K, V> put(K key, V value);
+
+    PersistentNavigableMap<K, V> remove(K key);
+
+    /**
+     * Builds a map of the same layout as this one from the first count keys, which must be in ascending order and
+     * distinct.
+     */
+    PersistentNavigableMap<K, V> withSorted(K[] keys, V[] values, int count);
+
+    /**
+     * Iterates in key order over the entries whose key is at least from.
+     */
+    Iterator<Map.Entry<K, V>> tailIterator(K from);
+
+    /**
+     * Calls action in key order on the entries whose key is at least from, until it returns false.
+     */
+    void forEachFrom(K from, BiPredicate<? super K, ? super V> action);
+
+    default Stream<Map.Entry<K, V>> stream()
+    {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), size(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+}
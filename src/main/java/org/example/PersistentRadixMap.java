@@ -0,0 +1,536 @@
+package org.example;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiPredicate;
+
+/**
+ * Immutable map from strings kept as a path-compressed radix tree. Each node holds the run of characters its keys
+ * share past their parent's, so a prefix common to many keys, such as driver:123:location:, is stored once instead
+ * of once per key. Lookups and seeks cost O(key length) however many keys there are, and a prefix scan descends to
+ * the prefix's node and walks only the subtree below it. put and remove copy only the nodes on the key's path.
+ *
+ * As in an adaptive radix tree, a node's fan-out costs only what it uses: children sit in exact-size arrays sorted
+ * by first character, which the copy on every write resizes anyway, and are found by linear search while few and
+ * by bisection once many. Keys are rebuilt from their path as they are iterated, so every entry visited allocates
+ * its key. Maps of up to 16 entries skip the tree and are held as a {@link PersistentSortedMap} array.
+ */
+final class PersistentRadixMap<V> implements PersistentNavigableMap<String, V>
+{
+    private static final int ARRAY_LIMIT = 16;
+    // Nodes with up to this many children are searched linearly, as ART's 4- and 16-way nodes are
+    private static final int LINEAR_SEARCH_LIMIT = 16;
+    private static final char[] NO_CHARS = new char[0];
+    // Shared one-character edges and labels for ASCII, which is what most leaves and single children need
+    private static final char[][] SINGLE_CHARS = new char[128][];
+    private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+    private static final PersistentRadixMap<?> EMPTY = new PersistentRadixMap<>(PersistentSortedMap.empty());
+
+    static
+    {
+        for (char c = 0; c < SINGLE_CHARS.length; c++)
+            SINGLE_CHARS[c] = new char[] {c};
+    }
+
+    // Exactly one of small and root is set; small is used while the map has at most ARRAY_LIMIT entries, since below
+    // that a node and an edge per key cost more than the few prefixes the keys share save
+    private final PersistentSortedMap<String, V> small;
+    // Every node holds a value or has at least two children
+    private final Node<V> root;
+    private final int size;
+
+    private PersistentRadixMap(PersistentSortedMap<String, V> small)
+    {
+        this.small = small;
+        this.root = null;
+        this.size = small.size();
+    }
+
+    private PersistentRadixMap(Node<V> root, int size)
+    {
+        this.small = null;
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentRadixMap<V> empty()
+    {
+        return (PersistentRadixMap<V>) EMPTY;
+    }
+
+    /**
+     * Builds the map in O(total key length) from the first count keys, which must be in ascending order and
+     * distinct.
+     */
+    @Override
+    public PersistentRadixMap<V> withSorted(String[] keys, V[] values, int count)
+    {
+        if (count <= ARRAY_LIMIT)
+            return new PersistentRadixMap<>(PersistentSortedMap.ofSorted(keys, values, count));
+        return new PersistentRadixMap<>(build(keys, values, 0, count, 0), count);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public V get(String key)
+    {
+        if (small != null)
+            return small.get(key);
+
+        Node<V> node = root;
+        int depth = 0;
+        while (node != null)
+        {
+            char[] edge = node.edge;
+            if (commonLength(edge, key, depth) < edge.length)
+                return null;
+            depth += edge.length;
+            if (depth == key.length())
+                return node.value;
+
+            int index = indexOf(node.labels, key.charAt(depth));
+            if (index < 0)
+                return null;
+            node = node.children[index];
+        }
+        return null;
+    }
+
+    @Override
+    public PersistentRadixMap<V> put(String key, V value)
+    {
+        if (small != null)
+        {
+            PersistentSortedMap<String, V> updated = small.put(key, value);
+            if (updated == small)
+                return this;
+            return updated.size() <= ARRAY_LIMIT
+                    ? new PersistentRadixMap<>(updated)
+                    : withEntries(updated, updated.size());
+        }
+
+        boolean present = containsKey(key);
+        Node<V> updated = put(root, key, 0, value);
+        return updated == root ? this : new PersistentRadixMap<>(updated, present ? size : size + 1);
+    }
+
+    @Override
+    public PersistentRadixMap<V> remove(String key)
+    {
+        if (small != null)
+        {
+            PersistentSortedMap<String, V> updated = small.remove(key);
+            return updated == small ? this : new PersistentRadixMap<>(updated);
+        }
+
+        if (!containsKey(key))
+            return this;
+        PersistentRadixMap<V> updated = new PersistentRadixMap<>(remove(root, key, 0), size - 1);
+        // back to an array only well below the limit, so a map hovering around it doesn't convert on every write
+        return updated.size > ARRAY_LIMIT / 2 ? updated : withEntries(updated, updated.size);
+    }
+
+    // A map of the layout count entries call for, holding entries
+    @SuppressWarnings("unchecked")
+    private PersistentRadixMap<V> withEntries(Iterable<Map.Entry<String, V>> entries, int count)
+    {
+        String[] keys = new String[count];
+        V[] values = (V[]) new Object[count];
+        int i = 0;
+        for (Map.Entry<String, V> entry: entries)
+        {
+            keys[i] = entry.getKey();
+            values[i++] = entry.getValue();
+        }
+        return withSorted(keys, values, count);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, V>> iterator()
+    {
+        return small != null ? small.iterator() : new EntryIterator<>(root, "");
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, V>> tailIterator(String from)
+    {
+        return small != null ? small.tailIterator(from) : new EntryIterator<>(root, from);
+    }
+
+    @Override
+    public void forEachFrom(String from, BiPredicate<? super String, ? super V> action)
+    {
+        if (small != null)
+        {
+            small.forEachFrom(from, action);
+            return;
+        }
+        EntryIterator<V> entries = new EntryIterator<>(root, from);
+        while (entries.advance())
+        {
+            if (!action.test(entries.key, entries.value))
+                return;
+        }
+    }
+
+    // keys[from, to) share their first depth characters
+    private static <V> Node<V> build(String[] keys, V[] values, int from, int to, int depth)
+    {
+        // the keys are sorted, so what the first and last share every key in between shares too
+        int end = depth + commonLength(keys[from], keys[to - 1], depth);
+        char[] edge = chars(keys[from], depth, end);
+
+        V value = null;
+        if (keys[from].length() == end)
+            value = values[from++];
+
+        int childCount = 0;
+        for (int i = from; i < to; i++)
+        {
+            if (i == from || keys[i].charAt(end) != keys[i - 1].charAt(end))
+                childCount++;
+        }
+        char[] labels = childCount == 0 ? NO_CHARS : new char[childCount];
+        Node<V>[] children = childCount == 0 ? noChildren() : newChildren(childCount);
+        for (int child = 0, start = from; start < to; child++)
+        {
+            char label = keys[start].charAt(end);
+            int stop = start + 1;
+            while (stop < to && keys[stop].charAt(end) == label)
+                stop++;
+            labels[child] = label;
+            children[child] = build(keys, values, start, stop, end);
+            start = stop;
+        }
+        return new Node<>(edge, value, childCount == 1 ? single(labels[0]) : labels, children);
+    }
+
+    private static <V> Node<V> put(Node<V> node, String key, int depth, V value)
+    {
+        if (node == null)
+            return leaf(key, depth, value);
+
+        char[] edge = node.edge;
+        int common = commonLength(edge, key, depth);
+        if (common < edge.length)
+        {
+            // the key leaves this node's edge part way along: split the edge where they part
+            Node<V> tail = new Node<>(slice(edge, common, edge.length), node.value, node.labels, node.children);
+            char[] head = slice(edge, 0, common);
+            if (depth + common == key.length())
+                return new Node<>(head, value, single(tail.edge[0]), children(tail));
+
+            Node<V> leaf = leaf(key, depth + common, value);
+            return leaf.edge[0] < tail.edge[0]
+                    ? new Node<>(head, null, new char[] {leaf.edge[0], tail.edge[0]}, children(leaf, tail))
+                    : new Node<>(head, null, new char[] {tail.edge[0], leaf.edge[0]}, children(tail, leaf));
+        }
+
+        depth += edge.length;
+        if (depth == key.length())
+            return node.value == value ? node : new Node<>(edge, value, node.labels, node.children);
+
+        char label = key.charAt(depth);
+        int index = indexOf(node.labels, label);
+        if (index < 0)
+        {
+            int insertAt = -index - 1;
+            Node<V>[] children = newChildren(node.children.length + 1);
+            System.arraycopy(node.children, 0, children, 0, insertAt);
+            children[insertAt] = leaf(key, depth, value);
+            System.arraycopy(node.children, insertAt, children, insertAt + 1, node.children.length - insertAt);
+            if (node.labels.length == 0)
+                return new Node<>(edge, node.value, single(label), children);
+            char[] labels = new char[node.labels.length + 1];
+            System.arraycopy(node.labels, 0, labels, 0, insertAt);
+            labels[insertAt] = label;
+            System.arraycopy(node.labels, insertAt, labels, insertAt + 1, node.labels.length - insertAt);
+            return new Node<>(edge, node.value, labels, children);
+        }
+
+        Node<V> child = node.children[index];
+        Node<V> updated = put(child, key, depth, value);
+        if (updated == child)
+            return node;
+        Node<V>[] children = node.children.clone();
+        children[index] = updated;
+        return new Node<>(edge, node.value, node.labels, children);
+    }
+
+    // Caller has checked that key is present
+    private static <V> Node<V> remove(Node<V> node, String key, int depth)
+    {
+        depth += node.edge.length;
+        if (depth == key.length())
+            return compact(node.edge, null, node.labels, node.children);
+
+        int index = indexOf(node.labels, key.charAt(depth));
+        Node<V> child = remove(node.children[index], key, depth);
+        if (child != null)
+        {
+            Node<V>[] children = node.children.clone();
+            children[index] = child;
+            return new Node<>(node.edge, node.value, node.labels, children);
+        }
+
+        int count = node.children.length - 1;
+        char[] labels = count == 0 ? NO_CHARS : new char[count];
+        Node<V>[] children = count == 0 ? noChildren() : newChildren(count);
+        System.arraycopy(node.labels, 0, labels, 0, index);
+        System.arraycopy(node.labels, index + 1, labels, index, count - index);
+        if (count == 1)
+            labels = single(labels[0]);
+        System.arraycopy(node.children, 0, children, 0, index);
+        System.arraycopy(node.children, index + 1, children, index, count - index);
+        return compact(node.edge, node.value, labels, children);
+    }
+
+    // Keeps paths compressed: a node left without a value is dropped if it has no children and merged into its child
+    // if it has one
+    private static <V> Node<V> compact(char[] edge, V value, char[] labels, Node<V>[] children)
+    {
+        if (value != null || children.length > 1)
+            return new Node<>(edge, value, labels, children);
+        if (children.length == 0)
+            return null;
+
+        Node<V> child = children[0];
+        if (edge.length == 0)
+            return child;
+        char[] merged = Arrays.copyOf(edge, edge.length + child.edge.length);
+        System.arraycopy(child.edge, 0, merged, edge.length, child.edge.length);
+        return new Node<>(merged, child.value, child.labels, child.children);
+    }
+
+    private static <V> Node<V> leaf(String key, int depth, V value)
+    {
+        return new Node<>(chars(key, depth, key.length()), value, NO_CHARS, noChildren());
+    }
+
+    private static char[] chars(String key, int from, int to)
+    {
+        if (to - from <= 1)
+            return to == from ? NO_CHARS : single(key.charAt(from));
+        char[] chars = new char[to - from];
+        key.getChars(from, to, chars, 0);
+        return chars;
+    }
+
+    private static char[] slice(char[] chars, int from, int to)
+    {
+        if (to - from <= 1)
+            return to == from ? NO_CHARS : single(chars[from]);
+        return Arrays.copyOfRange(chars, from, to);
+    }
+
+    private static char[] single(char c)
+    {
+        return c < SINGLE_CHARS.length ? SINGLE_CHARS[c] : new char[] {c};
+    }
+
+    // Number of leading characters edge shares with key from offset on
+    private static int commonLength(char[] edge, String key, int offset)
+    {
+        int limit = Math.min(edge.length, key.length() - offset);
+        int i = 0;
+        while (i < limit && edge[i] == key.charAt(offset + i))
+            i++;
+        return i;
+    }
+
+    private static int commonLength(String first, String last, int offset)
+    {
+        int limit = Math.min(first.length(), last.length());
+        int i = offset;
+        while (i < limit && first.charAt(i) == last.charAt(i))
+            i++;
+        return i - offset;
+    }
+
+    // Index of label in labels, or -(insertion index) - 1 if it is absent
+    private static int indexOf(char[] labels, char label)
+    {
+        if (labels.length > LINEAR_SEARCH_LIMIT)
+            return Arrays.binarySearch(labels, label);
+        for (int i = 0; i < labels.length; i++)
+        {
+            if (labels[i] >= label)
+                return labels[i] == label ? i : -i - 1;
+        }
+        return -labels.length - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] noChildren()
+    {
+        return (Node<V>[]) NO_CHILDREN;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newChildren(int count)
+    {
+        return (Node<V>[]) new Node<?>[count];
+    }
+
+    private static <V> Node<V>[] children(Node<V> only)
+    {
+        Node<V>[] children = newChildren(1);
+        children[0] = only;
+        return children;
+    }
+
+    private static <V> Node<V>[] children(Node<V> first, Node<V> second)
+    {
+        Node<V>[] children = newChildren(2);
+        children[0] = first;
+        children[1] = second;
+        return children;
+    }
+
+    private static final class Node<V>
+    {
+        // Characters from the end of the parent's path to the end of this node's; the root's is what every key shares
+        final char[] edge;
+        // Null unless a key ends at this node
+        final V value;
+        // First character of each child's edge, ascending, in step with children
+        final char[] labels;
+        final Node<V>[] children;
+
+        Node(char[] edge, V value, char[] labels, Node<V>[] children)
+        {
+            this.edge = edge;
+            this.value = value;
+            this.labels = labels;
+            this.children = children;
+        }
+    }
+
+    // Depth-first walk in key order over the keys at least from, keeping the path to the current node in one buffer
+    private static final class EntryIterator<V> implements Iterator<Map.Entry<String, V>>
+    {
+        private Object[] nodes = new Object[8];
+        // Next child of each node on the path to visit; -1 while the node's own value is still to come
+        private int[] nextChild = new int[8];
+        // Length of the path through the end of each node's edge
+        private int[] ends = new int[8];
+        private int depth;
+        private char[] path = new char[32];
+
+        // Set by advance to the entry it moved to
+        String key;
+        V value;
+        private boolean ready;
+
+        EntryIterator(Node<V> root, String from)
+        {
+            // push the nodes on from's path, each positioned at the first child not below from
+            int length = 0;
+            for (Node<V> node = root; node != null; )
+            {
+                char[] edge = node.edge;
+                int common = commonLength(edge, from, length);
+                if (common < edge.length)
+                {
+                    // the subtree is all below from if from is greater where they part, else all at or above it
+                    if (length + common == from.length() || edge[common] > from.charAt(length + common))
+                        push(node, length, -1);
+                    return;
+                }
+
+                int end = length + edge.length;
+                if (end == from.length())
+                {
+                    push(node, length, -1);
+                    return;
+                }
+
+                int index = indexOf(node.labels, from.charAt(end));
+                push(node, length, index >= 0 ? index + 1 : -index - 1);
+                node = index >= 0 ? node.children[index] : null;
+                length = end;
+            }
+        }
+
+        private void push(Node<V> node, int start, int next)
+        {
+            if (depth == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, 2 * depth);
+                nextChild = Arrays.copyOf(nextChild, 2 * depth);
+                ends = Arrays.copyOf(ends, 2 * depth);
+            }
+            int end = start + node.edge.length;
+            if (end > path.length)
+                path = Arrays.copyOf(path, Math.max(2 * path.length, end));
+            System.arraycopy(node.edge, 0, path, start, node.edge.length);
+            nodes[depth] = node;
+            nextChild[depth] = next;
+            ends[depth] = end;
+            depth++;
+        }
+
+        /**
+         * Moves to the next entry and returns true, or returns false once there are none left.
+         */
+        @SuppressWarnings("unchecked")
+        boolean advance()
+        {
+            while (depth > 0)
+            {
+                int top = depth - 1;
+                Node<V> node = (Node<V>) nodes[top];
+                int next = nextChild[top];
+                if (next < 0)
+                {
+                    nextChild[top] = 0;
+                    if (node.value != null)
+                    {
+                        key = new String(path, 0, ends[top]);
+                        value = node.value;
+                        return true;
+                    }
+                }
+                else if (next < node.children.length)
+                {
+                    nextChild[top] = next + 1;
+                    push(node.children[next], ends[top], -1);
+                }
+                else
+                {
+                    nodes[top] = null;
+                    depth--;
+                }
+            }
+            key = null;
+            value = null;
+            return false;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (!ready)
+                ready = advance();
+            return ready;
+        }
+
+        @Override
+        public Map.Entry<String, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            ready = false;
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package org.example;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiPredicate;
+
+/**
+ * Immutable sorted map backed by an AVL tree. put and remove copy only the O(log n) nodes on the path to the key
+ * and share the rest of the tree, so a record's fields can be handed to a snapshot as they are and the live copy
+ * then costs memory in proportion to the fields written afterwards, not to the size of the record.
+ *
+ * Maps of up to 16 entries, which is most records, skip the tree and keep their entries in one sorted array
+ * of alternating keys and values. That drops the 32-byte node every entry would otherwise cost, and copying the
+ * array on a write costs about what copying the path to the entry would.
+ */
+final class PersistentSortedMap<K extends Comparable<? super K>, V> implements PersistentNavigableMap<K, V>
+{
+    private static final int ARRAY_LIMIT = 16;
+    private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(new Object[0]);
+
+    // Exactly one of root and entries is set; entries is used while the map has at most ARRAY_LIMIT entries
+    private final Node<K, V> root;
+    private final Object[] entries;
+    private final int size;
+
+    private PersistentSortedMap(Node<K, V> root, int size)
+    {
+        this.root = root;
+        this.entries = null;
+        this.size = size;
+    }
+
+    private PersistentSortedMap(Object[] entries)
+    {
+        this.root = null;
+        this.entries = entries;
+        this.size = entries.length / 2;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty()
+    {
+        return (PersistentSortedMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Builds a balanced map in O(count) from the first count keys, which must be in ascending order and distinct.
+     */
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> ofSorted(K[] keys, V[] values, int count)
+    {
+        if (count == 0)
+            return empty();
+        if (count > ARRAY_LIMIT)
+            return new PersistentSortedMap<>(build(keys, values, 0, count), count);
+
+        Object[] entries = new Object[2 * count];
+        for (int i = 0; i < count; i++)
+        {
+            entries[2 * i] = keys[i];
+            entries[2 * i + 1] = values[i];
+        }
+        return new PersistentSortedMap<>(entries);
+    }
+
+    @Override
+    public PersistentSortedMap<K, V> withSorted(K[] keys, V[] values, int count)
+    {
+        return ofSorted(keys, values, count);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key)
+    {
+        if (entries != null)
+        {
+            int index = indexOf(entries, key);
+            return index < 0 ? null : (V) entries[index + 1];
+        }
+
+        Node<K, V> node = root;
+        while (node != null)
+        {
+            int order = key.compareTo(node.key);
+            if (order == 0)
+                return node.value;
+            node = order < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(K key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public PersistentSortedMap<K, V> put(K key, V value)
+    {
+        if (entries != null)
+        {
+            int index = indexOf(entries, key);
+            if (index >= 0)
+            {
+                if (entries[index + 1] == value)
+                    return this;
+                Object[] copy = entries.clone();
+                copy[index + 1] = value;
+                return new PersistentSortedMap<>(copy);
+            }
+
+            int insertAt = -index - 1;
+            Object[] copy = new Object[entries.length + 2];
+            System.arraycopy(entries, 0, copy, 0, insertAt);
+            copy[insertAt] = key;
+            copy[insertAt + 1] = value;
+            System.arraycopy(entries, insertAt, copy, insertAt + 2, entries.length - insertAt);
+            if (size < ARRAY_LIMIT)
+                return new PersistentSortedMap<>(copy);
+
+            // outgrew the array: switch to a balanced tree of every entry
+            K[] keys = (K[]) new Comparable<?>[size + 1];
+            V[] values = (V[]) new Object[size + 1];
+            for (int i = 0; i <= size; i++)
+            {
+                keys[i] = (K) copy[2 * i];
+                values[i] = (V) copy[2 * i + 1];
+            }
+            return new PersistentSortedMap<>(build(keys, values, 0, size + 1), size + 1);
+        }
+
+        boolean present = containsKey(key);
+        Node<K, V> updated = put(root, key, value);
+        return updated == root ? this : new PersistentSortedMap<>(updated, present ? size : size + 1);
+    }
+
+    @Override
+    public PersistentSortedMap<K, V> remove(K key)
+    {
+        if (entries != null)
+        {
+            int index = indexOf(entries, key);
+            if (index < 0)
+                return this;
+            if (size == 1)
+                return empty();
+            Object[] copy = new Object[entries.length - 2];
+            System.arraycopy(entries, 0, copy, 0, index);
+            System.arraycopy(entries, index + 2, copy, index, entries.length - index - 2);
+            return new PersistentSortedMap<>(copy);
+        }
+
+        if (!containsKey(key))
+            return this;
+        Node<K, V> updated = remove(root, key);
+        // back to an array only well below the limit, so a map hovering around it doesn't convert on every write
+        if (size - 1 > ARRAY_LIMIT / 2)
+            return new PersistentSortedMap<>(updated, size - 1);
+
+        Object[] copy = new Object[2 * (size - 1)];
+        int i = 0;
+        for (Iterator<Map.Entry<K, V>> iterator = new EntryIterator<>(updated, null); iterator.hasNext(); i += 2)
+        {
+            Map.Entry<K, V> entry = iterator.next();
+            copy[i] = entry.getKey();
+            copy[i + 1] = entry.getValue();
+        }
+        return new PersistentSortedMap<>(copy);
+    }
+
+    // Index of key's slot in entries, or -(insertion index) - 1 if it is absent
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<? super K>> int indexOf(Object[] entries, K key)
+    {
+        int low = 0;
+        int high = entries.length / 2 - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int order = key.compareTo((K) entries[2 * middle]);
+            if (order == 0)
+                return 2 * middle;
+            if (order < 0)
+                high = middle - 1;
+            else
+                low = middle + 1;
+        }
+        return -2 * low - 1;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator()
+    {
+        return entries != null ? new ArrayIterator<>(entries, 0) : new EntryIterator<>(root, null);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> tailIterator(K from)
+    {
+        if (entries == null)
+            return new EntryIterator<>(root, from);
+        int index = indexOf(entries, from);
+        return new ArrayIterator<>(entries, index >= 0 ? index : -index - 1);
+    }
+
+    // Unlike the iterators this allocates no entry per call, which is what lets the scans hand fields out garbage-free
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachFrom(K from, BiPredicate<? super K, ? super V> action)
+    {
+        if (entries == null)
+        {
+            forEachFrom(root, from, action);
+            return;
+        }
+        int index = indexOf(entries, from);
+        for (int i = index >= 0 ? index : -index - 1; i < entries.length; i += 2)
+        {
+            if (!action.test((K) entries[i], (V) entries[i + 1]))
+                return;
+        }
+    }
+
+    // Returns false once action has asked to stop
+    private static <K extends Comparable<? super K>, V> boolean forEachFrom(Node<K, V> node, K from,
+            BiPredicate<? super K, ? super V> action)
+    {
+        if (node == null)
+            return true;
+        // a node below from has its whole left subtree below from as well
+        if (from.compareTo(node.key) <= 0)
+        {
+            if (!forEachFrom(node.left, from, action) || !action.test(node.key, node.value))
+                return false;
+        }
+        return forEachFrom(node.right, from, action);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> build(K[] keys, V[] values, int from, int to)
+    {
+        if (from >= to)
+            return null;
+        int middle = (from + to) >>> 1;
+        return new Node<>(keys[middle], values[middle], build(keys, values, from, middle),
+                build(keys, values, middle + 1, to));
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> node, K key, V value)
+    {
+        if (node == null)
+            return new Node<>(key, value, null, null);
+
+        int order = key.compareTo(node.key);
+        if (order == 0)
+            return node.value == value ? node : new Node<>(node.key, value, node.left, node.right);
+        if (order < 0)
+        {
+            Node<K, V> left = put(node.left, key, value);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        Node<K, V> right = put(node.right, key, value);
+        return right == node.right ? node : balance(node.key, node.value, node.left, right);
+    }
+
+    // Caller has checked that key is present
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> node, K key)
+    {
+        int order = key.compareTo(node.key);
+        if (order < 0)
+            return balance(node.key, node.value, remove(node.left, key), node.right);
+        if (order > 0)
+            return balance(node.key, node.value, node.left, remove(node.right, key));
+
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+        Node<K, V> successor = node.right;
+        while (successor.left != null)
+            successor = successor.left;
+        return balance(successor.key, successor.value, node.left, removeFirst(node.right));
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> removeFirst(Node<K, V> node)
+    {
+        if (node.left == null)
+            return node.right;
+        return balance(node.key, node.value, removeFirst(node.left), node.right);
+    }
+
+    private static int height(Node<?, ?> node)
+    {
+        return node == null ? 0 : node.height;
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> balance(K key, V value, Node<K, V> left,
+            Node<K, V> right)
+    {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1)
+        {
+            if (height(left.left) >= height(left.right))
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            Node<K, V> pivot = left.right;
+            return new Node<>(pivot.key, pivot.value,
+                    new Node<>(left.key, left.value, left.left, pivot.left),
+                    new Node<>(key, value, pivot.right, right));
+        }
+        if (rightHeight > leftHeight + 1)
+        {
+            if (height(right.right) >= height(right.left))
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            Node<K, V> pivot = right.left;
+            return new Node<>(pivot.key, pivot.value,
+                    new Node<>(key, value, left, pivot.left),
+                    new Node<>(right.key, right.value, pivot.right, right.right));
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static final class Node<K, V>
+    {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int height;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right)
+        {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    private static final class ArrayIterator<K, V> implements Iterator<Map.Entry<K, V>>
+    {
+        private final Object[] entries;
+        private int index;
+
+        ArrayIterator(Object[] entries, int index)
+        {
+            this.entries = entries;
+            this.index = index;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return index < entries.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next()
+        {
+            if (index >= entries.length)
+                throw new NoSuchElementException();
+            index += 2;
+            return new AbstractMap.SimpleImmutableEntry<>((K) entries[index - 2], (V) entries[index - 1]);
+        }
+    }
+
+    private static final class EntryIterator<K extends Comparable<? super K>, V> implements Iterator<Map.Entry<K, V>>
+    {
+        // An AVL tree of 2^31 entries is at most 45 levels deep
+        private final Object[] stack = new Object[48];
+        private int depth;
+
+        EntryIterator(Node<K, V> root, K from)
+        {
+            // push the path of nodes not below from, so the top is the first entry to return
+            for (Node<K, V> node = root; node != null; )
+            {
+                if (from == null || from.compareTo(node.key) <= 0)
+                {
+                    stack[depth++] = node;
+                    node = node.left;
+                }
+                else
+                    node = node.right;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return depth > 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next()
+        {
+            if (depth == 0)
+                throw new NoSuchElementException();
+            Node<K, V> node = (Node<K, V>) stack[--depth];
+            stack[depth] = null;
+            for (Node<K, V> next = node.right; next != null; next = next.left)
+                stack[depth++] = next;
+            return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.example;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a paginated scan: up to the requested number of fields with their values, in field order, and the
+ * cursor that resumes the scan after the last of them.
+ */
+public final class ScanPage
+{
+    private final List<Map.Entry<String, String>> entries;
+    private final String nextCursor;
+
+    ScanPage(List<Map.Entry<String, String>> entries, String nextCursor)
+    {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Map.Entry<String, String>> entries()
+    {
+        return entries;
+    }
+
+    /**
+     * The cursor to pass to the next call, or null when this page ends the scan. It is the last field returned, so
+     * a resumed scan continues from where this one stopped even if fields were added or removed in between.
+     */
+    public String nextCursor()
+    {
+        return nextCursor;
+    }
+
+    public boolean isLast()
+    {
+        return nextCursor == null;
+    }
+}
@@ -0,0 +1,454 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Splits the key space over independent InMemoryDB partitions, each owned by one thread that is the only one ever
+ * to touch it. An operation is hashed by key to its shard and handed to the owning thread through a lock-free
+ * queue, so threads on different cores share nothing but the queues: no stripe lock, record trie or counter is
+ * contended between them.
+ *
+ * Every operation has an asynchronous form that returns as soon as it is queued, and a blocking form that waits
+ * for it. Operations on one key run in the order they were submitted from one thread. backup and restore run on
+ * every shard but not atomically across them, so a backup taken while writes are in flight may see a write in one
+ * shard and not in another.
+ */
+public final class ShardedInMemoryDB implements AutoCloseable
+{
+    // Polls an empty queue this many times before parking, so a steady stream of work never pays for a wake-up
+    private static final int SPINS = 256;
+
+    /**
+     * Creates the store for one shard. Each shard needs its own write-ahead log and snapshot file, if any.
+     */
+    @FunctionalInterface
+    public interface ShardFactory
+    {
+        InMemoryDB create(int shard) throws IOException;
+    }
+
+    private final Shard[] shards;
+    private volatile boolean closed;
+
+    /**
+     * Creates one plain store per available processor.
+     */
+    public ShardedInMemoryDB()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedInMemoryDB(int shards)
+    {
+        this(stores(shards));
+    }
+
+    /**
+     * Creates shards stores with factory and starts a thread to own each.
+     */
+    public ShardedInMemoryDB(int shards, ShardFactory factory) throws IOException
+    {
+        this(stores(shards, factory));
+    }
+
+    private ShardedInMemoryDB(InMemoryDB[] stores)
+    {
+        this.shards = new Shard[stores.length];
+        for (int i = 0; i < stores.length; i++)
+            this.shards[i] = new Shard(stores[i], "db-shard-" + i);
+        for (Shard shard: shards)
+            shard.thread.start();
+    }
+
+    private static InMemoryDB[] stores(int shards)
+    {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Shard count must be positive");
+        InMemoryDB[] stores = new InMemoryDB[shards];
+        for (int i = 0; i < shards; i++)
+            stores[i] = new InMemoryDB();
+        return stores;
+    }
+
+    private static InMemoryDB[] stores(int shards, ShardFactory factory) throws IOException
+    {
+        if (shards <= 0 || factory == null)
+            throw new IllegalArgumentException("Shard count must be positive and have a factory");
+        InMemoryDB[] stores = new InMemoryDB[shards];
+        try
+        {
+            for (int i = 0; i < shards; i++)
+                stores[i] = factory.create(i);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            for (InMemoryDB store: stores)
+            {
+                if (store != null)
+                    store.close();
+            }
+            throw e;
+        }
+        return stores;
+    }
+
+    public int shardCount()
+    {
+        return shards.length;
+    }
+
+    public CompletableFuture<Void> setAtAsync(String key, String field, String value, int timestamp)
+    {
+        return submit(key, db -> {
+            db.setAt(key, field, value, timestamp);
+            return null;
+        });
+    }
+
+    public void setAt(String key, String field, String value, int timestamp)
+    {
+        join(setAtAsync(key, field, value, timestamp));
+    }
+
+    public CompletableFuture<Void> setWithTTLAsync(String key, String field, String value, int timestamp, int ttl)
+    {
+        return submit(key, db -> {
+            db.setWithTTL(key, field, value, timestamp, ttl);
+            return null;
+        });
+    }
+
+    public void setWithTTL(String key, String field, String value, int timestamp, int ttl)
+    {
+        join(setWithTTLAsync(key, field, value, timestamp, ttl));
+    }
+
+    /**
+     * Completes with the value, or null when there is none visible at timestamp.
+     */
+    public CompletableFuture<String> getValueAtAsync(String key, String field, int timestamp)
+    {
+        return submit(key, db -> db.getValueAt(key, field, timestamp));
+    }
+
+    public String getValueAt(String key, String field, int timestamp)
+    {
+        return join(getValueAtAsync(key, field, timestamp));
+    }
+
+    public Optional<String> getAt(String key, String field, int timestamp)
+    {
+        return Optional.ofNullable(getValueAt(key, field, timestamp));
+    }
+
+    public CompletableFuture<Boolean> deleteAtAsync(String key, String field, int timestamp)
+    {
+        return submit(key, db -> db.deleteAt(key, field, timestamp));
+    }
+
+    public boolean deleteAt(String key, String field, int timestamp)
+    {
+        return join(deleteAtAsync(key, field, timestamp));
+    }
+
+    public CompletableFuture<List<String>> scanAtAsync(String key, int timestamp)
+    {
+        return submit(key, db -> db.scanAt(key, timestamp));
+    }
+
+    public List<String> scanAt(String key, int timestamp)
+    {
+        return join(scanAtAsync(key, timestamp));
+    }
+
+    public CompletableFuture<List<String>> scanByPrefixAtAsync(String key, String prefix, int timestamp)
+    {
+        return submit(key, db -> db.scanByPrefixAt(key, prefix, timestamp));
+    }
+
+    public List<String> scanByPrefixAt(String key, String prefix, int timestamp)
+    {
+        return join(scanByPrefixAtAsync(key, prefix, timestamp));
+    }
+
+    /**
+     * Looks up keys[i] and fields[i] into results[i] for every i, queueing one batch per shard rather than one task
+     * per lookup. Every key lives on one shard, so all requests for it are still read from one record lookup.
+     */
+    public void getManyAt(String[] keys, String[] fields, int timestamp, String[] results)
+    {
+        if (keys.length != fields.length || results.length < keys.length)
+            throw new IllegalArgumentException("Keys and fields must have the same length and fit in results");
+
+        int[][] positions = new int[shards.length][];
+        int[] counts = new int[shards.length];
+        int[] shardOf = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+        {
+            int shard = shardIndex(keys[i]);
+            shardOf[i] = shard;
+            counts[shard]++;
+        }
+        for (int shard = 0; shard < shards.length; shard++)
+            positions[shard] = new int[counts[shard]];
+        int[] filled = new int[shards.length];
+        for (int i = 0; i < keys.length; i++)
+            positions[shardOf[i]][filled[shardOf[i]]++] = i;
+
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++)
+        {
+            int[] mine = positions[shard];
+            if (mine.length == 0)
+                continue;
+            // each shard writes only its own positions of results; join publishes them to this thread
+            lookups.add(shards[shard].submit(db -> {
+                String[] shardKeys = new String[mine.length];
+                String[] shardFields = new String[mine.length];
+                for (int j = 0; j < mine.length; j++)
+                {
+                    shardKeys[j] = keys[mine[j]];
+                    shardFields[j] = fields[mine[j]];
+                }
+                String[] values = db.getManyAt(shardKeys, shardFields, timestamp);
+                for (int j = 0; j < mine.length; j++)
+                    results[mine[j]] = values[j];
+                return null;
+            }));
+        }
+        for (CompletableFuture<Void> lookup: lookups)
+            join(lookup);
+    }
+
+    public String[] getManyAt(String[] keys, String[] fields, int timestamp)
+    {
+        String[] results = new String[keys.length];
+        getManyAt(keys, fields, timestamp, results);
+        return results;
+    }
+
+    /**
+     * Takes a backup at timestamp on every shard and returns the total number of records in them.
+     */
+    public int backup(int timestamp)
+    {
+        int records = 0;
+        for (CompletableFuture<Integer> backup: broadcast(db -> db.backup(timestamp)))
+            records += join(backup);
+        return records;
+    }
+
+    /**
+     * Restores every shard to its backup at timestampToRestore. Throws if any shard has no such backup, in which
+     * case the shards that had one are restored regardless.
+     */
+    public void restore(int currentTimestamp, int timestampToRestore)
+    {
+        List<CompletableFuture<Void>> restores = broadcast(db -> {
+            db.restore(currentTimestamp, timestampToRestore);
+            return null;
+        });
+        for (CompletableFuture<Void> restore: restores)
+            join(restore);
+    }
+
+    /**
+     * Summed over the shards, each read without waiting for its thread.
+     */
+    public long recordCount()
+    {
+        long records = 0;
+        for (Shard shard: shards)
+            records += shard.db.recordCount();
+        return records;
+    }
+
+    public long fieldCount()
+    {
+        long fields = 0;
+        for (Shard shard: shards)
+            fields += shard.db.fieldCount();
+        return fields;
+    }
+
+    public long usedBytes()
+    {
+        long bytes = 0;
+        for (Shard shard: shards)
+            bytes += shard.db.usedBytes();
+        return bytes;
+    }
+
+    /**
+     * Runs what was already queued, stops the shard threads and closes every shard. Operations submitted
+     * afterwards fail with IllegalStateException. A write-ahead log a shard was built with belongs to the caller
+     * and should be closed after this.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (Shard shard: shards)
+            shard.stop();
+        for (Shard shard: shards)
+        {
+            shard.await();
+            // a task that raced with closed is run here, so no caller is left waiting on it
+            shard.drain();
+            shard.db.close();
+        }
+    }
+
+    private int shardIndex(String key)
+    {
+        if (key == null)
+            return 0;
+        // a different mix from the store's own stripe hash, so the keys of one shard still spread over its stripes
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return (int) (((hash & 0xFFFFFFFFL) * shards.length) >>> 32);
+    }
+
+    private <T> CompletableFuture<T> submit(String key, Function<InMemoryDB, T> operation)
+    {
+        return shards[shardIndex(key)].submit(operation);
+    }
+
+    private <T> List<CompletableFuture<T>> broadcast(Function<InMemoryDB, T> operation)
+    {
+        List<CompletableFuture<T>> results = new ArrayList<>(shards.length);
+        for (Shard shard: shards)
+            results.add(shard.submit(operation));
+        return results;
+    }
+
+    // Rethrows what the operation threw on its shard, so callers see the store's own exceptions
+    private static <T> T join(CompletableFuture<T> result)
+    {
+        try
+        {
+            return result.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            if (e.getCause() instanceof Error cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private final class Shard implements Runnable
+    {
+        final InMemoryDB db;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean parked = new AtomicBoolean();
+        volatile boolean stopped;
+
+        Shard(InMemoryDB db, String name)
+        {
+            this.db = db;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        <T> CompletableFuture<T> submit(Function<InMemoryDB, T> operation)
+        {
+            if (closed)
+                throw new IllegalStateException("Store is closed");
+
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable task = () -> {
+                try
+                {
+                    result.complete(operation.apply(db));
+                }
+                catch (Throwable e)
+                {
+                    // an Error fails only this operation; the owner thread keeps serving the shard
+                    result.completeExceptionally(e);
+                }
+            };
+            tasks.add(task);
+            // close may have drained the queue between the check above and the add; whoever removes the task
+            // first decides it, so it is either run by the owner or the drain, or failed here
+            if (closed && tasks.remove(task))
+                result.completeExceptionally(new IllegalStateException("Store is closed"));
+            // the owner sets parked before its last look at the queue, so it either sees this task or is woken
+            else if (parked.get() && parked.compareAndSet(true, false))
+                LockSupport.unpark(thread);
+            return result;
+        }
+
+        @Override
+        public void run()
+        {
+            int idle = 0;
+            while (true)
+            {
+                Runnable task = tasks.poll();
+                if (task != null)
+                {
+                    task.run();
+                    idle = 0;
+                }
+                else if (stopped)
+                    return;
+                else if (++idle < SPINS)
+                    Thread.onSpinWait();
+                else
+                {
+                    parked.set(true);
+                    if (tasks.isEmpty() && !stopped)
+                        LockSupport.park(this);
+                    parked.set(false);
+                    idle = 0;
+                }
+            }
+        }
+
+        void stop()
+        {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        void await()
+        {
+            boolean interrupted = false;
+            while (thread.isAlive())
+            {
+                try
+                {
+                    thread.join();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void drain()
+        {
+            for (Runnable task; (task = tasks.poll()) != null; )
+                task.run();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk form of an InMemoryDB snapshot.
+ *
+ * Layout: a fixed header (magic, version, backup timestamp, store time, write-ahead log offset, record count)
+ * followed by one entry per record framed as [int length][int crc32][body]. A body is the key, the field count
+ * and then per field its name, version count and every version oldest first as value, expiration time, version
+ * and a deleted flag; strings are length-prefixed UTF-8 with -1 for null. Version 1 files, written before fields
+ * had versions, hold just a value and expiration time per field and are still read. Versions 1 and 2 wrote -1 as
+ * the expiration time of a field without a TTL, which is read back as no TTL.
+ *
+ * Loading memory-maps the file, finds the record boundaries with one sequential pass over the length prefixes,
+ * then decodes records and builds the stripes in parallel.
+ */
+final class SnapshotFile
+{
+    private static final int MAGIC = 0x494D4442; // "IMDB"
+    private static final int VERSION = 3;
+    private static final int UNVERSIONED = 1;
+    // Versions 1 and 2 marked a field without a TTL with expiration time -1
+    private static final int LEGACY_NEVER_EXPIRES = 2;
+    private static final int HEADER_BYTES = 28;
+    private static final int ENTRY_HEADER_BYTES = 8;
+    private static final long MAX_WINDOW = 1L << 30;
+
+    static final class Contents
+    {
+        final int timestamp;
+        final InMemoryDB.Snapshot snapshot;
+
+        Contents(int timestamp, InMemoryDB.Snapshot snapshot)
+        {
+            this.timestamp = timestamp;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private SnapshotFile()
+    {
+    }
+
+    /**
+     * Writes snapshot next to path and atomically moves it into place, so a crash never leaves a partial file.
+     */
+    static void write(Path path, int timestamp, InMemoryDB.Snapshot snapshot) throws IOException
+    {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer out = ByteBuffer.allocate(1 << 20);
+            out.putInt(MAGIC).putInt(VERSION).putInt(timestamp).putInt(snapshot.storeTime)
+                    .putLong(snapshot.logOffset).putInt(snapshot.recordCount);
+
+            ByteBuffer body = ByteBuffer.allocate(4096);
+            CRC32 crc = new CRC32();
+            for (PersistentHashMap<String, InMemoryDB.Record> root: snapshot.roots)
+            {
+                for (Map.Entry<String, InMemoryDB.Record> recordEntry: root)
+                {
+                    body = encode(body, recordEntry.getKey(), recordEntry.getValue());
+                    crc.reset();
+                    crc.update(body.array(), 0, body.position());
+
+                    if (out.remaining() < ENTRY_HEADER_BYTES + body.position())
+                    {
+                        drain(channel, out);
+                        if (out.capacity() < ENTRY_HEADER_BYTES + body.position())
+                            out = ByteBuffer.allocate(ENTRY_HEADER_BYTES + body.position());
+                    }
+                    out.putInt(body.position()).putInt((int) crc.getValue()).put(body.array(), 0, body.position());
+                }
+            }
+            drain(channel, out);
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out) throws IOException
+    {
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+    }
+
+    private static ByteBuffer encode(ByteBuffer body, String key, InMemoryDB.Record record)
+    {
+        body.clear();
+        body = putString(body, key);
+        body = ensure(body, 4);
+        body.putInt(record.fields.size());
+        for (Map.Entry<String, InMemoryDB.ValueWithTTL> fieldEntry: record.fields)
+        {
+            InMemoryDB.ValueWithTTL newest = fieldEntry.getValue();
+            body = putString(body, fieldEntry.getKey());
+            body = ensure(body, 4);
+            body.putInt(newest.history.length + 1);
+            for (InMemoryDB.ValueWithTTL version: newest.history)
+                body = putVersion(body, version);
+            body = putVersion(body, newest);
+        }
+        return body;
+    }
+
+    private static ByteBuffer putVersion(ByteBuffer body, InMemoryDB.ValueWithTTL version)
+    {
+        body = putString(body, version.value());
+        body = ensure(body, 9);
+        body.putInt(version.expirationTime).putInt(version.version).put((byte) (version.deleted ? 1 : 0));
+        return body;
+    }
+
+    private static ByteBuffer putString(ByteBuffer body, String value)
+    {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        body = ensure(body, 4 + (bytes == null ? 0 : bytes.length));
+        body.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null)
+            body.put(bytes);
+        return body;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer body, int bytes)
+    {
+        if (body.remaining() >= bytes)
+            return body;
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + bytes));
+        body.flip();
+        return grown.put(body);
+    }
+
+    /**
+     * Maps and decodes path, placing every record in the stripe stripeOf picks for its key, creating its values with
+     * the store's factory, passing field names through fieldNames and laying fields out as emptyFields is.
+     */
+    @SuppressWarnings("unchecked")
+    static Contents read(Path path, int stripes, ToIntFunction<String> stripeOf, InMemoryDB.ValueWithTTL.Factory values,
+            UnaryOperator<String> fieldNames, PersistentNavigableMap<String, InMemoryDB.ValueWithTTL> emptyFields)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < HEADER_BYTES)
+                throw new IOException("Snapshot file is truncated: " + path);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a snapshot file: " + path);
+            int version = header.getInt();
+            if (version < UNVERSIONED || version > VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + path);
+            int timestamp = header.getInt();
+            int storeTime = header.getInt();
+            long logOffset = header.getLong();
+            int recordCount = header.getInt();
+
+            // Map in windows that start on a record boundary, so no record straddles two mappings
+            List<ByteBuffer> windows = new ArrayList<>();
+            int[] windowOf = new int[recordCount];
+            int[] offsetOf = new int[recordCount];
+            long position = HEADER_BYTES;
+            int record = 0;
+            while (record < recordCount)
+            {
+                long windowSize = Math.min(MAX_WINDOW, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                int offset = 0;
+                while (record < recordCount && offset + ENTRY_HEADER_BYTES <= windowSize)
+                {
+                    int length = window.getInt(offset);
+                    if (length <= 0)
+                        throw new IOException("Corrupt snapshot record " + record + ": " + path);
+                    if (offset + ENTRY_HEADER_BYTES + (long) length > windowSize)
+                        break;
+                    windowOf[record] = windows.size();
+                    offsetOf[record] = offset;
+                    offset += ENTRY_HEADER_BYTES + length;
+                    record++;
+                }
+                if (offset == 0)
+                    throw new IOException("Snapshot file is truncated at record " + record + ": " + path);
+                windows.add(window);
+                position += offset;
+            }
+
+            String[] keys = new String[recordCount];
+            InMemoryDB.Record[] records = new InMemoryDB.Record[recordCount];
+            try
+            {
+                IntStream.range(0, recordCount).parallel().forEach(i -> {
+                    ByteBuffer window = windows.get(windowOf[i]);
+                    int length = window.getInt(offsetOf[i]);
+                    ByteBuffer body = window.slice(offsetOf[i] + ENTRY_HEADER_BYTES, length);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != window.getInt(offsetOf[i] + 4))
+                        throw new UncheckedIOException(
+                                new IOException("Checksum mismatch in snapshot record " + i + ": " + path));
+
+                    keys[i] = getString(body);
+                    records[i] = decodeRecord(keys[i], body, version, values, fieldNames, emptyFields);
+                });
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+
+            // Bucket records by stripe, then build every stripe's trie independently
+            int[] stripeOfRecord = new int[recordCount];
+            IntStream.range(0, recordCount).parallel().forEach(i -> stripeOfRecord[i] = stripeOf.applyAsInt(keys[i]));
+            int[] bucketStart = new int[stripes + 1];
+            for (int stripe: stripeOfRecord)
+                bucketStart[stripe + 1]++;
+            for (int i = 0; i < stripes; i++)
+                bucketStart[i + 1] += bucketStart[i];
+            int[] fill = bucketStart.clone();
+            int[] ordered = new int[recordCount];
+            for (int i = 0; i < recordCount; i++)
+                ordered[fill[stripeOfRecord[i]]++] = i;
+
+            PersistentHashMap<String, InMemoryDB.Record>[] roots = (PersistentHashMap<String, InMemoryDB.Record>[])
+                    new PersistentHashMap<?, ?>[stripes];
+            IntStream.range(0, stripes).parallel().forEach(stripe -> {
+                PersistentHashMap<String, InMemoryDB.Record> root = PersistentHashMap.empty();
+                for (int i = bucketStart[stripe]; i < bucketStart[stripe + 1]; i++)
+                    root = root.put(keys[ordered[i]], records[ordered[i]]);
+                roots[stripe] = root;
+            });
+
+            long usedBytes = 0;
+            long fieldCount = 0;
+            for (InMemoryDB.Record loaded: records)
+            {
+                usedBytes += loaded.bytes;
+                fieldCount += loaded.fields.size();
+            }
+
+            return new Contents(timestamp,
+                    new InMemoryDB.Snapshot(roots, null, storeTime, recordCount, usedBytes, fieldCount, logOffset));
+        }
+    }
+
+    // Fields are written in key order, so the record's field index is built directly instead of by insertion
+    private static InMemoryDB.Record decodeRecord(String key, ByteBuffer body, int fileVersion,
+            InMemoryDB.ValueWithTTL.Factory values, UnaryOperator<String> fieldNames,
+            PersistentNavigableMap<String, InMemoryDB.ValueWithTTL> emptyFields)
+    {
+        int fieldCount = body.getInt();
+        String[] fields = new String[fieldCount];
+        InMemoryDB.ValueWithTTL[] versions = new InMemoryDB.ValueWithTTL[fieldCount];
+        long bytes = InMemoryDB.Record.estimate(key);
+        for (int i = 0; i < fieldCount; i++)
+        {
+            fields[i] = fieldNames.apply(getString(body));
+            if (fileVersion == UNVERSIONED)
+            {
+                String value = getString(body);
+                versions[i] = values.create(value, expiration(body.getInt(), fileVersion),
+                        InMemoryDB.ValueWithTTL.NO_VERSION, false, InMemoryDB.ValueWithTTL.NO_HISTORY);
+            }
+            else
+            {
+                int versionCount = body.getInt();
+                InMemoryDB.ValueWithTTL[] history = versionCount == 1
+                        ? InMemoryDB.ValueWithTTL.NO_HISTORY
+                        : new InMemoryDB.ValueWithTTL[versionCount - 1];
+                for (int v = 0; v < versionCount - 1; v++)
+                    history[v] = getVersion(body, InMemoryDB.ValueWithTTL.NO_HISTORY, values, fileVersion);
+                versions[i] = getVersion(body, history, values, fileVersion);
+            }
+            bytes += InMemoryDB.Record.estimate(fields[i], versions[i]);
+        }
+        return new InMemoryDB.Record(0, emptyFields.withSorted(fields, versions, fieldCount), bytes);
+    }
+
+    private static InMemoryDB.ValueWithTTL getVersion(ByteBuffer body, InMemoryDB.ValueWithTTL[] history,
+            InMemoryDB.ValueWithTTL.Factory values, int fileVersion)
+    {
+        String value = getString(body);
+        return values.create(value, expiration(body.getInt(), fileVersion), body.getInt(), body.get() != 0, history);
+    }
+
+    private static int expiration(int stored, int fileVersion)
+    {
+        return fileVersion <= LEGACY_NEVER_EXPIRES && stored == -1 ? InMemoryDB.ValueWithTTL.NEVER_EXPIRES : stored;
+    }
+
+    private static String getString(ByteBuffer body)
+    {
+        int length = body.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,18 @@
+package org.example;
+
+/**
+ * Where an InMemoryDB keeps its field values. Keys, field names and the persistent maps that index them stay on the
+ * heap either way, so snapshots, version history and the rest of the API behave the same under both.
+ */
+public enum StorageEngine
+{
+    /** Values are plain Strings. Reads return them without copying. */
+    HEAP,
+
+    /**
+     * Values are UTF-8 encoded into 1 MiB direct ByteBuffer slabs, so each field costs the collector one object
+     * instead of three and large stores keep most of their bytes out of the heap. A read decodes a new String. A
+     * slab is released once no live record, backup or version still refers to any value in it.
+     */
+    OFF_HEAP
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a store's gauges and the latencies its LatencyMetrics collected as a platform MBean. Every attribute is
+ * computed when it is read, so the MBean adds nothing to the store's operations.
+ */
+public final class StoreMetrics implements StoreMetricsMXBean
+{
+    private final InMemoryDB db;
+    private final LatencyMetrics latencies;
+
+    /**
+     * latencies should be the recorder db was built with, or its operation and lookup figures stay at zero.
+     */
+    public StoreMetrics(InMemoryDB db, LatencyMetrics latencies)
+    {
+        if (db == null || latencies == null)
+            throw new IllegalArgumentException("Store and metrics cannot be null");
+        this.db = db;
+        this.latencies = latencies;
+    }
+
+    /**
+     * Registers this with the platform MBean server as org.example:type=InMemoryDB,name=name and returns its name.
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName("org.example:type=InMemoryDB,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getRecordCount()
+    {
+        return db.recordCount();
+    }
+
+    @Override
+    public long getFieldCount()
+    {
+        return db.fieldCount();
+    }
+
+    @Override
+    public long getUsedBytes()
+    {
+        return db.usedBytes();
+    }
+
+    @Override
+    public int getBackupCount()
+    {
+        return db.backupCount();
+    }
+
+    @Override
+    public long getGetHits()
+    {
+        return latencies.count(MetricsRecorder.GetOutcome.HIT);
+    }
+
+    @Override
+    public long getGetMisses()
+    {
+        return latencies.count(MetricsRecorder.GetOutcome.MISS);
+    }
+
+    @Override
+    public long getGetExpired()
+    {
+        return latencies.count(MetricsRecorder.GetOutcome.EXPIRED);
+    }
+
+    @Override
+    public List<OperationLatency> getOperations()
+    {
+        List<OperationLatency> operations = new ArrayList<>();
+        for (MetricsRecorder.Operation operation: MetricsRecorder.Operation.values())
+        {
+            operations.add(new OperationLatency(operation.name(), latencies.count(operation),
+                    latencies.percentileNanos(operation, 50), latencies.percentileNanos(operation, 99),
+                    latencies.percentileNanos(operation, 99.9), latencies.percentileNanos(operation, 100)));
+        }
+        return operations;
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * JMX view of an InMemoryDB and its {@link LatencyMetrics}, registered by {@link StoreMetrics#register(String)}.
+ */
+public interface StoreMetricsMXBean
+{
+    long getRecordCount();
+
+    long getFieldCount();
+
+    long getUsedBytes();
+
+    int getBackupCount();
+
+    long getGetHits();
+
+    long getGetMisses();
+
+    long getGetExpired();
+
+    /** One entry per operation, in the order of {@link MetricsRecorder.Operation}. */
+    List<OperationLatency> getOperations();
+
+    final class OperationLatency
+    {
+        private final String operation;
+        private final long count;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+
+        public OperationLatency(String operation, long count, long p50Nanos, long p99Nanos, long p999Nanos,
+                long maxNanos)
+        {
+            this.operation = operation;
+            this.count = count;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public String getOperation()
+        {
+            return operation;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getP50Nanos()
+        {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos()
+        {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos()
+        {
+            return p999Nanos;
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the operations that change an InMemoryDB, replayed when the store is created over it.
+ * Appending only copies the encoded entry into a buffer; a background thread writes everything buffered since
+ * its previous pass in one sequential write and forces it according to the FsyncPolicy, so a single fsync
+ * covers a whole batch of operations.
+ *
+ * Each entry is framed as [int length][int crc32][body], so a torn write at the tail is detected and cut off on
+ * replay.
+ */
+public final class WriteAheadLog implements Closeable
+{
+    public enum FsyncPolicy
+    {
+        /** Operations return only once the batch containing them has been forced to disk. */
+        ALWAYS,
+        /** Batches are forced every syncIntervalMillis; a crash can lose the last interval. */
+        INTERVAL,
+        /** Batches are written but never forced; the OS decides when they reach disk. */
+        OS
+    }
+
+    private static final byte SET = 1;
+    private static final byte SET_WITH_TTL = 2;
+    private static final byte DELETE = 3;
+    private static final byte BACKUP = 4;
+    private static final byte RESTORE = 5;
+    private static final byte EVICT = 6;
+    private static final byte DROP_BACKUP = 7;
+
+    private static final int HEADER_BYTES = 8;
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long syncIntervalMillis;
+    private final Thread flusher;
+
+    // A ReentrantLock rather than a monitor so callers on virtual threads unmount while they wait for a flush
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    // Both are byte offsets into the file; an entry's end offset doubles as its sequence number
+    private long appendedOffset;
+    private long durableOffset;
+    private IOException failure;
+    private boolean closed;
+
+    private WriteAheadLog(FileChannel channel, FsyncPolicy policy, long syncIntervalMillis)
+    {
+        this.channel = channel;
+        this.policy = policy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens, or creates, the log at path. syncIntervalMillis is only used by {@link FsyncPolicy#INTERVAL}.
+     */
+    public static WriteAheadLog open(Path path, FsyncPolicy policy, long syncIntervalMillis) throws IOException
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("Fsync policy cannot be null");
+        if (policy == FsyncPolicy.INTERVAL && syncIntervalMillis <= 0)
+            throw new IllegalArgumentException("Sync interval must be positive");
+
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new WriteAheadLog(channel, policy, syncIntervalMillis);
+    }
+
+    /**
+     * Re-applies every complete entry from fromOffset on to db, truncates a torn tail and starts accepting appends
+     * after it. fromOffset must be 0 or an offset previously returned by {@link #append(byte[])}.
+     */
+    void replay(InMemoryDB db, long fromOffset) throws IOException
+    {
+        if (fromOffset > channel.size())
+            throw new IOException("Write-ahead log ends before offset " + fromOffset);
+
+        long validLength = fromOffset;
+        channel.position(fromOffset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        CRC32 crc = new CRC32();
+
+        while (true)
+        {
+            byte[] body;
+            try
+            {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > channel.size() - validLength - HEADER_BYTES)
+                    break;
+                body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum)
+                    break;
+            }
+            catch (EOFException e)
+            {
+                break;
+            }
+
+            apply(db, ByteBuffer.wrap(body));
+            validLength += HEADER_BYTES + body.length;
+        }
+
+        channel.truncate(validLength);
+        channel.position(validLength);
+        appendedOffset = validLength;
+        durableOffset = validLength;
+        flusher.start();
+    }
+
+    private static void apply(InMemoryDB db, ByteBuffer body)
+    {
+        byte op = body.get();
+        switch (op)
+        {
+            case SET -> db.setAt(readString(body), readString(body), readString(body), body.getInt());
+            case SET_WITH_TTL ->
+                    db.setWithTTL(readString(body), readString(body), readString(body), body.getInt(), body.getInt());
+            case DELETE -> db.deleteAt(readString(body), readString(body), body.getInt());
+            case BACKUP -> db.backup(body.getInt());
+            case RESTORE -> db.restore(body.getInt(), body.getInt());
+            case EVICT -> db.evict(readString(body), readString(body));
+            case DROP_BACKUP -> db.dropBackup(body.getInt());
+            default -> throw new IllegalStateException("Unknown log entry type " + op);
+        }
+    }
+
+    static byte[] encodeSet(String key, String field, String value, int timestamp)
+    {
+        return encode(SET, new String[] {key, field, value}, timestamp);
+    }
+
+    static byte[] encodeSetWithTTL(String key, String field, String value, int timestamp, int ttl)
+    {
+        return encode(SET_WITH_TTL, new String[] {key, field, value}, timestamp, ttl);
+    }
+
+    static byte[] encodeDelete(String key, String field, int timestamp)
+    {
+        return encode(DELETE, new String[] {key, field}, timestamp);
+    }
+
+    static byte[] encodeBackup(int timestamp)
+    {
+        return encode(BACKUP, new String[0], timestamp);
+    }
+
+    static byte[] encodeRestore(int currentTimestamp, int timestampToRestore)
+    {
+        return encode(RESTORE, new String[0], currentTimestamp, timestampToRestore);
+    }
+
+    static byte[] encodeEvict(String key, String field)
+    {
+        return encode(EVICT, new String[] {key, field});
+    }
+
+    static byte[] encodeDropBackup(int timestamp)
+    {
+        return encode(DROP_BACKUP, new String[0], timestamp);
+    }
+
+    private static byte[] encode(byte op, String[] strings, int... ints)
+    {
+        byte[][] encoded = new byte[strings.length][];
+        int length = 1 + 4 * ints.length;
+        for (int i = 0; i < strings.length; i++)
+        {
+            encoded[i] = strings[i] == null ? null : strings[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + (encoded[i] == null ? 0 : encoded[i].length);
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(HEADER_BYTES + length);
+        entry.putInt(length).putInt(0).put(op);
+        for (byte[] bytes: encoded)
+        {
+            entry.putInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null)
+                entry.put(bytes);
+        }
+        for (int value: ints)
+            entry.putInt(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), HEADER_BYTES, length);
+        entry.putInt(4, (int) crc.getValue());
+        return entry.array();
+    }
+
+    private static String readString(ByteBuffer body)
+    {
+        int length = body.getInt();
+        if (length < 0)
+            return null;
+        String value = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    /**
+     * Buffers an encoded entry and returns the file offset just past it, which is also what
+     * {@link #awaitDurable(long)} waits for. Callers append while holding the lock that orders the operation
+     * against others on the same data.
+     */
+    long append(byte[] entry)
+    {
+        lock.lock();
+        try
+        {
+            if (failure != null)
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            if (closed)
+                throw new IllegalStateException("Write-ahead log is closed");
+
+            if (buffer.remaining() < entry.length)
+            {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + entry.length);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(entry);
+            changed.signalAll();
+            appendedOffset += entry.length;
+            return appendedOffset;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    FsyncPolicy policy()
+    {
+        return policy;
+    }
+
+    /**
+     * Under {@link FsyncPolicy#ALWAYS}, blocks until the batch ending at or after offset has been forced; otherwise
+     * returns immediately.
+     */
+    void awaitDurable(long offset)
+    {
+        if (policy != FsyncPolicy.ALWAYS)
+            return;
+
+        lock.lock();
+        try
+        {
+            boolean interrupted = false;
+            while (durableOffset < offset && failure == null)
+            {
+                try
+                {
+                    changed.await();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (durableOffset < offset)
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop()
+    {
+        while (true)
+        {
+            ByteBuffer batch;
+            long batchOffset;
+            lock.lock();
+            try
+            {
+                while (buffer.position() == 0 && !closed)
+                {
+                    try
+                    {
+                        changed.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // only close() stops the flusher, and only once everything appended has been written
+                    }
+                }
+                if (buffer.position() == 0)
+                    return;
+                // await() keeps an interrupt that races a signal pending, and the write would close the channel on it
+                Thread.interrupted();
+
+                batch = buffer;
+                buffer = spare;
+                batchOffset = appendedOffset;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                batch.flip();
+                while (batch.hasRemaining())
+                    channel.write(batch);
+                if (policy != FsyncPolicy.OS)
+                    channel.force(false);
+            }
+            catch (IOException e)
+            {
+                lock.lock();
+                try
+                {
+                    failure = e;
+                    changed.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            batch.clear();
+            lock.lock();
+            try
+            {
+                spare = batch;
+                durableOffset = batchOffset;
+                changed.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (policy == FsyncPolicy.INTERVAL)
+            {
+                try
+                {
+                    Thread.sleep(syncIntervalMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    // flush early; leaving the flag set would only make the next wait fail
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes and forces everything appended so far, then closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (flusher.isAlive())
+        {
+            try
+            {
+                flusher.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try
+        {
+            if (failure == null)
+                channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
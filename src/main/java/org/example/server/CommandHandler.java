@@ -0,0 +1,352 @@
+package org.example.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntSupplier;
+
+import org.example.InMemoryDB;
+import org.example.ScanPage;
+
+/**
+ * Executes the supported subset of Redis hash commands against an InMemoryDB, with a Redis key as the record
+ * key and a hash field as the record field. Every command runs at the timestamp the clock reports when it starts.
+ * Thread-safe, so one instance serves every connection.
+ */
+final class CommandHandler
+{
+    private static final int DEFAULT_SCAN_COUNT = 10;
+    // Scans left unfinished for this many newer pages have their cursors expire
+    private static final int CURSORS = 1 << 16;
+
+    private final InMemoryDB db;
+    private final IntSupplier clock;
+    private final Cursors cursors = new Cursors(CURSORS);
+
+    CommandHandler(InMemoryDB db, IntSupplier clock)
+    {
+        this.db = db;
+        this.clock = clock;
+    }
+
+    /**
+     * Executes request and writes its reply to out. Returns false when the client asked to close the connection.
+     */
+    boolean execute(List<String> request, RespWriter out)
+    {
+        if (request.isEmpty())
+            return true;
+
+        String command = request.get(0).toUpperCase(Locale.ROOT);
+        try
+        {
+            switch (command)
+            {
+                case "HSET", "HMSET" -> hset(request, out);
+                case "HSETEX" -> hsetex(request, out);
+                case "HGET" -> hget(request, out);
+                case "HMGET" -> hmget(request, out);
+                case "HEXISTS" -> hexists(request, out);
+                case "HDEL" -> hdel(request, out);
+                case "HGETALL" -> hgetall(request, out);
+                case "HSCAN" -> hscan(request, out);
+                case "SCAN" -> scan(request, out);
+                case "PING" -> {
+                    if (request.size() > 1)
+                        out.bulkString(request.get(1));
+                    else
+                        out.simpleString("PONG");
+                }
+                case "ECHO" -> {
+                    if (arity(request, 2, 2, out))
+                        out.bulkString(request.get(1));
+                }
+                case "SELECT" -> out.simpleString("OK");
+                // Clients probe these on connect; an empty reply tells them there is nothing to configure
+                case "COMMAND", "CONFIG" -> out.arrayHeader(0);
+                case "QUIT" -> {
+                    out.simpleString("OK");
+                    return false;
+                }
+                default -> out.error("ERR unknown command '" + request.get(0) + "'");
+            }
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            out.error("ERR " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void hset(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 4, Integer.MAX_VALUE, out) || !pairs(request, 2, out))
+            return;
+
+        int pairs = (request.size() - 2) / 2;
+        String[] keys = new String[pairs];
+        String[] fields = new String[pairs];
+        String[] values = new String[pairs];
+        for (int i = 0; i < pairs; i++)
+        {
+            keys[i] = request.get(1);
+            fields[i] = request.get(2 + 2 * i);
+            values[i] = request.get(3 + 2 * i);
+        }
+
+        int added = db.setManyAt(keys, fields, values, clock.getAsInt());
+
+        // HMSET predates HSET's variadic form and replies OK instead of a count
+        if (request.get(0).equalsIgnoreCase("HMSET"))
+            out.simpleString("OK");
+        else
+            out.integer(added);
+    }
+
+    // HSETEX key (EX seconds | PX milliseconds) FIELDS numfields field value [field value ...]
+    private void hsetex(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 7, Integer.MAX_VALUE, out))
+            return;
+
+        String unit = request.get(2).toUpperCase(Locale.ROOT);
+        long amount = parseLong(request.get(3));
+        if (amount <= 0)
+            throw new IllegalArgumentException("invalid expire time in 'hsetex' command");
+        int ttl = switch (unit)
+        {
+            case "EX" -> (int) Math.min(amount, Integer.MAX_VALUE / 2);
+            // the store keeps whole seconds, so round up rather than expire early
+            case "PX" -> (int) Math.min((amount + 999) / 1000, Integer.MAX_VALUE / 2);
+            default -> throw new IllegalArgumentException("only EX and PX expirations are supported");
+        };
+        if (!request.get(4).equalsIgnoreCase("FIELDS") || parseLong(request.get(5)) * 2 != request.size() - 6)
+            throw new IllegalArgumentException("numfields does not match the number of field/value pairs");
+
+        String key = request.get(1);
+        int now = clock.getAsInt();
+        for (int i = 6; i < request.size(); i += 2)
+            db.setWithTTL(key, request.get(i), request.get(i + 1), now, ttl);
+        out.integer(1);
+    }
+
+    private void hget(List<String> request, RespWriter out)
+    {
+        if (arity(request, 3, 3, out))
+            out.bulkString(db.getValueAt(request.get(1), request.get(2), clock.getAsInt()));
+    }
+
+    private void hmget(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 3, Integer.MAX_VALUE, out))
+            return;
+
+        String[] fields = request.subList(2, request.size()).toArray(new String[0]);
+        String[] keys = new String[fields.length];
+        Arrays.fill(keys, request.get(1));
+        String[] values = db.getManyAt(keys, fields, clock.getAsInt());
+        out.arrayHeader(values.length);
+        for (String value: values)
+            out.bulkString(value);
+    }
+
+    private void hexists(List<String> request, RespWriter out)
+    {
+        if (arity(request, 3, 3, out))
+            out.integer(db.getValueAt(request.get(1), request.get(2), clock.getAsInt()) == null ? 0 : 1);
+    }
+
+    private void hdel(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 3, Integer.MAX_VALUE, out))
+            return;
+
+        int now = clock.getAsInt();
+        int deleted = 0;
+        for (int i = 2; i < request.size(); i++)
+        {
+            if (db.deleteAt(request.get(1), request.get(i), now))
+                deleted++;
+        }
+        out.integer(deleted);
+    }
+
+    private void hgetall(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 2, 2, out))
+            return;
+
+        List<String> reply = new ArrayList<>();
+        db.scanAt(request.get(1), clock.getAsInt(), (field, value) -> {
+            reply.add(field);
+            reply.add(value);
+        });
+        out.arrayHeader(reply.size());
+        for (String element: reply)
+            out.bulkString(element);
+    }
+
+    // HSCAN key cursor [MATCH prefix*] [COUNT count]; each page resumes after the last field of the one before
+    private void hscan(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 3, 7, out) || !pairs(request, 3, out))
+            return;
+
+        String after = resumeAfter(request.get(2));
+        ScanOptions options = new ScanOptions(request, 3);
+        ScanPage page = db.scanByPrefixAt(request.get(1), options.prefix, after, options.count, clock.getAsInt());
+        out.arrayHeader(2);
+        out.bulkString(cursor(page.nextCursor()));
+        out.arrayHeader(2 * page.entries().size());
+        for (Map.Entry<String, String> entry: page.entries())
+        {
+            out.bulkString(entry.getKey());
+            out.bulkString(entry.getValue());
+        }
+    }
+
+    // SCAN cursor [MATCH prefix*] [COUNT count]; each page resumes after the last key of the one before
+    private void scan(List<String> request, RespWriter out)
+    {
+        if (!arity(request, 2, 6, out) || !pairs(request, 2, out))
+            return;
+
+        String after = resumeAfter(request.get(1));
+        ScanOptions options = new ScanOptions(request, 2);
+        // one extra key tells whether the scan is complete; keys past the page are never looked at
+        List<String> keys = db.scanKeysByPrefixAt(options.prefix, after, clock.getAsInt())
+                .limit((long) options.count + 1)
+                .toList();
+        int size = Math.min(keys.size(), options.count);
+        out.arrayHeader(2);
+        out.bulkString(cursor(keys.size() > options.count ? keys.get(size - 1) : null));
+        out.arrayHeader(size);
+        for (String key: keys.subList(0, size))
+            out.bulkString(key);
+    }
+
+    // A cursor is "0" to start a scan and when it is complete, otherwise a decimal id standing for the last name
+    // returned, as clients parse cursors as unsigned 64-bit integers. Resuming after a name rather than at a position
+    // keeps each page O(log n + count) and never skips or repeats names that stayed put while others were added or
+    // removed.
+    private String cursor(String last)
+    {
+        return last == null ? "0" : Long.toString(cursors.add(last));
+    }
+
+    // The name a cursor resumes after, or null to start from the first
+    private String resumeAfter(String cursor)
+    {
+        if (cursor.equals("0"))
+            return null;
+        long id;
+        try
+        {
+            id = Long.parseLong(cursor);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        String after = cursors.get(id);
+        if (after == null)
+            throw new IllegalArgumentException("invalid cursor");
+        return after;
+    }
+
+    // The names cursors resume after, in a ring of the most recent ones so that abandoned scans cost nothing once
+    // their slot is reused. Ids only grow, so a reused slot never answers for an older id.
+    private static final class Cursors
+    {
+        private record Entry(long id, String after)
+        {
+        }
+
+        private final AtomicLong lastId = new AtomicLong();
+        private final AtomicReferenceArray<Entry> entries;
+
+        Cursors(int capacity)
+        {
+            entries = new AtomicReferenceArray<>(capacity);
+        }
+
+        long add(String after)
+        {
+            long id = lastId.incrementAndGet();
+            entries.set((int) (id % entries.length()), new Entry(id, after));
+            return id;
+        }
+
+        // The name behind id, or null when the id was never handed out or its slot has been reused since
+        String get(long id)
+        {
+            if (id <= 0)
+                return null;
+            Entry entry = entries.get((int) (id % entries.length()));
+            return entry != null && entry.id == id ? entry.after : null;
+        }
+    }
+
+    // The MATCH and COUNT options of SCAN and HSCAN, which come in pairs from index from on
+    private static final class ScanOptions
+    {
+        String prefix = "";
+        int count = DEFAULT_SCAN_COUNT;
+
+        ScanOptions(List<String> request, int from)
+        {
+            for (int i = from; i < request.size(); i += 2)
+            {
+                String option = request.get(i).toUpperCase(Locale.ROOT);
+                String value = request.get(i + 1);
+                if (option.equals("COUNT"))
+                {
+                    count = (int) Math.min(parseLong(value), Integer.MAX_VALUE);
+                    if (count <= 0)
+                        throw new IllegalArgumentException("syntax error");
+                }
+                else if (option.equals("MATCH"))
+                {
+                    // an empty pattern has no star to cut off, so this is checked first
+                    if (!value.endsWith("*"))
+                        throw new IllegalArgumentException("only prefix* MATCH patterns are supported");
+                    prefix = value.substring(0, value.length() - 1);
+                    if (prefix.matches(".*[*?\\[\\\\].*"))
+                        throw new IllegalArgumentException("only prefix* MATCH patterns are supported");
+                }
+                else
+                    throw new IllegalArgumentException("syntax error");
+            }
+        }
+    }
+
+    private static boolean arity(List<String> request, int min, int max, RespWriter out)
+    {
+        if (request.size() >= min && request.size() <= max)
+            return true;
+        out.error("ERR wrong number of arguments for '" + request.get(0).toLowerCase(Locale.ROOT) + "' command");
+        return false;
+    }
+
+    // Checks that the arguments from index from on come in pairs
+    private static boolean pairs(List<String> request, int from, RespWriter out)
+    {
+        return (request.size() - from) % 2 == 0 || arity(request, Integer.MAX_VALUE, 0, out);
+    }
+
+    private static long parseLong(String value)
+    {
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.example.server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes RESP requests: arrays of bulk strings as sent by Redis clients, and whitespace-separated inline commands
+ * as typed into telnet or redis-cli's raw mode.
+ */
+final class RespReader
+{
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    private static final int MAX_BULK_BYTES = 32 * 1024 * 1024;
+    // Redis's own limit on an inline command, which is only ever typed by hand
+    private static final int MAX_INLINE_BYTES = 64 * 1024;
+    // The most a connection buffers for one incomplete request: room for the largest bulk string and its headers
+    static final int MAX_REQUEST_BYTES = 2 * MAX_BULK_BYTES;
+    private static final long INCOMPLETE = Long.MIN_VALUE;
+
+    private RespReader()
+    {
+    }
+
+    /**
+     * Decodes one request starting at in's position and moves past it. Returns null and leaves the position where it
+     * was when the request is not complete yet, so the caller can read more bytes and try again.
+     */
+    static List<String> read(ByteBuffer in) throws ProtocolException
+    {
+        int start = in.position();
+        List<String> request = in.get(start) == '*' ? readArray(in) : readInline(in);
+        if (request == null)
+            in.position(start);
+        return request;
+    }
+
+    private static List<String> readArray(ByteBuffer in) throws ProtocolException
+    {
+        in.get();
+        long count = readNumber(in);
+        if (count == INCOMPLETE)
+            return null;
+        if (count < 0 || count > MAX_ARGUMENTS)
+            throw new ProtocolException("invalid multibulk length");
+
+        // grown as arguments arrive, so a header promising a million of them allocates nothing up front
+        List<String> arguments = new ArrayList<>((int) Math.min(count, 16));
+        for (int i = 0; i < count; i++)
+        {
+            if (!in.hasRemaining())
+                return null;
+            if (in.get() != '$')
+                throw new ProtocolException("expected '$', got '" + (char) in.get(in.position() - 1) + "'");
+
+            long length = readNumber(in);
+            if (length == INCOMPLETE)
+                return null;
+            if (length < 0 || length > MAX_BULK_BYTES)
+                throw new ProtocolException("invalid bulk length");
+            if (in.remaining() < length + 2)
+                return null;
+
+            int start = in.arrayOffset() + in.position();
+            arguments.add(new String(in.array(), start, (int) length, StandardCharsets.UTF_8));
+            in.position(in.position() + (int) length);
+            if (in.get() != '\r' || in.get() != '\n')
+                throw new ProtocolException("bulk string is not terminated by CRLF");
+        }
+        return arguments;
+    }
+
+    private static List<String> readInline(ByteBuffer in) throws ProtocolException
+    {
+        int end = indexOf(in, (byte) '\n');
+        if (end - in.position() > MAX_INLINE_BYTES || (end < 0 && in.remaining() > MAX_INLINE_BYTES))
+            throw new ProtocolException("too big inline request");
+        if (end < 0)
+            return null;
+
+        int start = in.arrayOffset() + in.position();
+        String line = new String(in.array(), start, end - in.position(), StandardCharsets.UTF_8);
+        in.position(end + 1);
+        List<String> arguments = new ArrayList<>();
+        for (String argument: line.trim().split("\\s+"))
+        {
+            if (!argument.isEmpty())
+                arguments.add(argument);
+        }
+        return arguments;
+    }
+
+    /**
+     * Returns a buffer twice the size of the full buffer in, holding its contents ready for more to be read, for a
+     * request that did not fit. Throws once that would exceed the most a connection may buffer.
+     */
+    static ByteBuffer grow(ByteBuffer in) throws ProtocolException
+    {
+        if (in.capacity() >= MAX_REQUEST_BYTES)
+            throw new ProtocolException("request too large");
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+        in.flip();
+        return grown.put(in);
+    }
+
+    // Reads a decimal number terminated by CRLF
+    private static long readNumber(ByteBuffer in) throws ProtocolException
+    {
+        int end = indexOf(in, (byte) '\r');
+        if (end < 0 || end + 1 >= in.limit())
+            return INCOMPLETE;
+        if (in.get(end + 1) != '\n' || end == in.position())
+            throw new ProtocolException("invalid length line");
+
+        boolean negative = in.get(in.position()) == '-';
+        long value = 0;
+        for (int i = in.position() + (negative ? 1 : 0); i < end; i++)
+        {
+            byte digit = in.get(i);
+            if (digit < '0' || digit > '9' || value > Integer.MAX_VALUE)
+                throw new ProtocolException("invalid length line");
+            value = value * 10 + (digit - '0');
+        }
+        in.position(end + 2);
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(ByteBuffer in, byte target)
+    {
+        for (int i = in.position(); i < in.limit(); i++)
+        {
+            if (in.get(i) == target)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,372 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.IntSupplier;
+
+import org.example.InMemoryDB;
+
+/**
+ * Serves an InMemoryDB over a Redis-compatible subset of RESP. Connections are spread over a fixed number of
+ * event loops, each a thread running its own Selector; every request is executed on the loop that read it.
+ * Pipelined requests are all executed as soon as they are read and their replies written back in one batch.
+ * A connection whose replies are not being consumed stops being read until its output drains.
+ * <p>
+ * When the store's writes wait for the disk, as under {@link org.example.WriteAheadLog.FsyncPolicy#ALWAYS}, each
+ * batch of requests runs on a virtual thread instead, and the connection is not read again until its replies are
+ * back on the loop, so one connection's fsync never stalls the others.
+ */
+public final class RespServer implements Closeable
+{
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+    // How long accepting stops after a failed accept, typically for want of file descriptors
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final ServerSocketChannel serverChannel;
+    private final CommandHandler handler;
+    // Null when requests run on the loops
+    private final ThreadFactory requestThreads;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    /**
+     * Binds to address and starts eventLoops threads. clock supplies the timestamp each command runs at.
+     */
+    public RespServer(InMemoryDB db, InetSocketAddress address, int eventLoops, IntSupplier clock) throws IOException
+    {
+        if (eventLoops <= 0)
+            throw new IllegalArgumentException("Event loop count must be positive");
+
+        this.handler = new CommandHandler(db, clock);
+        this.requestThreads = db.waitsForDisk() ? Thread.ofVirtual().name("resp-request-", 0).factory() : null;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++)
+            loops[i] = new EventLoop("resp-loop-" + i);
+        // the first loop also accepts, then hands each connection to the loops in turn
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop: loops)
+            loop.thread.start();
+    }
+
+    public int port()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverChannel.close();
+        for (EventLoop loop: loops)
+            loop.close();
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null)
+        {
+            try
+            {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            catch (IOException e)
+            {
+                // reset by the client before it could be set up
+                channel.close();
+                continue;
+            }
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    private final class EventLoop implements Runnable
+    {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        // Connections whose requests ran off the loop and whose replies are ready to send
+        final Queue<Connection> executed = new ConcurrentLinkedQueue<>();
+        volatile boolean closed;
+        // Set while accepting is backed off, to the key to re-arm once the back-off ends
+        SelectionKey pausedAccept;
+        long acceptResumesAt;
+
+        EventLoop(String name) throws IOException
+        {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void register(SocketChannel channel)
+        {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!closed)
+                {
+                    select();
+                    for (SocketChannel channel; (channel = registrations.poll()) != null; )
+                        attach(channel);
+                    for (Connection connection; (connection = executed.poll()) != null; )
+                        connection.resume();
+
+                    for (SelectionKey key: selector.selectedKeys())
+                    {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                        {
+                            accept(key);
+                            continue;
+                        }
+
+                        Connection connection = (Connection) key.attachment();
+                        try
+                        {
+                            if (key.isWritable())
+                                connection.flush(key);
+                            if (key.isValid() && key.isReadable())
+                                connection.read(key);
+                        }
+                        catch (IOException | RuntimeException e)
+                        {
+                            // whatever went wrong, it went wrong for this connection only
+                            connection.close(key);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+            catch (ClosedSelectorException e)
+            {
+                // closed while selecting
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                    throw new UncheckedIOException(e);
+            }
+        }
+
+        private void select() throws IOException
+        {
+            if (pausedAccept == null)
+            {
+                selector.select();
+                return;
+            }
+            long wait = acceptResumesAt - System.currentTimeMillis();
+            if (wait > 0)
+                selector.select(wait);
+            if (System.currentTimeMillis() >= acceptResumesAt)
+            {
+                if (pausedAccept.isValid())
+                    pausedAccept.interestOps(SelectionKey.OP_ACCEPT);
+                pausedAccept = null;
+            }
+        }
+
+        private void attach(SocketChannel channel)
+        {
+            try
+            {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+            catch (IOException e)
+            {
+                // closed before it reached this loop
+                closeQuietly(channel);
+            }
+        }
+
+        private void accept(SelectionKey key)
+        {
+            try
+            {
+                RespServer.this.accept();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Out of file descriptors leaves the connection queued and the key ready, so retrying at once would
+                // spin; stop accepting for a while and keep serving the open connections
+                key.interestOps(0);
+                pausedAccept = key;
+                acceptResumesAt = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+            }
+        }
+
+        void close() throws IOException
+        {
+            closed = true;
+            selector.wakeup();
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            for (SelectionKey key: selector.keys())
+                key.channel().close();
+            selector.close();
+        }
+    }
+
+    private final class Connection
+    {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final RespWriter out = new RespWriter();
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        boolean closing;
+
+        Connection(SocketChannel channel, EventLoop loop)
+        {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void read(SelectionKey key) throws IOException
+        {
+            if (channel.read(in) < 0)
+            {
+                close(key);
+                return;
+            }
+
+            if (requestThreads == null)
+            {
+                execute();
+                flush(key);
+                return;
+            }
+            // nothing on the loop touches the buffers until the requests are done and handed back
+            key.interestOps(0);
+            requestThreads.newThread(() -> {
+                execute();
+                loop.executed.add(this);
+                loop.selector.wakeup();
+            }).start();
+        }
+
+        // Runs on the loop once requests executed elsewhere are done
+        void resume()
+        {
+            if (!key.isValid())
+                return;
+            try
+            {
+                flush(key);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                close(key);
+            }
+        }
+
+        // Executes every complete request read so far, leaving their replies in out
+        private void execute()
+        {
+            in.flip();
+            try
+            {
+                while (in.hasRemaining() && !closing)
+                {
+                    List<String> request = RespReader.read(in);
+                    if (request == null)
+                        break;
+                    closing = !handler.execute(request, out);
+                }
+            }
+            catch (ProtocolException e)
+            {
+                out.error("ERR Protocol error: " + e.getMessage());
+                closing = true;
+            }
+            catch (RuntimeException e)
+            {
+                // a failure the handler did not turn into a reply; the rest of the pipeline cannot be trusted
+                out.error("ERR internal error");
+                closing = true;
+            }
+            in.compact();
+
+            // a request larger than the buffer: grow it so the rest can be read
+            if (!in.hasRemaining() && !closing)
+            {
+                try
+                {
+                    in = RespReader.grow(in);
+                }
+                catch (ProtocolException e)
+                {
+                    out.error("ERR Protocol error: " + e.getMessage());
+                    closing = true;
+                }
+            }
+        }
+
+        void flush(SelectionKey key) throws IOException
+        {
+            if (!out.writeTo(channel))
+            {
+                // the client is not keeping up: stop reading until its replies drain
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (closing)
+                close(key);
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close(SelectionKey key)
+        {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to release
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffers RESP replies for one connection until they are written out.
+ */
+final class RespWriter
+{
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+    void simpleString(String value)
+    {
+        ensure(value.length() + 3);
+        buffer.put((byte) '+');
+        putAscii(value);
+        buffer.put(CRLF);
+    }
+
+    void error(String message)
+    {
+        ensure(message.length() + 3);
+        buffer.put((byte) '-');
+        putAscii(message);
+        buffer.put(CRLF);
+    }
+
+    void integer(long value)
+    {
+        header(':', value);
+    }
+
+    void arrayHeader(int length)
+    {
+        header('*', length);
+    }
+
+    /**
+     * Writes value as a bulk string, or the null bulk string when value is null.
+     */
+    void bulkString(String value)
+    {
+        if (value == null)
+        {
+            header('$', -1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        header('$', bytes.length);
+        ensure(bytes.length + 2);
+        buffer.put(bytes).put(CRLF);
+    }
+
+    boolean isEmpty()
+    {
+        return buffer.position() == 0;
+    }
+
+    int pending()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Writes as much of the buffered output as channel accepts and returns true once nothing is left.
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException
+    {
+        buffer.flip();
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.write(buffer) == 0)
+                    return false;
+            }
+            return true;
+        }
+        finally
+        {
+            buffer.compact();
+        }
+    }
+
+    private void header(char type, long value)
+    {
+        ensure(23);
+        buffer.put((byte) type);
+        putAscii(Long.toString(value));
+        buffer.put(CRLF);
+    }
+
+    // Simple strings, errors and numbers are ASCII by construction, so they skip the charset encoder
+    private void putAscii(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            buffer.put(c == '\r' || c == '\n' || c > 0x7F ? (byte) ' ' : (byte) c);
+        }
+    }
+
+    private void ensure(int bytes)
+    {
+        if (buffer.remaining() >= bytes)
+            return;
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        buffer = grown.put(buffer);
+    }
+}
@@ -0,0 +1,171 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+import org.example.InMemoryDB;
+
+/**
+ * Serves the same RESP subset as {@link RespServer} with plain blocking sockets, running every connection on its
+ * own virtual thread that calls straight into the InMemoryDB. Pipelined requests are handled the same way: every
+ * complete request read is executed before the replies are written back together.
+ */
+public final class VirtualThreadServer implements Closeable
+{
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+    // How long accepting stops after a failed accept, typically for want of file descriptors
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+    private static final System.Logger LOG = System.getLogger(VirtualThreadServer.class.getName());
+
+    private final ServerSocket serverSocket;
+    private final CommandHandler handler;
+    private final Thread acceptor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Binds to address and starts accepting. clock supplies the timestamp each command runs at.
+     */
+    public VirtualThreadServer(InMemoryDB db, InetSocketAddress address, IntSupplier clock) throws IOException
+    {
+        this.handler = new CommandHandler(db, clock);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address, 1024);
+        // a platform thread, so a running server keeps the JVM alive
+        this.acceptor = Thread.ofPlatform().name("resp-acceptor").start(this::acceptLoop);
+    }
+
+    public int port()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+        try
+        {
+            acceptor.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket socket: connections)
+            socket.close();
+    }
+
+    private void acceptLoop()
+    {
+        Thread.Builder connectionThreads = Thread.ofVirtual().name("resp-connection-", 0);
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                connectionThreads.start(() -> serve(socket));
+            }
+            catch (IOException e)
+            {
+                if (serverSocket.isClosed())
+                    return;
+                // Out of file descriptors leaves the connection queued, so retrying at once would spin; stop
+                // accepting for a while and keep serving the open connections
+                LOG.log(System.Logger.Level.WARNING, "Accept failed, retrying in " + ACCEPT_BACKOFF_MILLIS + " ms", e);
+                try
+                {
+                    Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                }
+                catch (InterruptedException interrupted)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        RespWriter out = new RespWriter();
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        try (socket)
+        {
+            InputStream input = socket.getInputStream();
+            WritableByteChannel output = Channels.newChannel(socket.getOutputStream());
+            boolean open = true;
+            while (open)
+            {
+                int read = input.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                if (read < 0)
+                    return;
+                in.position(in.position() + read);
+
+                in.flip();
+                try
+                {
+                    while (open && in.hasRemaining())
+                    {
+                        List<String> request = RespReader.read(in);
+                        if (request == null)
+                            break;
+                        open = handler.execute(request, out);
+                    }
+                }
+                catch (ProtocolException e)
+                {
+                    out.error("ERR Protocol error: " + e.getMessage());
+                    open = false;
+                }
+                catch (RuntimeException e)
+                {
+                    // a failure the handler did not turn into a reply; the rest of the pipeline cannot be trusted
+                    out.error("ERR internal error");
+                    open = false;
+                }
+                in.compact();
+
+                // a request larger than the buffer: grow it so the rest can be read
+                if (!in.hasRemaining() && open)
+                {
+                    try
+                    {
+                        in = RespReader.grow(in);
+                    }
+                    catch (ProtocolException e)
+                    {
+                        out.error("ERR Protocol error: " + e.getMessage());
+                        open = false;
+                    }
+                }
+                out.writeTo(output);
+            }
+        }
+        catch (SocketException e)
+        {
+            // reset by the client, or closed by close()
+        }
+        catch (IOException e)
+        {
+            // nothing to report to a client whose connection failed
+        }
+        finally
+        {
+            connections.remove(socket);
+        }
+    }
+}
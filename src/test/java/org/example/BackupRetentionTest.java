@@ -0,0 +1,139 @@
+package org.example;
+
+import static org.example.WriteAheadLogTest.open;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BackupRetentionTest
+{
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepLastKeepsTheNewest()
+    {
+        BackupRetention retention = BackupRetention.builder().keepLast(3).build();
+        assertArrayEquals(new boolean[]{false, false, true, true, true}, retention.select(new int[]{1, 2, 3, 4, 5}));
+        assertArrayEquals(new boolean[]{true, true}, retention.select(new int[]{1, 2}));
+        assertArrayEquals(new boolean[0], retention.select(new int[0]));
+    }
+
+    @Test
+    void keepOnePerKeepsTheNewestOfEachBucketInTheWindow()
+    {
+        BackupRetention retention = BackupRetention.builder().keepOnePer(10, 30).build();
+        int[] timestamps = IntStream.iterate(0, t -> t < 60, t -> t + 3).toArray();
+        // the window reaches back to 28 from the newest, 57; 0 to 27 are past it
+        assertEquals(List.of(39, 48, 57), kept(retention, timestamps));
+
+        // buckets are aligned to multiples of the width, negative timestamps included
+        assertEquals(List.of(-11, -1, 5), kept(retention, new int[]{-15, -11, -9, -1, 5}));
+    }
+
+    @Test
+    void tiersAndKeepLastCombine()
+    {
+        BackupRetention retention = BackupRetention.builder()
+                .keepOnePer(60, 3600)
+                .keepOnePer(3600, 86400)
+                .keepLast(2)
+                .build();
+        int[] timestamps = IntStream.iterate(0, t -> t <= 2 * 86400, t -> t + 600).toArray();
+        List<Integer> kept = kept(retention, timestamps);
+
+        int newest = 2 * 86400;
+        // every 600 seconds in the last hour is its own minute, then one an hour back to a day, then nothing
+        for (int t: timestamps)
+        {
+            boolean expected = newest - t < 3600 || (newest - t < 86400 && t % 3600 == 3000);
+            assertEquals(expected, kept.contains(t), "backup at " + t);
+        }
+    }
+
+    @Test
+    void buildRejectsRetentionThatKeepsNothing()
+    {
+        assertThrows(IllegalArgumentException.class, () -> BackupRetention.builder().build());
+        assertThrows(IllegalArgumentException.class, () -> BackupRetention.builder().keepOnePer(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> BackupRetention.builder().keepLast(-1));
+    }
+
+    @Test
+    void droppingAdjacentBackupsCountsSharedValuesOnce() throws IOException
+    {
+        // buckets of 10 keep the backups at 5 and 13 and drop the two between them
+        InMemoryDB db = InMemoryDB.builder()
+                .backupRetention(BackupRetention.builder().keepOnePer(10, 100).build(), 0)
+                .build();
+        writeBackups(db);
+
+        assertEquals(2, db.compactBackups());
+        assertEquals(2, db.backupCount());
+        assertEquals(2, db.droppedBackups());
+        // both dropped backups have their own copy of the record; "two" is in both of them but counted once, and
+        // "three" only lived in the later one
+        long expected = 2 * InMemoryDB.Record.estimate("k")
+                + InMemoryDB.Record.estimate("f", value("two"))
+                + InMemoryDB.Record.estimate("g", value("three"));
+        assertEquals(expected, db.reclaimedBackupBytes());
+        assertEquals(0, db.compactBackups());
+        assertEquals(expected, db.reclaimedBackupBytes());
+    }
+
+    @Test
+    void droppedBackupsStayDroppedAfterReplay() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        WriteAheadLog wal = open(log);
+        InMemoryDB db = InMemoryDB.builder()
+                .backupRetention(BackupRetention.builder().keepOnePer(10, 100).build(), 0)
+                .writeAheadLog(wal)
+                .build();
+        writeBackups(db);
+        db.compactBackups();
+        wal.close();
+
+        InMemoryDB replayed = new InMemoryDB(open(log));
+        assertEquals(2, replayed.backupCount());
+        // the backup at 12 is gone, so both roll back to the one at 5
+        replayed.restore(20, 12);
+        assertEquals(List.of("f : base"), replayed.scanAt("k", 20));
+        replayed.restore(21, 13);
+        assertEquals(List.of("f : four"), replayed.scanAt("k", 21));
+    }
+
+    // Backups at 5, 11, 12 and 13 of one record whose fields change between each
+    private static void writeBackups(InMemoryDB db)
+    {
+        db.setAt("k", "f", "base", 5);
+        db.backup(5);
+        db.setAt("k", "f", "two", 11);
+        db.backup(11);
+        db.setAt("k", "g", "three", 12);
+        db.backup(12);
+        db.setAt("k", "f", "four", 13);
+        db.deleteAt("k", "g", 13);
+        db.backup(13);
+    }
+
+    private static InMemoryDB.ValueWithTTL value(String value)
+    {
+        return new InMemoryDB.ValueWithTTL(value, InMemoryDB.ValueWithTTL.NEVER_EXPIRES,
+                InMemoryDB.ValueWithTTL.NO_VERSION, false, InMemoryDB.ValueWithTTL.NO_HISTORY);
+    }
+
+    private static List<Integer> kept(BackupRetention retention, int[] timestamps)
+    {
+        boolean[] keep = retention.select(timestamps);
+        return IntStream.range(0, timestamps.length).filter(i -> keep[i]).mapToObj(i -> timestamps[i]).toList();
+    }
+}
@@ -0,0 +1,188 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyTest
+{
+    private static final int NOW = 1000;
+
+    @Test
+    void writersToDistinctFieldsLoseNothing() throws Exception
+    {
+        InMemoryDB db = new InMemoryDB();
+        int threads = 8;
+        int perThread = 5000;
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < perThread; i++)
+                db.setAt("key:" + i % 50, "t" + thread + ":" + i, "v" + i, NOW);
+        });
+
+        assertEquals(threads * perThread, db.fieldCount());
+        assertEquals(50, db.recordCount());
+        for (int thread = 0; thread < threads; thread++)
+        {
+            for (int i = 0; i < perThread; i += 97)
+                assertEquals("v" + i, db.getValueAt("key:" + i % 50, "t" + thread + ":" + i, NOW));
+        }
+    }
+
+    @Test
+    void deleteOfLastFieldDoesNotDropConcurrentSet() throws Exception
+    {
+        // one thread keeps emptying the record while the other keeps adding its own field to it; the
+        // other thread's field must survive every removal of the record
+        InMemoryDB db = new InMemoryDB();
+        int rounds = 20000;
+        runConcurrently(2, thread -> {
+            for (int i = 0; i < rounds; i++)
+            {
+                if (thread == 0)
+                {
+                    db.setAt("shared", "churn", "v", NOW);
+                    db.deleteAt("shared", "churn", NOW);
+                }
+                else
+                {
+                    db.setAt("shared", "kept" + i, "v", NOW);
+                }
+            }
+        });
+
+        assertEquals(rounds, db.scanByPrefixAt("shared", "kept", NOW).size());
+        assertEquals(rounds, db.fieldCount());
+    }
+
+    @Test
+    void readersSeeWholeValuesDuringWrites() throws Exception
+    {
+        InMemoryDB db = new InMemoryDB();
+        for (int i = 0; i < 100; i++)
+            db.setAt("key:" + i, "field", "0", NOW);
+
+        AtomicReference<String> torn = new AtomicReference<>();
+        runConcurrently(6, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 20000; i++)
+            {
+                String key = "key:" + random.nextInt(100);
+                if (thread < 2)
+                    db.setAt(key, "field", Integer.toString(i), NOW);
+                else
+                {
+                    String value = db.getValueAt(key, "field", NOW);
+                    if (value == null || !value.matches("\\d+"))
+                        torn.set(key + "=" + value);
+                }
+            }
+        });
+        assertEquals(null, torn.get());
+        assertEquals(100, db.recordCount());
+    }
+
+    @Test
+    void getManyAtReadsEachKeyFromOneVersion() throws Exception
+    {
+        // "Aa" and "BB" share a hash code, so their requests also land in one run of the batch; every key is asked
+        // for the same field more than once, which must read the same value while the field keeps changing
+        InMemoryDB db = new InMemoryDB();
+        String[] names = {"Aa", "BB", "other"};
+        String[] keys = {"Aa", "BB", "other", "Aa", "missing", "BB", "other", "Aa", "BB"};
+        String[] fields = {"x", "x", "x", "x", "x", "x", "x", "x", "x"};
+        AtomicReference<String> mixed = new AtomicReference<>();
+        runConcurrently(2, thread -> {
+            for (int i = 0; i < 20000; i++)
+            {
+                if (thread == 0)
+                {
+                    for (String name: names)
+                        db.setAt(name, "x", name + i, NOW);
+                    continue;
+                }
+                String[] values = db.getManyAt(keys, fields, NOW);
+                for (int k = 0; k < keys.length; k++)
+                {
+                    if (values[k] != null && !values[k].startsWith(keys[k]))
+                        mixed.set(keys[k] + " read " + values[k]);
+                }
+                if (!Objects.equals(values[0], values[3]) || !Objects.equals(values[3], values[7])
+                        || !Objects.equals(values[1], values[5]) || !Objects.equals(values[5], values[8])
+                        || !Objects.equals(values[2], values[6]) || values[4] != null)
+                    mixed.set(Arrays.toString(values));
+            }
+        });
+        assertEquals(null, mixed.get());
+    }
+
+    @Test
+    void setManyAtAppliesInterleavedWritesAsSetAtWould()
+    {
+        // keys interleave and "Aa" and "BB" share a hash code, so one key's writes are spread through its stripe's
+        // group; writes to the same field must still land in the order given
+        String[] names = {"Aa", "BB", "other", "key:1", "key:2"};
+        Random random = new Random(11);
+        String[] keys = new String[500];
+        String[] fields = new String[keys.length];
+        String[] values = new String[keys.length];
+        InMemoryDB expected = new InMemoryDB();
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = names[random.nextInt(names.length)];
+            fields[i] = "f" + random.nextInt(20);
+            values[i] = "v" + i;
+            expected.setAt(keys[i], fields[i], values[i], NOW);
+        }
+
+        InMemoryDB db = new InMemoryDB();
+        db.setManyAt(keys, fields, values, NOW);
+        for (String name: names)
+            assertEquals(expected.scanAt(name, NOW), db.scanAt(name, NOW));
+        assertEquals(expected.fieldCount(), db.fieldCount());
+        assertEquals(expected.recordCount(), db.recordCount());
+    }
+
+    interface Worker
+    {
+        void run(int thread) throws Exception;
+    }
+
+    // Starts every worker at once and rethrows the first failure after all of them finish
+    static void runConcurrently(int threads, Worker worker) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> started = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            int thread = t;
+            started.add(Thread.ofPlatform().start(() -> {
+                try
+                {
+                    start.await();
+                    worker.run(thread);
+                }
+                catch (Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread: started)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError("worker failed", failure.get());
+        assertTrue(started.stream().noneMatch(Thread::isAlive));
+    }
+}
@@ -0,0 +1,177 @@
+package org.example;
+
+import static org.example.WriteAheadLogTest.open;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EvictionTest
+{
+    // Few hot keys among many records, so a sample of five is almost never all hot
+    private static final int RECORDS = 1000;
+    private static final int HOT = 10;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void lruEvictsTheLeastRecentlyUsed() throws IOException
+    {
+        InMemoryDB db = bounded(EvictionPolicy.LRU);
+        fill(db, "cold:", RECORDS, 1);
+        // the hot keys are read after every cold key was written, so they are the most recently used
+        for (int i = 0; i < HOT; i++)
+            assertEquals("v", db.getValueAt("cold:" + i, "field", 1000));
+
+        fill(db, "new:", RECORDS / 10, 2000);
+        assertTrue(db.usedBytes() <= bytesFor(RECORDS));
+        for (int i = 0; i < HOT; i++)
+            assertEquals("v", db.getValueAt("cold:" + i, "field", 3000), "evicted cold:" + i);
+        assertTrue(db.recordCount() < RECORDS + RECORDS / 10);
+    }
+
+    @Test
+    void lfuEvictsTheLeastFrequentlyUsed() throws IOException
+    {
+        InMemoryDB db = bounded(EvictionPolicy.LFU);
+        fill(db, "cold:", RECORDS, 1);
+        for (int read = 0; read < 10; read++)
+        {
+            for (int i = 0; i < HOT; i++)
+                db.getValueAt("cold:" + i, "field", 1000);
+        }
+
+        fill(db, "new:", RECORDS / 10, 2000);
+        assertTrue(db.usedBytes() <= bytesFor(RECORDS));
+        for (int i = 0; i < HOT; i++)
+            assertEquals("v", db.getValueAt("cold:" + i, "field", 3000), "evicted cold:" + i);
+    }
+
+    @Test
+    void lfuTurnsAwayOneOffKeysWhenEverythingIsPopular() throws IOException
+    {
+        // exactly full once every hot key is in
+        InMemoryDB unbounded = new InMemoryDB();
+        fill(unbounded, "hot:", RECORDS, 1);
+        InMemoryDB db = InMemoryDB.builder().maxMemory(unbounded.usedBytes(), EvictionPolicy.LFU).build();
+        fill(db, "hot:", RECORDS, 1);
+        for (int read = 0; read < 10; read++)
+        {
+            for (int i = 0; i < RECORDS; i++)
+                db.getValueAt("hot:" + i, "field", 1000);
+        }
+
+        fill(db, "once:", 20, 2000);
+        // every new key is rarer than any sampled victim, so each one is the record that goes
+        assertEquals(RECORDS, db.recordCount());
+        assertEquals(0, db.scanKeysByPrefixAt("once:", null, 3000).count());
+    }
+
+    @Test
+    void volatileTtlEvictsTheFieldsClosestToExpiring() throws IOException
+    {
+        InMemoryDB db = bounded(EvictionPolicy.VOLATILE_TTL);
+        fill(db, "plain:", RECORDS / 2, 1);
+        // deadlines 2 to 51, all within the wheel's first level so the order is exact
+        for (int i = 0; i < RECORDS / 2; i++)
+            db.setWithTTL("ttl:" + i, "field", "v", 1, 1 + i % 50);
+
+        fill(db, "new:", 20, 1);
+        for (int i = 0; i < RECORDS / 2; i++)
+            assertEquals("v", db.getValueAt("plain:" + i, "field", 1), "evicted plain:" + i);
+        // whatever went had a deadline no later than anything that stayed
+        int latestEvicted = -1;
+        int earliestKept = Integer.MAX_VALUE;
+        for (int i = 0; i < RECORDS / 2; i++)
+        {
+            if (db.getValueAt("ttl:" + i, "field", 1) == null)
+                latestEvicted = Math.max(latestEvicted, i % 50);
+            else
+                earliestKept = Math.min(earliestKept, i % 50);
+        }
+        assertTrue(latestEvicted >= 0, "nothing evicted");
+        assertTrue(latestEvicted <= earliestKept, latestEvicted + " evicted, " + earliestKept + " kept");
+    }
+
+    @Test
+    void sketchIsSizedByTheMemoryLimit()
+    {
+        assertEquals(1 << 26, InMemoryDB.Record.maxRecords(Long.MAX_VALUE));
+        assertEquals(1_000_000 / 224, InMemoryDB.Record.maxRecords(1_000_000));
+        assertEquals(0, InMemoryDB.Record.maxRecords(100));
+
+        // a small limit still gets a sketch that tells popular keys from the rest
+        FrequencySketch sketch = new FrequencySketch(InMemoryDB.Record.maxRecords(100));
+        for (int i = 0; i < 10; i++)
+            sketch.increment("popular");
+        sketch.increment("rare");
+        assertTrue(sketch.frequency("popular") > sketch.frequency("rare"));
+    }
+
+    @Test
+    void evictionsReplayToTheSameState() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        for (EvictionPolicy policy: EvictionPolicy.values())
+        {
+            WriteAheadLog wal = open(log.resolveSibling("wal-" + policy));
+            InMemoryDB db = InMemoryDB.builder().maxMemory(bytesFor(RECORDS), policy).writeAheadLog(wal).build();
+            for (int i = 0; i < 3 * RECORDS; i++)
+            {
+                if (i % 3 == 0)
+                    db.setWithTTL("key:" + i, "field", "v", i, 1000);
+                else
+                    db.setAt("key:" + i, "field", "v", i);
+                db.getValueAt("key:" + i / 2, "field", i);
+            }
+            wal.close();
+            assertTrue(db.recordCount() < 3 * RECORDS, policy + " evicted nothing");
+
+            // a store without the limit only drops what the log says was evicted
+            InMemoryDB replayed = new InMemoryDB(open(log.resolveSibling("wal-" + policy)));
+            assertEquals(db.recordCount(), replayed.recordCount());
+            assertEquals(db.fieldCount(), replayed.fieldCount());
+            for (int i = 0; i < 3 * RECORDS; i++)
+            {
+                String key = "key:" + i;
+                assertEquals(db.scanAt(key, 3 * RECORDS), replayed.scanAt(key, 3 * RECORDS), key);
+            }
+        }
+    }
+
+    @Test
+    void unboundedStoreNeverEvicts()
+    {
+        InMemoryDB db = new InMemoryDB();
+        fill(db, "key:", 2 * RECORDS, 1);
+        assertEquals(2 * RECORDS, db.recordCount());
+        assertNotNull(db.getValueAt("key:0", "field", 1));
+        assertNull(db.getValueAt("key:" + 2 * RECORDS, "field", 1));
+    }
+
+    // A store that holds RECORDS of the records fill writes
+    private static InMemoryDB bounded(EvictionPolicy policy) throws IOException
+    {
+        return InMemoryDB.builder().maxMemory(bytesFor(RECORDS), policy).build();
+    }
+
+    private static long bytesFor(int records)
+    {
+        InMemoryDB db = new InMemoryDB();
+        fill(db, "size:", records, 1);
+        return db.usedBytes();
+    }
+
+    private static void fill(InMemoryDB db, String prefix, int records, int timestamp)
+    {
+        for (int i = 0; i < records; i++)
+            db.setAt(prefix + i, "field", "v", timestamp);
+    }
+}
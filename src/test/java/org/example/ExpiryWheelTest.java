@@ -0,0 +1,137 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ExpiryWheelTest
+{
+    // Time each item fired at, by item; an item is its own deadline
+    private final Map<Long, Long> fired = new HashMap<>();
+    private long clock;
+    private final ExpiryWheel<Long> wheel = new ExpiryWheel<>(item -> assertNull(fired.put(item, clock), "twice"));
+
+    @Test
+    void deadlinesCascadeDownTheLevels()
+    {
+        advance(0);
+        // one deadline on each level, and several sharing slots
+        List<Long> deadlines = new ArrayList<>();
+        for (int level = 0; level < 6; level++)
+        {
+            for (long offset = 1; offset <= 3; offset++)
+                deadlines.add((1L << (6 * level)) * offset + offset);
+        }
+        for (long deadline: deadlines)
+            wheel.schedule(deadline, deadline);
+
+        Random random = new Random(12);
+        long last = deadlines.get(deadlines.size() - 1);
+        while (clock < last)
+        {
+            // steps of every size, so slots are crossed one at a time and several levels at once
+            long step = 1 + (long) (random.nextDouble() * random.nextDouble() * random.nextDouble() * (last >> 4));
+            advance(Math.min(last, clock + step));
+            for (long deadline: deadlines)
+                assertEquals(deadline <= clock, fired.containsKey(deadline), deadline + " at " + clock);
+        }
+        // checked after every advance, so each fired at the first advance that reached it
+        assertEquals(deadlines.size(), fired.size());
+    }
+
+    @Test
+    void deadlinePastTheTopLevelFiresOnTime()
+    {
+        // six levels of 64 slots span 2^36 ticks; this lies 16 times beyond that and wraps the top level
+        advance(0);
+        long deadline = 1L << 40;
+        wheel.schedule(deadline, deadline);
+        for (long time = 1L << 30; time < deadline; time += 1L << 33)
+        {
+            advance(time);
+            assertTrue(fired.isEmpty(), "fired at " + time);
+        }
+        advance(deadline - 1);
+        assertTrue(fired.isEmpty());
+        advance(deadline);
+        assertEquals(deadline, (long) fired.get(deadline));
+    }
+
+    @Test
+    void backlogAfterResetIsDrainedByLaterAdvances()
+    {
+        advance(0);
+        wheel.schedule(50L, 50);
+        List<Long> backlog = new ArrayList<>();
+        for (long item = 90; item < 5090; item++)
+            backlog.add(item);
+        boolean[] installed = new boolean[1];
+        // a clock behind the current time, as restore gives
+        clock = 100;
+        wheel.reset(100, () -> installed[0] = true, backlog.iterator(), item -> item);
+        assertTrue(installed[0]);
+
+        // advances that do not move the clock still drain the backlog, firing what is already due
+        for (int i = 0; i < 100; i++)
+            advance(100);
+        for (long item = 90; item <= 100; item++)
+            assertEquals(100, (long) fired.get(item));
+        // the push from before the reset is still pending, as the clock has not moved since
+        assertEquals(11, fired.size());
+
+        advance(5090);
+        assertEquals(5001, fired.size());
+        for (long item = 101; item < 5090; item++)
+            assertEquals(5090, (long) fired.get(item));
+    }
+
+    @Test
+    void pollSoonestSeesTheBacklog()
+    {
+        advance(0);
+        List<Long> backlog = new ArrayList<>();
+        for (long item = 1000; item < 2000; item++)
+            backlog.add(item);
+        wheel.reset(0, () -> { }, backlog.iterator(), item -> item);
+
+        Long soonest = wheel.pollSoonest();
+        assertNotNull(soonest);
+        assertTrue(soonest < 2000);
+        // everything polled once, then nothing
+        int polled = 1;
+        while (wheel.pollSoonest() != null)
+            polled++;
+        assertEquals(1000, polled);
+        advance(3000);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    void pollSoonestTakesTheEarliestSlotFirst()
+    {
+        advance(0);
+        for (long deadline: new long[]{4000, 30, 7, 500, 63})
+            wheel.schedule(deadline, deadline);
+        assertEquals(7, (long) wheel.pollSoonest());
+        assertEquals(30, (long) wheel.pollSoonest());
+        assertEquals(63, (long) wheel.pollSoonest());
+        assertEquals(500, (long) wheel.pollSoonest());
+        assertEquals(4000, (long) wheel.pollSoonest());
+        assertNull(wheel.pollSoonest());
+    }
+
+    private void advance(long now)
+    {
+        clock = now;
+        wheel.advance(now);
+    }
+}
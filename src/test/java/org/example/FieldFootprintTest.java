@@ -0,0 +1,73 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Live heap per field after full collections, the in-test counterpart of the benchmarks' FootprintTest. Enough
+ * fields are loaded that other allocation in the JVM moves the result by a byte or two per field at most.
+ */
+class FieldFootprintTest
+{
+    private static final int FIELDS = 320_000;
+
+    @Test
+    void smallRecordsCostUnderOneHundredAndTenBytesPerField() throws IOException
+    {
+        assumeTrue(compressedOops(), "object sizes below assume compressed references");
+        // a field is two slots in its record's array, a ValueWithTTL and the value's String and bytes; with names
+        // interned that is about 96 bytes for 8-character values, including the records' share
+        long bytes = bytesPerField(16);
+        assertTrue(bytes <= 110, bytes + " bytes per field");
+    }
+
+    @Test
+    void arrayLayoutCostsLessPerFieldThanTheTree() throws IOException
+    {
+        // 16 fields are held in one array, 17 in the tree with a node per field
+        long array = bytesPerField(16);
+        long tree = bytesPerField(17);
+        assertTrue(array + 16 <= tree, array + " bytes per field in the array, " + tree + " in the tree");
+    }
+
+    // Heap the store holds per field once every record has fieldsPerRecord fields of 8-character values, with
+    // names interned so the figure is the layout's and not the names'
+    private static long bytesPerField(int fieldsPerRecord) throws IOException
+    {
+        long before = usedHeap();
+        InMemoryDB db = InMemoryDB.builder().internFieldNames(fieldsPerRecord).build();
+        int records = FIELDS / fieldsPerRecord;
+        for (int r = 0; r < records; r++)
+        {
+            for (int f = 0; f < fieldsPerRecord; f++)
+            {
+                // a fresh copy of the name, as a server parsing requests would pass
+                String field = new String(("field_" + f).toCharArray());
+                db.setAt("key:" + r, field, "value" + r % 1000, 1);
+            }
+        }
+        long bytes = (usedHeap() - before) / ((long) records * fieldsPerRecord);
+        Reference.reachabilityFence(db);
+        return bytes;
+    }
+
+    private static long usedHeap()
+    {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static boolean compressedOops()
+    {
+        HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        return hotSpot != null && Boolean.parseBoolean(hotSpot.getVMOption("UseCompressedOops").getValue());
+    }
+}
@@ -0,0 +1,135 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FieldNameDictionaryTest
+{
+    private static final int KEYS = 40;
+    private static final String[] NAMES = {"name", "email", "created", "tags:0", "tags:1", "tags:2"};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void internedNamesAreSharedAcrossRecords() throws IOException
+    {
+        InMemoryDB interned = InMemoryDB.builder().internFieldNames(100).build();
+        InMemoryDB plain = new InMemoryDB();
+        for (int i = 0; i < KEYS; i++)
+        {
+            for (String name: NAMES)
+            {
+                // a fresh copy per write, as a parser hands out
+                interned.setAt("key:" + i, new String(name), "v" + i, 1);
+                plain.setAt("key:" + i, new String(name), "v" + i, 1);
+            }
+        }
+
+        List<String> first = names(interned, "key:0");
+        assertEquals(List.of(NAMES).stream().sorted().toList(), first);
+        for (int i = 1; i < KEYS; i++)
+        {
+            List<String> names = names(interned, "key:" + i);
+            for (int n = 0; n < NAMES.length; n++)
+                assertSame(first.get(n), names.get(n), "key:" + i + " " + names.get(n));
+        }
+        // without the dictionary every record keeps the copy it was written with
+        assertNotSame(names(plain, "key:0").get(0), names(plain, "key:1").get(0));
+
+        // names read back from a snapshot file are shared the same way
+        Path snapshot = dir.resolve("snapshot");
+        interned.backup(1, snapshot);
+        InMemoryDB loaded = InMemoryDB.builder().internFieldNames(100).snapshotFile(snapshot).build();
+        List<String> loadedFirst = names(loaded, "key:0");
+        for (int i = 1; i < KEYS; i++)
+            assertSame(loadedFirst.get(0), names(loaded, "key:" + i).get(0));
+    }
+
+    @Test
+    void dictionaryStopsGrowingAtItsLimit()
+    {
+        FieldNameDictionary dictionary = new FieldNameDictionary(2);
+        String a = dictionary.intern(new String("a"));
+        String b = dictionary.intern(new String("b"));
+        assertSame(a, dictionary.intern(new String("a")));
+        assertSame(b, dictionary.intern(new String("b")));
+
+        String c = new String("c");
+        assertSame(c, dictionary.intern(c));
+        assertNotSame(c, dictionary.intern(new String("c")));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    void readsAndScansAreUnchangedByInterning() throws IOException
+    {
+        // a limit below the number of names, so some names are shared and the rest stored as given
+        InMemoryDB interned = InMemoryDB.builder().internFieldNames(20).build();
+        InMemoryDB plain = new InMemoryDB();
+        Random random = new Random(19);
+        for (int now = 0; now < 20000; now++)
+        {
+            String key = "key:" + random.nextInt(KEYS);
+            String field = "field:" + random.nextInt(30);
+            switch (random.nextInt(4))
+            {
+                case 0, 1 -> {
+                    interned.setAt(key, field, "v" + now, now);
+                    plain.setAt(key, field, "v" + now, now);
+                }
+                case 2 -> {
+                    interned.setWithTTL(key, field, "t" + now, now, 1 + now % 50);
+                    plain.setWithTTL(key, field, "t" + now, now, 1 + now % 50);
+                }
+                default -> assertEquals(plain.deleteAt(key, field, now), interned.deleteAt(key, field, now));
+            }
+            if (now % 1000 == 0)
+                assertSameAt(plain, interned, now);
+        }
+        assertSameAt(plain, interned, 20000);
+        assertSameAt(plain, interned, 20030);
+        assertEquals(plain.fieldCount(), interned.fieldCount());
+        assertEquals(plain.usedBytes(), interned.usedBytes());
+    }
+
+    // The field names of key in scan order, as the store holds them
+    private static List<String> names(InMemoryDB db, String key)
+    {
+        List<String> names = new ArrayList<>();
+        db.scanAt(key, 1, (field, value) -> names.add(field));
+        return names;
+    }
+
+    private static void assertSameAt(InMemoryDB expected, InMemoryDB actual, int timestamp)
+    {
+        String[] keys = new String[KEYS * 30];
+        String[] fields = new String[keys.length];
+        for (int i = 0; i < KEYS; i++)
+        {
+            String key = "key:" + i;
+            assertEquals(expected.scanAt(key, timestamp), actual.scanAt(key, timestamp), key + " at " + timestamp);
+            assertEquals(expected.scanByPrefixAt(key, "field:1", timestamp),
+                    actual.scanByPrefixAt(key, "field:1", timestamp), key + " at " + timestamp);
+            for (int f = 0; f < 30; f++)
+            {
+                keys[i * 30 + f] = key;
+                fields[i * 30 + f] = "field:" + f;
+            }
+        }
+        assertArrayEquals(expected.getManyAt(keys, fields, timestamp), actual.getManyAt(keys, fields, timestamp));
+        assertEquals(expected.scanKeysByPrefixAt("key:", timestamp).toList(),
+                actual.scanKeysByPrefixAt("key:", timestamp).toList());
+    }
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.example.MetricsRecorder.GetOutcome;
+import org.example.MetricsRecorder.Operation;
+import org.junit.jupiter.api.Test;
+
+class LatencyMetricsTest
+{
+    @Test
+    void bucketBoundaries()
+    {
+        // below 16 every value has a bucket of its own, and 0 counts as 1
+        assertEquals(1, LatencyMetrics.index(0));
+        assertEquals(1, LatencyMetrics.index(1));
+        assertEquals(1, LatencyMetrics.upperBound(1));
+        assertEquals(15, LatencyMetrics.index(15));
+        assertEquals(15, LatencyMetrics.upperBound(15));
+        // from 16 on each power of two has 16 sub-buckets, which from 32 on span more than one value
+        assertEquals(16, LatencyMetrics.index(16));
+        assertEquals(16, LatencyMetrics.upperBound(16));
+        assertEquals(31, LatencyMetrics.upperBound(LatencyMetrics.index(31)));
+        assertEquals(LatencyMetrics.index(32), LatencyMetrics.index(33));
+        assertEquals(33, LatencyMetrics.upperBound(LatencyMetrics.index(32)));
+
+        // 2^40 starts the top power of two, and everything past it lands in its last bucket
+        int top = LatencyMetrics.index(1L << 40);
+        assertEquals((17L << 36) - 1, LatencyMetrics.upperBound(top));
+        assertEquals(top - 1, LatencyMetrics.index((1L << 40) - 1));
+        int last = LatencyMetrics.index((1L << 41) - 1);
+        assertEquals(top + 15, last);
+        assertEquals(last, LatencyMetrics.index(1L << 41));
+        assertEquals(last, LatencyMetrics.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    void bucketsCoverEveryValueWithinASixteenth()
+    {
+        int previous = 0;
+        for (long value = 1; value < 1L << 41; value += 1 + value / 7)
+        {
+            int index = LatencyMetrics.index(value);
+            long upper = LatencyMetrics.upperBound(index);
+            assertTrue(index >= previous, value + " went back a bucket");
+            assertTrue(upper >= value && upper - value <= value / 16, value + " has upper bound " + upper);
+            previous = index;
+        }
+    }
+
+    @Test
+    void percentilesOfAKnownDistribution()
+    {
+        LatencyMetrics metrics = new LatencyMetrics();
+        assertEquals(0, metrics.percentileNanos(Operation.GET, 50));
+        // 1 to 1000 ns once each, so the nth percentile is 10n ns rounded up to its bucket
+        for (long nanos = 1; nanos <= 1000; nanos++)
+            metrics.operation(Operation.GET, nanos);
+
+        assertEquals(1000, metrics.count(Operation.GET));
+        assertEquals(0, metrics.count(Operation.SET));
+        assertEquals(1, metrics.percentileNanos(Operation.GET, 0));
+        assertEquals(103, metrics.percentileNanos(Operation.GET, 10));
+        assertEquals(511, metrics.percentileNanos(Operation.GET, 50));
+        assertEquals(991, metrics.percentileNanos(Operation.GET, 99));
+        assertEquals(1023, metrics.percentileNanos(Operation.GET, 100));
+        assertEquals(0, metrics.percentileNanos(Operation.SET, 50));
+        assertThrows(IllegalArgumentException.class, () -> metrics.percentileNanos(Operation.GET, 100.5));
+        assertThrows(IllegalArgumentException.class, () -> metrics.percentileNanos(Operation.GET, -1));
+    }
+
+    @Test
+    void stripedCountsAddUp() throws Exception
+    {
+        LatencyMetrics metrics = new LatencyMetrics();
+        ConcurrencyTest.runConcurrently(4, thread -> {
+            for (int i = 0; i < 10000; i++)
+                metrics.operation(Operation.SET, 100);
+        });
+        assertEquals(40000, metrics.count(Operation.SET));
+        assertEquals(103, metrics.percentileNanos(Operation.SET, 1));
+    }
+
+    @Test
+    void getManyAtCountsEachFieldOnce() throws IOException
+    {
+        LatencyMetrics metrics = new LatencyMetrics();
+        // kept history holds the expired field past its deadline, where it would otherwise be reclaimed before the read
+        InMemoryDB db = InMemoryDB.builder().versionHistory(100, 4).metrics(metrics).build();
+        db.setAt("key", "live", "v", 1);
+        db.setWithTTL("key", "short", "v", 1, 5);
+        db.setAt("key", "deleted", "v", 1);
+        db.deleteAt("key", "deleted", 2);
+        db.setAt("other", "live", "v", 1);
+
+        String[] keys = {"key", "other", "key", "key", "key", "missing", "key", "other"};
+        String[] fields = {"live", "live", "short", "deleted", "absent", "live", "live", "absent"};
+        db.getManyAt(keys, fields, 10);
+        // repeats of a field are answered from one lookup of its record but still count once each
+        assertEquals(3, metrics.count(GetOutcome.HIT));
+        assertEquals(4, metrics.count(GetOutcome.MISS));
+        assertEquals(1, metrics.count(GetOutcome.EXPIRED));
+        assertEquals(1, metrics.count(Operation.GET_MANY));
+        assertEquals(0, metrics.count(Operation.GET));
+
+        db.getValueAt("key", "short", 3);
+        db.getAt("key", "short", 10);
+        assertEquals(4, metrics.count(GetOutcome.HIT));
+        assertEquals(2, metrics.count(GetOutcome.EXPIRED));
+        assertEquals(2, metrics.count(Operation.GET));
+        assertEquals(3, metrics.count(Operation.SET));
+        assertEquals(1, metrics.count(Operation.SET_WITH_TTL));
+        assertEquals(1, metrics.count(Operation.DELETE));
+    }
+
+    @Test
+    void reclaimedFieldsCountAsMisses() throws IOException
+    {
+        LatencyMetrics metrics = new LatencyMetrics();
+        InMemoryDB db = InMemoryDB.builder().metrics(metrics).build();
+        db.setWithTTL("key", "short", "v", 1, 5);
+        db.setAt("key", "live", "v", 1);
+        // the read advances the expiry wheel past the field's deadline first, so the field is gone, not expired
+        db.getManyAt(new String[]{"key", "key"}, new String[]{"short", "live"}, 10);
+        assertEquals(1, metrics.count(GetOutcome.HIT));
+        assertEquals(1, metrics.count(GetOutcome.MISS));
+        assertEquals(0, metrics.count(GetOutcome.EXPIRED));
+    }
+}
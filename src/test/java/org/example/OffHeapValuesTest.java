@@ -0,0 +1,165 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OffHeapValuesTest
+{
+    private static final int KEYS = 50;
+    private static final int FIELDS = 8;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void offHeapStoreReadsLikeTheHeapStore() throws IOException
+    {
+        for (boolean history: new boolean[]{false, true})
+        {
+            InMemoryDB heap = store(StorageEngine.HEAP, history);
+            InMemoryDB offHeap = store(StorageEngine.OFF_HEAP, history);
+            Random random = new Random(history ? 14 : 13);
+            int end = 20000;
+            int backup = -1;
+            for (int i = 0; i < end; i++)
+            {
+                int now = i;
+                String key = "key:" + random.nextInt(KEYS);
+                String field = "field:" + random.nextInt(FIELDS);
+                String value = value(random, now);
+                switch (random.nextInt(10))
+                {
+                    case 0, 1, 2, 3 -> apply(heap, offHeap, db -> db.setAt(key, field, value, now));
+                    case 4, 5 -> apply(heap, offHeap, db -> db.setWithTTL(key, field, value, now, 1 + now % 40));
+                    case 6, 7 -> assertEquals(heap.deleteAt(key, field, now), offHeap.deleteAt(key, field, now));
+                    case 8 -> {
+                        if (random.nextInt(100) == 0)
+                        {
+                            apply(heap, offHeap, db -> db.backup(now));
+                            backup = now;
+                        }
+                    }
+                    default -> {
+                        if (backup >= 0 && random.nextInt(200) == 0)
+                        {
+                            int target = backup;
+                            apply(heap, offHeap, db -> db.restore(now, target));
+                        }
+                    }
+                }
+                if (i % 1000 == 0)
+                    assertSameAt(heap, offHeap, i);
+            }
+            assertSameAt(heap, offHeap, end);
+            assertSameAt(heap, offHeap, end + 20);
+            if (history)
+                assertSameAt(heap, offHeap, end - 10);
+            assertEquals(heap.fieldCount(), offHeap.fieldCount());
+            assertEquals(heap.recordCount(), offHeap.recordCount());
+        }
+    }
+
+    @Test
+    void offHeapStoreRoundTripsThroughASnapshotFile() throws IOException
+    {
+        InMemoryDB heap = store(StorageEngine.HEAP, false);
+        InMemoryDB offHeap = store(StorageEngine.OFF_HEAP, false);
+        Random random = new Random(15);
+        for (int i = 0; i < 5000; i++)
+        {
+            int now = i;
+            String key = "key:" + random.nextInt(KEYS);
+            String field = "field:" + random.nextInt(FIELDS);
+            String value = value(random, now);
+            if (random.nextBoolean())
+                apply(heap, offHeap, db -> db.setWithTTL(key, field, value, now, 1 + now % 500));
+            else
+                apply(heap, offHeap, db -> db.setAt(key, field, value, now));
+        }
+        Path snapshot = dir.resolve("snapshot");
+        offHeap.backup(5000, snapshot);
+
+        InMemoryDB loaded = InMemoryDB.builder().storageEngine(StorageEngine.OFF_HEAP).snapshotFile(snapshot).build();
+        assertSameAt(heap, loaded, 5000);
+        assertSameAt(heap, loaded, 5200);
+        // the loaded store keeps writing off-heap values next to the ones it read
+        heap.setAt("key:0", "new", "after load", 5001);
+        loaded.setAt("key:0", "new", "after load", 5001);
+        assertSameAt(heap, loaded, 5001);
+    }
+
+    @Test
+    void largeAndMultiByteValuesSurvive() throws IOException
+    {
+        InMemoryDB db = store(StorageEngine.OFF_HEAP, false);
+        // larger than a quarter slab, so it gets a slab of its own
+        String large = "x".repeat(OffHeapValues.SLAB_BYTES / 2);
+        String multiByte = "héllo wörld 世界 🌍";
+        db.setAt("key", "large", large, 1);
+        db.setAt("key", "multi", multiByte, 1);
+        db.setAt("key", "empty", "", 1);
+        db.setAt("key", "null", null, 1);
+
+        assertEquals(large, db.getValueAt("key", "large", 1));
+        assertEquals(multiByte, db.getValueAt("key", "multi", 1));
+        assertEquals("", db.getValueAt("key", "empty", 1));
+        assertEquals(null, db.getValueAt("key", "null", 1));
+        assertTrue(db.scanAt("key", 1).contains("multi : " + multiByte));
+    }
+
+    // Runs the same write against both stores
+    private interface Write
+    {
+        void apply(InMemoryDB db);
+    }
+
+    private static void apply(InMemoryDB heap, InMemoryDB offHeap, Write write)
+    {
+        write.apply(heap);
+        write.apply(offHeap);
+    }
+
+    private static String value(Random random, int time)
+    {
+        return switch (random.nextInt(4))
+        {
+            case 0 -> "";
+            case 1 -> "ü" + time;
+            case 2 -> "v".repeat(random.nextInt(300)) + time;
+            default -> "v" + time;
+        };
+    }
+
+    private static InMemoryDB store(StorageEngine engine, boolean history) throws IOException
+    {
+        InMemoryDB.Builder builder = InMemoryDB.builder().storageEngine(engine);
+        if (history)
+            builder.versionHistory(50, 4);
+        return builder.build();
+    }
+
+    private static void assertSameAt(InMemoryDB expected, InMemoryDB actual, int timestamp)
+    {
+        String[] keys = new String[KEYS * FIELDS];
+        String[] fields = new String[keys.length];
+        for (int i = 0; i < KEYS; i++)
+        {
+            String key = "key:" + i;
+            assertEquals(expected.scanAt(key, timestamp), actual.scanAt(key, timestamp), key + " at " + timestamp);
+            for (int f = 0; f < FIELDS; f++)
+            {
+                keys[i * FIELDS + f] = key;
+                fields[i * FIELDS + f] = "field:" + f;
+            }
+        }
+        assertArrayEquals(expected.getManyAt(keys, fields, timestamp), actual.getManyAt(keys, fields, timestamp));
+    }
+}
@@ -0,0 +1,248 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PersistentRadixMapTest
+{
+    // Pieces keys are made of, so keys share prefixes, end where others go on, and sort by chars past ASCII
+    private static final String[] PIECES = {"", "a", "ab", "b", "driver:", "12", "123", ":location", "é", "🌍",
+            "￿", "z"};
+
+    @Test
+    void randomWritesMatchTheSortedMap()
+    {
+        Random random = new Random(23);
+        List<String> universe = universe(random, 400);
+        PersistentNavigableMap<String, Integer> radix = PersistentRadixMap.empty();
+        PersistentNavigableMap<String, Integer> sorted = PersistentSortedMap.empty();
+        // grows past the array limit, shrinks back below it and grows again
+        int[] targets = {12, 250, 4, 17, 300, 0, 100};
+        int op = 0;
+        for (int target: targets)
+        {
+            while (sorted.size() != target)
+            {
+                // mostly toward the target, removing keys that are there so shrinking gets there too
+                boolean grow = sorted.size() < target;
+                if (grow == random.nextInt(4) > 0)
+                {
+                    String key = universe.get(random.nextInt(universe.size()));
+                    radix = radix.put(key, op);
+                    sorted = sorted.put(key, op);
+                }
+                else if (!sorted.isEmpty())
+                {
+                    String key = sorted.stream().skip(random.nextInt(sorted.size())).findFirst().orElseThrow().getKey();
+                    radix = radix.remove(key);
+                    sorted = sorted.remove(key);
+                }
+                op++;
+                if (op % 50 == 0)
+                    assertSameMap(sorted, radix, universe, random);
+            }
+            assertSameMap(sorted, radix, universe, random);
+        }
+    }
+
+    @Test
+    void wideNodesMatchTheSortedMap()
+    {
+        // more first characters under one node than it searches linearly, some past ASCII
+        Random random = new Random(27);
+        List<String> universe = new ArrayList<>();
+        for (char c = ' '; c < '~'; c++)
+        {
+            universe.add("k" + c);
+            universe.add("k" + c + "x");
+            universe.add("k" + (char) (c + 0x100));
+        }
+        PersistentNavigableMap<String, Integer> radix = PersistentRadixMap.empty();
+        PersistentNavigableMap<String, Integer> sorted = PersistentSortedMap.empty();
+        for (int op = 0; op < 2000; op++)
+        {
+            String key = universe.get(random.nextInt(universe.size()));
+            if (op < 1000 || random.nextBoolean())
+            {
+                radix = radix.put(key, op);
+                sorted = sorted.put(key, op);
+            }
+            else
+            {
+                radix = radix.remove(key);
+                sorted = sorted.remove(key);
+            }
+            if (op % 100 == 0)
+                assertSameMap(sorted, radix, universe, random);
+        }
+        assertSameMap(sorted, radix, universe, random);
+    }
+
+    @Test
+    void writesLeaveEarlierVersionsUnchanged()
+    {
+        Random random = new Random(24);
+        List<String> universe = universe(random, 200);
+        PersistentNavigableMap<String, Integer> radix = PersistentRadixMap.empty();
+        PersistentNavigableMap<String, Integer> sorted = PersistentSortedMap.empty();
+        List<PersistentNavigableMap<String, Integer>> radixVersions = new ArrayList<>();
+        List<PersistentNavigableMap<String, Integer>> sortedVersions = new ArrayList<>();
+        for (int op = 0; op < 2000; op++)
+        {
+            String key = universe.get(random.nextInt(universe.size()));
+            if (random.nextInt(3) > 0)
+            {
+                radix = radix.put(key, op);
+                sorted = sorted.put(key, op);
+            }
+            else
+            {
+                radix = radix.remove(key);
+                sorted = sorted.remove(key);
+            }
+            if (op % 100 == 0)
+            {
+                radixVersions.add(radix);
+                sortedVersions.add(sorted);
+            }
+        }
+        for (int i = 0; i < radixVersions.size(); i++)
+            assertSameMap(sortedVersions.get(i), radixVersions.get(i), universe, random);
+    }
+
+    @Test
+    void withSortedBuildsTheSameMap()
+    {
+        Random random = new Random(25);
+        List<String> universe = universe(random, 300);
+        for (int count: new int[]{0, 1, 16, 17, 300})
+        {
+            String[] keys = universe.subList(0, count).stream().sorted().toArray(String[]::new);
+            Integer[] values = new Integer[count];
+            for (int i = 0; i < count; i++)
+                values[i] = i;
+            PersistentNavigableMap<String, Integer> radix = PersistentRadixMap.<Integer>empty()
+                    .withSorted(keys, values, count);
+            PersistentNavigableMap<String, Integer> sorted = PersistentSortedMap.<String, Integer>empty()
+                    .withSorted(keys, values, count);
+            assertSameMap(sorted, radix, universe, random);
+            // and keeps taking writes like a map built by puts
+            String key = universe.get(universe.size() - 1);
+            assertSameMap(sorted.put(key, -1).remove(keys.length > 0 ? keys[0] : key),
+                    radix.put(key, -1).remove(keys.length > 0 ? keys[0] : key), universe, random);
+        }
+    }
+
+    @Test
+    void radixIndexedStoreScansLikeTheSortedOne() throws IOException
+    {
+        InMemoryDB radix = InMemoryDB.builder().fieldIndex(FieldIndex.RADIX).build();
+        InMemoryDB sorted = InMemoryDB.builder().fieldIndex(FieldIndex.SORTED).build();
+        Random random = new Random(26);
+        List<String> universe = universe(random, 200);
+        for (int now = 0; now < 5000; now++)
+        {
+            String field = universe.get(random.nextInt(universe.size()));
+            if (random.nextInt(4) > 0)
+            {
+                radix.setAt("key", field, "v" + now, now);
+                sorted.setAt("key", field, "v" + now, now);
+            }
+            else
+            {
+                assertEquals(sorted.deleteAt("key", field, now), radix.deleteAt("key", field, now));
+            }
+        }
+        assertEquals(sorted.scanAt("key", 5000), radix.scanAt("key", 5000));
+        for (String prefix: new String[]{"", "a", "driver:12", "driver:123:", "é", "\uD83C", "￿", "zz"})
+            assertEquals(sorted.scanByPrefixAt("key", prefix, 5000), radix.scanByPrefixAt("key", prefix, 5000), prefix);
+
+        // paging resumes from the same field in both
+        for (String prefix: new String[]{"", "driver:", "a"})
+            assertEquals(paged(sorted, prefix), paged(radix, prefix), prefix);
+    }
+
+    private static List<String> universe(Random random, int size)
+    {
+        List<String> keys = new ArrayList<>();
+        keys.add("");
+        while (keys.size() < size)
+        {
+            StringBuilder key = new StringBuilder();
+            for (int pieces = 1 + random.nextInt(4); pieces > 0; pieces--)
+                key.append(PIECES[random.nextInt(PIECES.length)]);
+            if (!keys.contains(key.toString()))
+                keys.add(key.toString());
+        }
+        return keys;
+    }
+
+    private static void assertSameMap(PersistentNavigableMap<String, Integer> expected,
+            PersistentNavigableMap<String, Integer> actual, List<String> universe, Random random)
+    {
+        assertEquals(expected.size(), actual.size());
+        List<Map.Entry<String, Integer>> entries = entries(expected.iterator());
+        assertEquals(entries, entries(actual.iterator()));
+        for (int i = 1; i < entries.size(); i++)
+            assertTrue(entries.get(i - 1).getKey().compareTo(entries.get(i).getKey()) < 0, "out of order");
+        for (String key: universe)
+            assertEquals(expected.get(key), actual.get(key), key);
+
+        // seeks from keys present and absent, and from prefixes of them
+        for (int i = 0; i < 20; i++)
+        {
+            String key = universe.get(random.nextInt(universe.size()));
+            String from = key.substring(0, random.nextInt(key.length() + 1));
+            assertEquals(entries(expected.tailIterator(from)), entries(actual.tailIterator(from)), from);
+            assertEquals(prefixScan(expected, from), prefixScan(actual, from), from);
+            int limit = 1 + random.nextInt(5);
+            assertEquals(firstFrom(expected, from, limit), firstFrom(actual, from, limit), from);
+        }
+    }
+
+    private static List<Map.Entry<String, String>> paged(InMemoryDB db, String prefix)
+    {
+        List<Map.Entry<String, String>> entries = new ArrayList<>();
+        String cursor = null;
+        do
+        {
+            ScanPage page = db.scanByPrefixAt("key", prefix, cursor, 7, 5000);
+            entries.addAll(page.entries());
+            cursor = page.nextCursor();
+        }
+        while (cursor != null);
+        return entries;
+    }
+
+    private static List<Map.Entry<String, Integer>> entries(Iterator<Map.Entry<String, Integer>> iterator)
+    {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        iterator.forEachRemaining(entry -> entries.add(Map.entry(entry.getKey(), entry.getValue())));
+        return entries;
+    }
+
+    // The keys that start with prefix, as the store's prefix scans read them
+    private static List<String> prefixScan(PersistentNavigableMap<String, Integer> map, String prefix)
+    {
+        List<String> keys = new ArrayList<>();
+        map.forEachFrom(prefix, (key, value) -> key.startsWith(prefix) && keys.add(key));
+        return keys;
+    }
+
+    // The first limit keys at least from, stopping forEachFrom early
+    private static List<String> firstFrom(PersistentNavigableMap<String, Integer> map, String from, int limit)
+    {
+        List<String> keys = new ArrayList<>();
+        map.forEachFrom(from, (key, value) -> keys.add(key) && keys.size() < limit);
+        return keys;
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import static org.example.WriteAheadLogTest.KEYS;
+import static org.example.WriteAheadLogTest.assertSameAt;
+import static org.example.WriteAheadLogTest.open;
+import static org.example.WriteAheadLogTest.writeRandomly;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RestoreTest
+{
+    @TempDir
+    Path dir;
+
+    @Test
+    void restoreRollsBackToTheBackup()
+    {
+        InMemoryDB db = new InMemoryDB();
+        int time = writeRandomly(db, 0, 5000, new Random(9));
+        List<List<String>> expected = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++)
+            expected.add(db.scanAt("key:" + i, time));
+        db.backup(time);
+        writeRandomly(db, time + 1, 5000, new Random(10));
+
+        db.restore(time + 6000, time);
+        for (int i = 0; i < KEYS; i++)
+            assertEquals(expected.get(i), db.scanAt("key:" + i, time + 6000));
+        assertThrows(IllegalStateException.class, () -> db.restore(time + 6001, -1));
+    }
+
+    @Test
+    void ttlExpiresWhenStoreTimeIsNegativeAfterRestore() throws IOException
+    {
+        InMemoryDB db = new InMemoryDB();
+        db.setAt("kept", "field", "value", 10);
+        db.backup(10);
+        // store time now runs 10 behind, so a write at 9 lands at store time -1
+        db.restore(20, 10);
+        db.setWithTTL("key", "field", "value", 9, 0);
+        assertEquals("value", db.getValueAt("key", "field", 9));
+        assertEquals(Optional.empty(), db.getAt("key", "field", 12));
+
+        Path snapshot = dir.resolve("snapshot");
+        db.backup(12, snapshot);
+        InMemoryDB loaded = InMemoryDB.load(snapshot);
+        assertEquals(Optional.empty(), loaded.getAt("key", "field", 12));
+        assertEquals("value", loaded.getValueAt("kept", "field", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void writesRacingRestoresReplayAsTheyWereApplied() throws Exception
+    {
+        Path log = dir.resolve("wal");
+        WriteAheadLog wal = open(log);
+        InMemoryDB db = new InMemoryDB(wal);
+        int backup = writeRandomly(db, 0, 2000, new Random(8));
+        db.backup(backup);
+        ConcurrencyTest.runConcurrently(3, thread -> {
+            for (int i = 0; i < 3000; i++)
+            {
+                if (thread == 0)
+                    db.restore(backup + 1 + i, backup);
+                else
+                    db.setWithTTL("key:" + i % KEYS, "field:" + thread, "v" + i, backup + 1 + i, 5);
+            }
+        });
+        wal.close();
+
+        InMemoryDB replayed = new InMemoryDB(open(log));
+        for (int time = backup; time < backup + 3010; time += 7)
+            assertSameAt(db, replayed, time);
+    }
+}
@@ -0,0 +1,121 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+class ShardedInMemoryDBTest
+{
+    private static final int NOW = 1000;
+
+    @Test
+    void operationsReachTheirShard()
+    {
+        try (ShardedInMemoryDB db = new ShardedInMemoryDB(4))
+        {
+            for (int i = 0; i < 1000; i++)
+                db.setAt("key:" + i, "field", "v" + i, NOW);
+            assertEquals(1000, db.recordCount());
+
+            String[] keys = new String[1000];
+            String[] fields = new String[1000];
+            for (int i = 0; i < keys.length; i++)
+            {
+                keys[i] = "key:" + (999 - i);
+                fields[i] = "field";
+            }
+            String[] values = db.getManyAt(keys, fields, NOW);
+            for (int i = 0; i < keys.length; i++)
+                assertEquals("v" + (999 - i), values[i]);
+            assertTrue(db.deleteAt("key:0", "field", NOW));
+            assertEquals(List.of(), db.scanAt("key:0", NOW));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void closeUnderLoadLeavesNoOperationPending() throws Exception
+    {
+        for (int round = 0; round < 20; round++)
+        {
+            ShardedInMemoryDB db = new ShardedInMemoryDB(2);
+            ConcurrentLinkedQueue<CompletableFuture<Void>> submitted = new ConcurrentLinkedQueue<>();
+            AtomicInteger accepted = new AtomicInteger();
+            AtomicBoolean rejected = new AtomicBoolean();
+            // close at a different point of the load every round
+            int closeAfter = round * 2000;
+            Thread closer = Thread.ofPlatform().start(() -> {
+                while (accepted.get() < closeAfter)
+                    Thread.onSpinWait();
+                db.close();
+            });
+            ConcurrencyTest.runConcurrently(4, thread -> {
+                for (int i = 0; i < 20000; i++)
+                {
+                    try
+                    {
+                        submitted.add(db.setAtAsync("key:" + i, "field:" + thread, "v", NOW));
+                        accepted.incrementAndGet();
+                    }
+                    catch (IllegalStateException e)
+                    {
+                        rejected.set(true);
+                        return;
+                    }
+                }
+            });
+            closer.join();
+
+            // every accepted operation either ran or failed because the store closed under it
+            for (CompletableFuture<Void> operation: submitted)
+            {
+                try
+                {
+                    operation.get(10, TimeUnit.SECONDS);
+                }
+                catch (ExecutionException e)
+                {
+                    assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+                }
+            }
+            assertTrue(rejected.get() || submitted.size() == 80000);
+            assertThrows(IllegalStateException.class, () -> db.setAt("key", "field", "v", NOW));
+        }
+    }
+
+    @Test
+    void errorInAnOperationLeavesTheShardRunning() throws Exception
+    {
+        try (ShardedInMemoryDB db = new ShardedInMemoryDB(1, shard -> new InMemoryDB()
+        {
+            @Override
+            public String getValueAt(String key, String field, int timestamp)
+            {
+                if (key.equals("boom"))
+                    throw new AssertionError("boom");
+                return super.getValueAt(key, field, timestamp);
+            }
+        }))
+        {
+            CompletableFuture<String> failed = db.getValueAtAsync("boom", "field", NOW);
+            CompletionException thrown = assertThrows(CompletionException.class, failed::join);
+            assertTrue(thrown.getCause() instanceof AssertionError);
+
+            // waits with a limit, so a dead shard thread fails the test rather than hanging it
+            db.setAtAsync("key", "field", "value", NOW).get(10, TimeUnit.SECONDS);
+            assertEquals("value", db.getValueAtAsync("key", "field", NOW).get(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.example;
+
+import static org.example.WriteAheadLogTest.KEYS;
+import static org.example.WriteAheadLogTest.assertSameAt;
+import static org.example.WriteAheadLogTest.open;
+import static org.example.WriteAheadLogTest.writeRandomly;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotFileTest
+{
+    @TempDir
+    Path dir;
+
+    @Test
+    void snapshotFileWithWalTailMatchesFullReplay() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        Path snapshot = dir.resolve("snapshot");
+        WriteAheadLog wal = open(log);
+        InMemoryDB db = new InMemoryDB(wal);
+        Random random = new Random(3);
+        int time = writeRandomly(db, 0, 10000, random);
+        db.backup(time, snapshot);
+        time = writeRandomly(db, time + 1, 10000, random);
+        wal.close();
+
+        InMemoryDB loaded = InMemoryDB.load(snapshot, open(log));
+        assertSameAt(db, loaded, time);
+        InMemoryDB replayed = new InMemoryDB(open(log));
+        assertSameAt(replayed, loaded, time);
+    }
+
+    @Test
+    void walTailRestoringABackupOlderThanTheSnapshotStillStarts() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        Path snapshot = dir.resolve("snapshot");
+        WriteAheadLog wal = open(log);
+        InMemoryDB db = new InMemoryDB(wal);
+        Random random = new Random(6);
+        int time = writeRandomly(db, 0, 2000, random);
+        int early = time;
+        db.backup(early);
+        time = writeRandomly(db, time + 1, 2000, random);
+        db.backup(time, snapshot);
+        time = writeRandomly(db, time + 1, 2000, random);
+        db.restore(time, early);
+        time = writeRandomly(db, time + 1, 2000, random);
+        wal.close();
+        Path copy = Files.copy(log, dir.resolve("copy"));
+
+        WriteAheadLog reopened = open(log);
+        InMemoryDB loaded = InMemoryDB.load(snapshot, reopened);
+        assertSameAt(db, loaded, time);
+        // the rebuilt store has the early backup back and keeps logging after the whole log
+        InMemoryDB replayed = new InMemoryDB(open(copy));
+        loaded.restore(time + 1, early);
+        replayed.restore(time + 1, early);
+        assertSameAt(replayed, loaded, time + 1);
+        reopened.close();
+        assertSameAt(replayed, new InMemoryDB(open(log)), time + 1);
+    }
+
+    @Test
+    void snapshotAndWalRecoverWhateverWasRestored() throws IOException
+    {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++)
+        {
+            Path log = dir.resolve("wal" + round);
+            Path snapshot = dir.resolve("snapshot" + round);
+            WriteAheadLog wal = open(log);
+            InMemoryDB db = new InMemoryDB(wal);
+            int time = 0;
+            int firstBackup = -1;
+            for (int step = 0; step < 8; step++)
+            {
+                time = writeRandomly(db, time + 1, 300, random);
+                int action = firstBackup < 0 ? random.nextInt(2) : random.nextInt(3);
+                if (action == 0)
+                    db.backup(time);
+                else if (action == 1)
+                    db.backup(time, snapshot);
+                else
+                    db.restore(time, firstBackup + random.nextInt(time - firstBackup + 1));
+                if (firstBackup < 0)
+                    firstBackup = time;
+            }
+            wal.close();
+
+            InMemoryDB loaded = Files.exists(snapshot)
+                    ? InMemoryDB.load(snapshot, open(log))
+                    : new InMemoryDB(open(log));
+            assertSameAt(db, loaded, time);
+        }
+    }
+
+    @Test
+    void snapshotFileRestoresToItsOwnTime() throws IOException
+    {
+        Path snapshot = dir.resolve("snapshot");
+        InMemoryDB db = new InMemoryDB();
+        int time = writeRandomly(db, 0, 5000, new Random(4));
+        db.backup(time, snapshot);
+        InMemoryDB expected = InMemoryDB.load(snapshot);
+        writeRandomly(db, time + 1, 5000, new Random(5));
+
+        db.restore(time + 10000, time);
+        assertEquals(expected.recordCount(), db.recordCount());
+        for (int i = 0; i < KEYS; i++)
+            assertEquals(expected.scanAt("key:" + i, time), db.scanAt("key:" + i, time + 10000));
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class VersionHistoryTest
+{
+    @Test
+    void versionsOlderThanTheRetentionWindowAreDropped() throws IOException
+    {
+        InMemoryDB db = InMemoryDB.builder().versionHistory(10, 100).build();
+        db.setAt("key", "field", "a", 0);
+        db.setAt("key", "field", "b", 5);
+        db.setAt("key", "field", "c", 20);
+        // reads back to 10 need b, the newest version at or before then; a is gone
+        assertNull(db.getValueAt("key", "field", 0));
+        assertEquals("b", db.getValueAt("key", "field", 5));
+        assertEquals("b", db.getValueAt("key", "field", 19));
+        assertEquals("c", db.getValueAt("key", "field", 20));
+
+        db.setAt("key", "field", "d", 30);
+        assertNull(db.getValueAt("key", "field", 5));
+        assertEquals("c", db.getValueAt("key", "field", 25));
+        assertEquals("d", db.getValueAt("key", "field", 30));
+        assertEquals(1, db.fieldCount());
+    }
+
+    @Test
+    void maxVersionsIsEnforced() throws IOException
+    {
+        InMemoryDB db = InMemoryDB.builder().versionHistory(1000, 3).build();
+        for (int time = 1; time <= 10; time++)
+            db.setAt("key", "field", "v" + time, time);
+
+        assertNull(db.getValueAt("key", "field", 7));
+        assertEquals("v8", db.getValueAt("key", "field", 8));
+        assertEquals("v9", db.getValueAt("key", "field", 9));
+        assertEquals("v10", db.getValueAt("key", "field", 10));
+
+        // the cap holds for writes at older timestamps too, which leave the oldest version out
+        db.setAt("key", "field", "late", 5);
+        assertNull(db.getValueAt("key", "field", 5));
+        assertEquals("v8", db.getValueAt("key", "field", 8));
+    }
+
+    @Test
+    void readsAtOldTimestampsSeeTombstones() throws IOException
+    {
+        InMemoryDB db = InMemoryDB.builder().versionHistory(100, 10).build();
+        db.setAt("key", "field", "a", 10);
+        db.setAt("key", "other", "kept", 10);
+        db.deleteAt("key", "field", 20);
+        db.setAt("key", "field", "b", 30);
+
+        assertEquals("a", db.getValueAt("key", "field", 15));
+        assertNull(db.getValueAt("key", "field", 25));
+        assertEquals("b", db.getValueAt("key", "field", 30));
+        assertEquals(List.of("other : kept"), db.scanAt("key", 25));
+        assertEquals(List.of("field : a", "other : kept"), db.scanAt("key", 15));
+        String[] keys = {"key", "key", "key"};
+        String[] fields = {"field", "other", "missing"};
+        assertArrayEquals(new String[]{"a", "kept", null}, db.getManyAt(keys, fields, 15));
+        assertArrayEquals(new String[]{null, "kept", null}, db.getManyAt(keys, fields, 25));
+
+        // a write at a timestamp before the delete, arriving after it, is still shadowed by it
+        db.setAt("key", "field", "late", 15);
+        assertEquals("late", db.getValueAt("key", "field", 17));
+        assertNull(db.getValueAt("key", "field", 25));
+    }
+
+    @Test
+    void tombstonesLeavingTheWindowDropTheField() throws IOException
+    {
+        InMemoryDB db = InMemoryDB.builder().versionHistory(10, 10).build();
+        db.setAt("key", "field", "a", 0);
+        db.deleteAt("key", "field", 50);
+        // the delete is still within the window of reads from 40 on, and a from before it is what those reads see
+        assertNull(db.getValueAt("key", "field", 50));
+        assertEquals(1, db.fieldCount());
+
+        db.setAt("key", "field", "b", 100);
+        assertNull(db.getValueAt("key", "field", 60));
+        assertEquals("b", db.getValueAt("key", "field", 100));
+
+        // with no window at all a delete leaves nothing for any read to see, so the field goes at once
+        InMemoryDB latest = InMemoryDB.builder().versionHistory(0, 10).build();
+        latest.setAt("key", "field", "a", 0);
+        latest.deleteAt("key", "field", 10);
+        assertEquals(0, latest.recordCount());
+        assertEquals(0, latest.fieldCount());
+    }
+}
@@ -0,0 +1,132 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTest
+{
+    static final int KEYS = 200;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void walReplayRebuildsTheStore() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        WriteAheadLog wal = open(log);
+        InMemoryDB db = new InMemoryDB(wal);
+        int end = writeRandomly(db, 0, 20000, new Random(1));
+        wal.close();
+
+        InMemoryDB replayed = new InMemoryDB(open(log));
+        assertSameAt(db, replayed, end);
+        assertSameAt(db, replayed, end + 50);
+    }
+
+    @Test
+    void replayStopsAtATornTail() throws IOException
+    {
+        Path log = dir.resolve("wal");
+        WriteAheadLog original = open(log);
+        InMemoryDB db = new InMemoryDB(original);
+        int end = writeRandomly(db, 0, 5000, new Random(2));
+        original.close();
+        Files.write(log, new byte[]{0, 0, 0, 50, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        WriteAheadLog wal = open(log);
+        InMemoryDB replayed = new InMemoryDB(wal);
+        assertSameAt(db, replayed, end);
+        // later writes land after the valid prefix and survive the next restart
+        replayed.setAt("after", "field", "value", end);
+        wal.close();
+        assertEquals("value", new InMemoryDB(open(log)).getValueAt("after", "field", end));
+    }
+
+    @Test
+    @Timeout(30)
+    void interruptedFlusherKeepsFlushing() throws Exception
+    {
+        Path log = dir.resolve("wal");
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        // an interval long enough that only an interrupt ends the sleep after a flush
+        WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.FsyncPolicy.INTERVAL, 3_600_000);
+        InMemoryDB db = new InMemoryDB(wal);
+        db.setAt("key", "first", "v", 1);
+        Thread flusher = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("wal-flusher") && !before.contains(thread))
+                .findFirst()
+                .orElseThrow();
+
+        // interrupted while sleeping after the flush, then while waiting for the next append
+        awaitState(flusher, Thread.State.TIMED_WAITING);
+        flusher.interrupt();
+        awaitState(flusher, Thread.State.WAITING);
+        flusher.interrupt();
+        db.setAt("key", "second", "v", 2);
+        awaitState(flusher, Thread.State.TIMED_WAITING);
+        flusher.interrupt();
+        wal.close();
+
+        InMemoryDB replayed = new InMemoryDB(open(log));
+        assertEquals(List.of("first : v", "second : v"), replayed.scanAt("key", 2));
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException
+    {
+        while (thread.getState() != state)
+        {
+            if (!thread.isAlive())
+                throw new AssertionError(thread.getName() + " stopped");
+            Thread.sleep(1);
+        }
+    }
+
+    // Applies count random writes, deletes and backups from time start on and returns the last timestamp used
+    static int writeRandomly(InMemoryDB db, int start, int count, Random random)
+    {
+        int time = start;
+        for (int i = 0; i < count; i++, time++)
+        {
+            String key = "key:" + random.nextInt(KEYS);
+            String field = "field:" + random.nextInt(10);
+            switch (random.nextInt(8))
+            {
+                case 0, 1, 2 -> db.setAt(key, field, "v" + time, time);
+                case 3 -> db.setWithTTL(key, field, "t" + time, time, 1 + random.nextInt(500));
+                case 4, 5 -> db.deleteAt(key, field, time);
+                case 6 -> db.getValueAt(key, field, time);
+                default -> {
+                    if (random.nextInt(50) == 0)
+                        db.backup(time);
+                }
+            }
+        }
+        return time;
+    }
+
+    static void assertSameAt(InMemoryDB expected, InMemoryDB actual, int timestamp)
+    {
+        for (int i = 0; i < KEYS; i++)
+        {
+            String key = "key:" + i;
+            assertEquals(expected.scanAt(key, timestamp), actual.scanAt(key, timestamp), key + " at " + timestamp);
+        }
+    }
+
+    static WriteAheadLog open(Path log) throws IOException
+    {
+        return WriteAheadLog.open(log, WriteAheadLog.FsyncPolicy.OS, 0);
+    }
+}
@@ -0,0 +1,214 @@
+package org.example.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.example.InMemoryDB;
+import org.junit.jupiter.api.Test;
+
+class CommandHandlerTest
+{
+    private int now = 1000;
+    private final InMemoryDB db = new InMemoryDB();
+    private final CommandHandler handler = new CommandHandler(db, () -> now);
+
+    @Test
+    void hashCommands()
+    {
+        assertEquals(":2\r\n", run("HSET", "k", "a", "1", "b", "2"));
+        assertEquals(":1\r\n", run("HSET", "k", "a", "10", "c", "3"));
+        // a field given twice is one new field, holding the last value
+        assertEquals(":1\r\n", run("HSET", "k", "e", "x", "e", "5"));
+        assertEquals("$1\r\n5\r\n", run("HGET", "k", "e"));
+        assertEquals(":1\r\n", run("HDEL", "k", "e"));
+        assertEquals("+OK\r\n", run("HMSET", "k", "d", "4"));
+        assertEquals("$2\r\n10\r\n", run("HGET", "k", "a"));
+        assertEquals("$-1\r\n", run("HGET", "k", "missing"));
+        assertEquals("*2\r\n$1\r\n2\r\n$-1\r\n", run("HMGET", "k", "b", "x"));
+        assertEquals(":1\r\n", run("HEXISTS", "k", "c"));
+        assertEquals(":1\r\n", run("HDEL", "k", "c", "x"));
+        assertEquals("*6\r\n$1\r\na\r\n$2\r\n10\r\n$1\r\nb\r\n$1\r\n2\r\n$1\r\nd\r\n$1\r\n4\r\n", run("HGETALL", "k"));
+    }
+
+    @Test
+    void hsetexExpiresFields()
+    {
+        assertEquals(":1\r\n", run("HSETEX", "k", "EX", "10", "FIELDS", "1", "f", "v"));
+        // visible through the last second of its TTL, as with setWithTTL
+        now += 10;
+        assertEquals("$1\r\nv\r\n", run("HGET", "k", "f"));
+        now += 1;
+        assertEquals("$-1\r\n", run("HGET", "k", "f"));
+        assertTrue(run("HSETEX", "k", "EX", "0", "FIELDS", "1", "f", "v").startsWith("-ERR"));
+    }
+
+    @Test
+    void hscanPagesThroughFields()
+    {
+        for (int i = 0; i < 5; i++)
+            run("HSET", "k", "f" + i, "v" + i);
+        List<String> first = parseScan(run("HSCAN", "k", "0", "COUNT", "2"));
+        assertEquals(List.of("f0", "v0", "f1", "v1"), first.subList(1, first.size()));
+        List<String> second = parseScan(run("HSCAN", "k", first.get(0), "COUNT", "3"));
+        assertEquals(List.of("0", "f2", "v2", "f3", "v3", "f4", "v4"), second);
+        assertEquals("*2\r\n$1\r\n0\r\n*2\r\n$2\r\nf3\r\n$2\r\nv3\r\n", run("HSCAN", "k", "0", "MATCH", "f3*"));
+        assertTrue(run("HSCAN", "k", "12345").startsWith("-ERR invalid cursor"));
+        assertTrue(run("HSCAN", "k", "-1").startsWith("-ERR invalid cursor"));
+        assertTrue(run("HSCAN", "k", "1zz").startsWith("-ERR invalid cursor"));
+    }
+
+    @Test
+    void scanCursorsAreUnsignedIntegers()
+    {
+        for (int i = 0; i < 95; i++)
+            run("HSET", "key:" + i, "f", "v");
+
+        Set<String> seen = new HashSet<>();
+        String cursor = "0";
+        int pages = 0;
+        do
+        {
+            List<String> reply = parseScan(run("SCAN", cursor, "COUNT", "10"));
+            cursor = reply.get(0);
+            // clients parse the cursor as an unsigned 64-bit integer
+            assertTrue(Long.parseLong(cursor) >= 0, cursor);
+            for (String key: reply.subList(1, reply.size()))
+                assertTrue(seen.add(key), "repeated " + key);
+            pages++;
+        }
+        while (!cursor.equals("0"));
+        assertEquals(95, seen.size());
+        assertEquals(10, pages);
+    }
+
+    @Test
+    void cursorsExpireOnceTheirSlotIsReused()
+    {
+        for (int i = 0; i < 3; i++)
+            run("HSET", "k", "f" + i, "v");
+        String abandoned = parseScan(run("HSCAN", "k", "0", "COUNT", "1")).get(0);
+        String kept = abandoned;
+        for (int i = 0; i < 1 << 16; i++)
+            kept = parseScan(run("HSCAN", "k", "0", "COUNT", "1")).get(0);
+
+        assertEquals("-ERR invalid cursor\r\n", run("HSCAN", "k", abandoned));
+        assertEquals(List.of("0", "f1", "v", "f2", "v"), parseScan(run("HSCAN", "k", kept)));
+    }
+
+    @Test
+    void hscanResumesAfterTheLastFieldWhileTheRecordChanges()
+    {
+        for (int i = 0; i < 100; i++)
+            run("HSET", "k", String.format("f%03d", i), "v");
+
+        Set<String> seen = new HashSet<>();
+        String cursor = "0";
+        int pages = 0;
+        do
+        {
+            List<String> reply = parseScan(run("HSCAN", "k", cursor, "COUNT", "7"));
+            cursor = reply.get(0);
+            for (int i = 1; i < reply.size(); i += 2)
+                assertTrue(seen.add(reply.get(i)), "repeated " + reply.get(i));
+            // churn fields on both sides of the cursor between pages
+            run("HDEL", "k", String.format("f%03d", 99 - pages));
+            run("HSET", "k", String.format("f%03d", pages) + "x", "v");
+            pages++;
+        }
+        while (!cursor.equals("0"));
+
+        // every field that stayed put throughout was returned exactly once
+        for (int i = 0; i < 100 - pages; i++)
+            assertTrue(seen.contains(String.format("f%03d", i)), "skipped f" + i);
+    }
+
+    @Test
+    void scanPagesThroughKeysWithTheirNames()
+    {
+        for (int i = 0; i < 25; i++)
+            run("HSET", "user:" + (char) ('a' + i), "f", "v");
+        run("HSET", "other", "f", "v");
+
+        List<String> keys = new ArrayList<>();
+        String cursor = "0";
+        do
+        {
+            List<String> reply = parseScan(run("SCAN", cursor, "MATCH", "user:*", "COUNT", "10"));
+            cursor = reply.get(0);
+            keys.addAll(reply.subList(1, reply.size()));
+        }
+        while (!cursor.equals("0"));
+        assertEquals(25, keys.size());
+        assertEquals("user:a", keys.get(0));
+        assertEquals("user:y", keys.get(24));
+    }
+
+    @Test
+    void emptyMatchPatternIsAnError()
+    {
+        run("HSET", "k", "f", "v");
+        assertEquals("-ERR only prefix* MATCH patterns are supported\r\n", run("HSCAN", "k", "0", "MATCH", ""));
+        assertEquals("-ERR only prefix* MATCH patterns are supported\r\n", run("SCAN", "0", "MATCH", ""));
+        assertEquals("-ERR only prefix* MATCH patterns are supported\r\n", run("SCAN", "0", "MATCH", "a*b*"));
+        assertEquals("*2\r\n$1\r\n0\r\n*1\r\n$1\r\nk\r\n", run("SCAN", "0", "MATCH", "*"));
+    }
+
+    @Test
+    void errorsKeepTheConnectionOpen()
+    {
+        assertTrue(run("NOPE").startsWith("-ERR unknown command"));
+        assertTrue(run("HGET", "k").startsWith("-ERR wrong number of arguments"));
+        assertTrue(run("HSCAN", "k", "x").startsWith("-ERR"));
+        assertEquals("+PONG\r\n", run("PING"));
+    }
+
+    @Test
+    void quitClosesTheConnection()
+    {
+        RespWriter out = new RespWriter();
+        assertFalse(handler.execute(List.of("QUIT"), out));
+        assertEquals("+OK\r\n", written(out));
+    }
+
+    String run(String... request)
+    {
+        RespWriter out = new RespWriter();
+        assertTrue(handler.execute(List.of(request), out));
+        return written(out);
+    }
+
+    // Splits a SCAN or HSCAN reply into its cursor followed by the elements of its page
+    static List<String> parseScan(String reply)
+    {
+        String[] lines = reply.split("\r\n");
+        List<String> parsed = new ArrayList<>();
+        parsed.add(lines[2]);
+        for (int i = 5; i < lines.length; i += 2)
+            parsed.add(lines[i]);
+        return parsed;
+    }
+
+    static String written(RespWriter out)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            out.writeTo(Channels.newChannel(bytes));
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package org.example.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RespReaderTest
+{
+    @Test
+    void readsArraysAndInlineCommands() throws ProtocolException
+    {
+        ByteBuffer in = buffer("*2\r\n$3\r\nGET\r\n$1\r\nk\r\nPING  now\r\n");
+        assertEquals(List.of("GET", "k"), RespReader.read(in));
+        assertEquals(List.of("PING", "now"), RespReader.read(in));
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    void incompleteRequestLeavesThePositionAlone() throws ProtocolException
+    {
+        ByteBuffer in = buffer("*2\r\n$3\r\nGET\r\n$1\r");
+        assertNull(RespReader.read(in));
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    void hugeArgumentCountIsNotPreallocated() throws ProtocolException
+    {
+        // a header promising a million arguments with none sent is just an incomplete request
+        ByteBuffer in = buffer("*1000000\r\n$1\r\na\r\n");
+        assertNull(RespReader.read(in));
+        assertThrows(ProtocolException.class, () -> RespReader.read(buffer("*1048577\r\n")));
+    }
+
+    @Test
+    void inlineCommandsAreCapped()
+    {
+        String longLine = "x".repeat(64 * 1024 + 1);
+        assertThrows(ProtocolException.class, () -> RespReader.read(buffer(longLine)));
+        assertThrows(ProtocolException.class, () -> RespReader.read(buffer(longLine + "\r\n")));
+    }
+
+    @Test
+    void bulkStringsAreCapped()
+    {
+        String header = "*1\r\n$" + (32 * 1024 * 1024 + 1) + "\r\n";
+        assertThrows(ProtocolException.class, () -> RespReader.read(buffer(header)));
+    }
+
+    @Test
+    void growingStopsAtTheRequestLimit() throws ProtocolException
+    {
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.put(new byte[16]);
+        ByteBuffer grown = RespReader.grow(in);
+        assertEquals(32, grown.capacity());
+        assertEquals(16, grown.position());
+
+        ByteBuffer full = ByteBuffer.allocate(RespReader.MAX_REQUEST_BYTES);
+        full.position(full.limit());
+        assertThrows(ProtocolException.class, () -> RespReader.grow(full));
+    }
+
+    private static ByteBuffer buffer(String data)
+    {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
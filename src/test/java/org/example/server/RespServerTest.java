@@ -0,0 +1,248 @@
+package org.example.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+import org.example.InMemoryDB;
+import org.example.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class RespServerTest
+{
+    private static final InetSocketAddress ANY_PORT = new InetSocketAddress("127.0.0.1", 0);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eventLoopServerAnswersPipelinedRequests() throws IOException
+    {
+        RespServer server = new RespServer(new InMemoryDB(), ANY_PORT, 2, () -> 1000);
+        try (server)
+        {
+            pipelined(server.port());
+        }
+    }
+
+    @Test
+    void virtualThreadServerAnswersPipelinedRequests() throws IOException
+    {
+        VirtualThreadServer server = new VirtualThreadServer(new InMemoryDB(), ANY_PORT, () -> 1000);
+        try (server)
+        {
+            pipelined(server.port());
+        }
+    }
+
+    @Test
+    void eventLoopServerAnswersPipelinedRequestsWhenWritesWaitForTheDisk() throws IOException
+    {
+        WriteAheadLog wal = WriteAheadLog.open(dir.resolve("wal"), WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+        RespServer server = new RespServer(new InMemoryDB(wal), ANY_PORT, 1, () -> 1000);
+        try (server; wal)
+        {
+            pipelined(server.port());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void writeWaitingForTheDiskLeavesItsLoopServing() throws Exception
+    {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch synced = new CountDownLatch(1);
+        InMemoryDB db = new InMemoryDB()
+        {
+            @Override
+            public boolean waitsForDisk()
+            {
+                return true;
+            }
+
+            @Override
+            public int setManyAt(String[] keys, String[] fields, String[] values, int timestamp)
+            {
+                try
+                {
+                    if (keys[0].equals("slow"))
+                    {
+                        writing.countDown();
+                        synced.await();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    throw new AssertionError(e);
+                }
+                return super.setManyAt(keys, fields, values, timestamp);
+            }
+        };
+        RespServer server = new RespServer(db, ANY_PORT, 1, () -> 1000);
+        try (server; Client slow = new Client(server.port()); Client other = new Client(server.port()))
+        {
+            slow.send(command("HSET", "slow", "f", "v") + "PING\r\n");
+            writing.await();
+            // both connections share the one loop, which must not be waiting on the slow write
+            other.send(command("HSET", "fast", "f", "v"));
+            assertEquals(":1", other.line());
+            synced.countDown();
+            assertEquals(":1", slow.line());
+            assertEquals("+PONG", slow.line());
+        }
+    }
+
+    @Test
+    void protocolErrorClosesOnlyThatConnection() throws IOException
+    {
+        RespServer server = new RespServer(new InMemoryDB(), ANY_PORT, 1, () -> 1000);
+        try (server; Client bad = new Client(server.port()); Client good = new Client(server.port()))
+        {
+            bad.send("*1\r\n:oops\r\n");
+            assertEquals("-ERR Protocol error: expected '$', got ':'", bad.line());
+            good.send("PING\r\n");
+            assertEquals("+PONG", good.line());
+        }
+    }
+
+    @Test
+    void emptyMatchPatternLeavesTheServerRunning() throws IOException
+    {
+        RespServer server = new RespServer(new InMemoryDB(), ANY_PORT, 1, () -> 1000);
+        try (server; Client client = new Client(server.port()))
+        {
+            client.send(command("SCAN", "0", "MATCH", ""));
+            assertEquals("-ERR only prefix* MATCH patterns are supported", client.line());
+            client.send("PING\r\n");
+            assertEquals("+PONG", client.line());
+            try (Client next = new Client(server.port()))
+            {
+                next.send("PING\r\n");
+                assertEquals("+PONG", next.line());
+            }
+        }
+    }
+
+    @Test
+    void unexpectedFailureClosesOnlyThatConnection() throws IOException
+    {
+        InMemoryDB failing = new InMemoryDB()
+        {
+            @Override
+            public String getValueAt(String key, String field, int timestamp)
+            {
+                if (key.equals("boom"))
+                    throw new UnsupportedOperationException("boom");
+                return super.getValueAt(key, field, timestamp);
+            }
+        };
+        for (int loops = 1; loops <= 2; loops++)
+        {
+            RespServer server = new RespServer(failing, ANY_PORT, loops, () -> 1000);
+            try (server; Client bad = new Client(server.port()); Client good = new Client(server.port()))
+            {
+                bad.send(command("HGET", "boom", "f") + "PING\r\n");
+                assertEquals("-ERR internal error", bad.line());
+                assertNull(bad.line());
+                good.send(command("HGET", "fine", "f"));
+                assertEquals("$-1", good.line());
+                try (Client next = new Client(server.port()))
+                {
+                    next.send("PING\r\n");
+                    assertEquals("+PONG", next.line());
+                }
+            }
+        }
+        VirtualThreadServer server = new VirtualThreadServer(failing, ANY_PORT, () -> 1000);
+        try (server; Client bad = new Client(server.port()); Client good = new Client(server.port()))
+        {
+            bad.send(command("HGET", "boom", "f"));
+            assertEquals("-ERR internal error", bad.line());
+            assertNull(bad.line());
+            good.send("PING\r\n");
+            assertEquals("+PONG", good.line());
+        }
+    }
+
+    @Test
+    void oversizedInlineRequestIsRejected() throws IOException
+    {
+        RespServer server = new RespServer(new InMemoryDB(), ANY_PORT, 1, () -> 1000);
+        try (server; Client client = new Client(server.port()))
+        {
+            client.send("x".repeat(100 * 1024));
+            assertEquals("-ERR Protocol error: too big inline request", client.line());
+            assertNull(client.line());
+        }
+    }
+
+    // Sends several requests in one write, then reads every reply in order
+    private static void pipelined(int port) throws IOException
+    {
+        try (Client client = new Client(port))
+        {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 100; i++)
+                requests.append(command("HSET", "key", "f" + i, "v" + i));
+            requests.append(command("HGET", "key", "f42")).append("PING\r\n");
+            client.send(requests.toString());
+            for (int i = 0; i < 100; i++)
+                assertEquals(":1", client.line());
+            assertEquals("$3", client.line());
+            assertEquals("v42", client.line());
+            assertEquals("+PONG", client.line());
+        }
+    }
+
+    static String command(String... arguments)
+    {
+        StringBuilder request = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (String argument: arguments)
+            request.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        return request.toString();
+    }
+
+    static final class Client implements Closeable
+    {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        Client(int port) throws IOException
+        {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(10_000);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String data) throws IOException
+        {
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String line() throws IOException
+        {
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}